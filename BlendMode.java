@@ -0,0 +1,44 @@
+/* How the pixels of a layer are combined with the layers below it (see LayerStack). The ordinal of a mode is
+ * stored in files, so new modes go at the end.
+ */
+public enum BlendMode {
+	NORMAL("Normal"),		// The layer covers what is below
+	MULTIPLY("Multiply"),	// Multiplies each channel with the one below: always darker
+	SCREEN("Screen"),		// Inverse of multiplying the inverses: always lighter
+	DARKEN("Darken"),		// Keeps the darker of each channel
+	LIGHTEN("Lighten");		// Keeps the lighter of each channel
+
+	/********* Instance Variables *********/
+
+	private final String label;
+
+	/************* Constructor ************/
+
+	private BlendMode(String label) {
+		this.label = label;
+	}
+
+	/*********** Getters/Setters **********/
+
+	public String getLabel() { return label; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  0 <= s, d <= 255
+	 * Post: Returns channel s of the layer blended with channel d below it, before opacity is applied
+	 */
+	public int blend(int s, int d) {
+		switch (this) {
+		case MULTIPLY:
+			return (s * d + 127) / 255;
+		case SCREEN:
+			return 255 - ((255 - s) * (255 - d) + 127) / 255;
+		case DARKEN:
+			return Math.min(s, d);
+		case LIGHTEN:
+			return Math.max(s, d);
+		default:
+			return s;
+		}
+	}
+}
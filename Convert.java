@@ -0,0 +1,167 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* This is the command line batch converter. It walks a directory tree, renders every binary doodle in it (native
+ * or serialized ImageIcon) with the headless renderer, and writes it as an image under the output directory, at
+ * the same relative path:
+ * 		java Convert <doodle dir> <output dir> <png|jpg|bmp|gif> [threads]
+ * Files are converted on a work-stealing pool, one file per task. At most MAX_IN_FLIGHT_PER_THREAD files per
+ * thread are being converted or waiting to be, so only that many decoded images are ever held at once. Failures
+ * are reported per file and do not stop the batch.
+ */
+public class Convert {
+
+	public static final int MAX_IN_FLIGHT_PER_THREAD = 2; // Files queued or being converted, per thread
+	public static final long REPORT_MS = 5000; // Time between two progress reports
+
+	/********* Instance Variables *********/
+
+	private final File outDir;
+	private final String format;
+	private final ForkJoinPool pool;
+	private final Semaphore inFlight; // One permit per file queued or being converted
+	private final AtomicInteger numConverted = new AtomicInteger();
+	private final AtomicInteger numFailed = new AtomicInteger();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private long startTime;
+	private long lastReport;
+
+	/************* Constructor ************/
+
+	/* Pre:  outDir and format are not null. threads is positive.
+	 * Post: Creates a converter that writes images in format under outDir, on threads threads
+	 */
+	public Convert(File outDir, String format, int threads) {
+		this.outDir = outDir;
+		this.format = format;
+		this.pool = new ForkJoinPool(threads);
+		this.inFlight = new Semaphore(MAX_IN_FLIGHT_PER_THREAD * threads);
+	}
+
+	/*********** Public Methods ***********/
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true"); // Before any AWT class is loaded
+		if (args.length < 3 || args.length > 4) {
+			System.err.println("Usage: java Convert <doodle dir> <output dir> <png|jpg|bmp|gif> [threads]");
+			System.exit(2);
+		}
+		File inDir = new File(args[0]);
+		String format = args[2].toLowerCase();
+		if (!inDir.isDirectory()) {
+			System.err.println("Not a directory: " + inDir);
+			System.exit(2);
+		}
+		if (!(format.equals("png") || format.equals("jpg") || format.equals("bmp") || format.equals("gif"))) {
+			System.err.println("Unsupported image format: " + format);
+			System.exit(2);
+		}
+		int threads = (args.length == 4) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		Convert convert = new Convert(new File(args[1]), format, Math.max(1, threads));
+		try {
+			convert.run(inDir);
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted");
+			System.exit(1);
+		}
+		System.exit(convert.numFailed.get() == 0 ? 0 : 1);
+	}
+
+	/* Pre:  inDir is a directory
+	 * Post: Converts every binary doodle under inDir and prints a summary
+	 */
+	public void run(File inDir) throws InterruptedException {
+		startTime = System.nanoTime();
+		lastReport = startTime;
+		this.walk(inDir, "");
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		this.report("Done");
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  dir is a directory. path is its path relative to the input directory, ending with a separator or empty.
+	 * Post: Queues a conversion for every binary doodle under dir. Blocks while too many files are in flight.
+	 */
+	private void walk(File dir, String path) throws InterruptedException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			System.err.println("FAILED " + dir + ": cannot list directory");
+			numFailed.incrementAndGet();
+			return;
+		}
+		Arrays.sort(files);
+		for (final File f : files) {
+			if (f.isDirectory()) {
+				this.walk(f, path + f.getName() + File.separator);
+			} else if (DoodleFile.isDoodleFile(f) || Renderer.isSerialized(f)) {
+				final File out = new File(outDir, path + f.getName() + "." + format);
+				inFlight.acquire();
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							convert(f, out);
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+				this.maybeReport();
+			}
+		}
+	}
+
+	/* Pre:  in is a binary doodle
+	 * Post: Writes in as an image to out. A failure is reported and counted.
+	 */
+	private void convert(File in, File out) {
+		try {
+			BufferedImage img = Renderer.render(in, IOProgress.NONE);
+			File parent = out.getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Cannot create " + parent);
+			}
+			Renderer.write(img, format, out, IOProgress.NONE, false); // Every core is already busy with a file
+			bytesRead.addAndGet(in.length());
+			bytesWritten.addAndGet(out.length());
+			numConverted.incrementAndGet();
+		} catch (Exception e) {
+			numFailed.incrementAndGet();
+			System.err.println("FAILED " + in + ": " + e);
+		} catch (OutOfMemoryError e) {
+			numFailed.incrementAndGet();
+			System.err.println("FAILED " + in + ": out of memory");
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Prints the progress if the last report is older than REPORT_MS
+	 */
+	private void maybeReport() {
+		long now = System.nanoTime();
+		if (now - lastReport >= TimeUnit.MILLISECONDS.toNanos(REPORT_MS)) {
+			lastReport = now;
+			this.report("Progress");
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Prints the number of files converted and failed, and the throughput so far
+	 */
+	private void report(String label) {
+		double seconds = Math.max(1e-9, (System.nanoTime() - startTime) / 1e9);
+		int done = numConverted.get();
+		System.out.println(String.format("%s: %d converted, %d failed in %.1f s (%.1f files/s, %.1f MB/s read, %.1f MB/s written)",
+				label, done, numFailed.get(), seconds, done / seconds,
+				bytesRead.get() / seconds / (1 << 20), bytesWritten.get() / seconds / (1 << 20)));
+	}
+}
@@ -0,0 +1,445 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* This class reads and writes the native binary format of the app. A file holds:
+ * 		header:  MAGIC, VERSION, width, height, TILE_SIZE, flags
+ * 		image:   the picture, as a table of (offset, length) per tile followed by the deflated tiles
+ * 		history: if flags has HAS_HISTORY, the background of the first history entry (as tiles, like image), the
+ * 				 number of strokes, then each stroke as its length followed by StrokeCommand.toBytes()
+ * 		layers:  if flags has HAS_LAYERS, the number of layers, the tiles of the layers above the background in the
+ * 				 first history entry (one table per layer, like image), then the properties of each layer, bottom
+ * 				 first (see Layer.writeProperties())
+ * image is the layers blended together (see LayerStack). Tiles are TILE_SIZE x TILE_SIZE pixels stored row by row
+ * as big-endian RGB ints, ARGB for the layers above the background. A blank tile, white or clear, is stored with
+ * length 0 and takes no space. Readers memory-map the file and decode each tile on its own: blank tiles are never
+ * decoded, and the picture is read from image without going through the history.
+ */
+public class DoodleFile {
+
+	public static final int MAGIC = 0x444F4F44; // "DOOD"
+	public static final int VERSION = 2;
+	public static final int TILE_SIZE = 64; // Must divide TiledCanvas.TILE_SIZE
+	public static final int HAS_HISTORY = 1; // Flag: the file holds the stroke history
+	public static final int HAS_LAYERS = 2; // Flag: the file holds the layers of the history. Not set by version 1
+
+	private static final int HEADER_SIZE = 24;
+	private static final int WHITE = 0xFFFFFF;
+
+	/********* Instance Variables *********/
+
+	private File file;
+	private MappedByteBuffer data;
+	private int width;
+	private int height;
+	private int cols;
+	private int rows;
+	private int flags;
+	private int imageTable; // Position of the tile table of the image
+	private int historyTable; // Position of the tile table of the first history entry, or -1
+
+	/************* Constructor ************/
+
+	/* Pre:  aFile is not null
+	 * Post: Maps aFile and reads its header. Tiles are decoded later, when they are read.
+	 */
+	public DoodleFile(File aFile) throws IOException {
+		file = aFile;
+		RandomAccessFile raf = new RandomAccessFile(aFile, "r");
+		try {
+			data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close(); // The mapping stays valid
+		}
+		if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+			throw new IOException("Not a doodle file: " + aFile.getName());
+		}
+		if (data.getInt(4) > VERSION) {
+			throw new IOException("Unsupported doodle version " + data.getInt(4) + ": " + aFile.getName());
+		}
+		width = data.getInt(8);
+		height = data.getInt(12);
+		if (data.getInt(16) != TILE_SIZE) {
+			throw new IOException("Unsupported tile size: " + aFile.getName());
+		}
+		if (width <= 0 || height <= 0) {
+			throw this.corrupt();
+		}
+		flags = data.getInt(20);
+		cols = (width - 1) / TILE_SIZE + 1;
+		rows = (height - 1) / TILE_SIZE + 1;
+		if (HEADER_SIZE + 12L * cols * rows > data.capacity()) { // The tile table of the image is not all there
+			throw this.corrupt();
+		}
+		imageTable = HEADER_SIZE;
+		historyTable = -1;
+		if ((flags & HAS_HISTORY) != 0) {
+			historyTable = (int)this.sectionEnd(imageTable);
+		} else {
+			this.sectionEnd(imageTable); // Checks that the image is all there
+		}
+	}
+
+	/*********** Getters/Setters **********/
+
+	public File getFile()		 { return file; 						}
+	public int getWidth()		 { return width; 					}
+	public int getHeight()		 { return height; 					}
+	public boolean hasHistory()	 { return historyTable >= 0; 		}
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  aFile is not null
+	 * Post: Returns true if aFile starts with MAGIC
+	 */
+	public static boolean isDoodleFile(File aFile) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(aFile));
+			try {
+				return in.readInt() == MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/* Pre:  task is not null
+	 * Post: Returns the image, decoding every tile that is not white
+	 */
+	public BufferedImage readImage(IOProgress task) throws IOException {
+		return this.readTiles(imageTable, task);
+	}
+
+	/* Pre:  task is not null
+	 * Post: Returns the image as a canvas. White tiles are neither decoded nor allocated.
+	 */
+	public TiledCanvas readCanvas(IOProgress task) throws IOException {
+		return this.readCanvasTiles(imageTable, false, task);
+	}
+
+	/* Pre:  hasHistory(). task is not null.
+	 * Post: Returns the layers of the first entry of the saved history, with their properties. Blank tiles are
+	 * 		 neither decoded nor allocated.
+	 */
+	public LayerStack readHistoryLayers(IOProgress task) throws IOException {
+		LayerStack layers = new LayerStack(this.readCanvasTiles(historyTable, false, task));
+		if ((flags & HAS_LAYERS) == 0) {
+			return layers;
+		}
+		ByteBuffer buf = data.duplicate();
+		buf.position(this.strokesEnd());
+		if (buf.remaining() < 4) {
+			throw this.corrupt();
+		}
+		int count = buf.getInt();
+		int table = buf.position();
+		for (int l = 1; l < count; l++) {
+			layers.addLayer("", this.readCanvasTiles(table, true, task));
+			table = (int)this.sectionEnd(table);
+		}
+		buf.position(table);
+		for (int l = 0; l < count; l++) {
+			if (!layers.readProperties(l, buf)) {
+				throw new IOException("Corrupt layers in " + file.getName());
+			}
+		}
+		return layers;
+	}
+
+	/* Pre:  hasHistory()
+	 * Post: Returns the saved strokes, oldest first. Throws IOException if they are corrupt or cut short.
+	 */
+	public ArrayList<StrokeCommand> readStrokes() throws IOException {
+		ByteBuffer buf = this.strokes();
+		int count = buf.getInt();
+		if (count < 0 || count > buf.remaining() / 4) { // Each stroke takes at least its length
+			throw this.corrupt();
+		}
+		ArrayList<StrokeCommand> strokes = new ArrayList<StrokeCommand>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] bytes = new byte[this.strokeLength(buf)];
+			buf.get(bytes);
+			if (!StrokeCommand.isValid(bytes)) {
+				throw this.corrupt();
+			}
+			strokes.add(StrokeCommand.fromBytes(bytes));
+		}
+		return strokes;
+	}
+
+	/* Pre:  aFile and image are not null. If first is not null, strokes drawn on first give image.
+	 * Post: Writes image to aFile. If first is not null, the history (the layers of first and strokes) is written
+	 * 		 too.
+	 */
+	public static void write(File aFile, TiledCanvas image, LayerStack first, List<StrokeCommand> strokes, IOProgress task) throws IOException {
+		int numTiles = ((image.getWidth() + TILE_SIZE - 1) / TILE_SIZE) * ((image.getHeight() + TILE_SIZE - 1) / TILE_SIZE);
+		long totalTiles = (first == null) ? numTiles : (1L + first.size()) * numTiles;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(aFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(image.getWidth());
+			out.writeInt(image.getHeight());
+			out.writeInt(TILE_SIZE);
+			out.writeInt((first == null) ? 0 : HAS_HISTORY | HAS_LAYERS);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			writeTiles(out, image, deflater, task, 0, totalTiles);
+			if (first != null) {
+				writeTiles(out, first.getLayer(0).getCanvas(), deflater, task, numTiles, totalTiles);
+				out.writeInt(strokes.size());
+				for (StrokeCommand stroke : strokes) {
+					byte[] bytes = stroke.toBytes();
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+				out.writeInt(first.size());
+				for (int l = 1; l < first.size(); l++) {
+					writeTiles(out, first.getLayer(l).getCanvas(), deflater, task, (1L + l) * numTiles, totalTiles);
+				}
+				for (int l = 0; l < first.size(); l++) {
+					first.getLayer(l).writeProperties(out);
+				}
+			}
+			deflater.end();
+		} finally {
+			out.close();
+		}
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  table is the position of a tile table
+	 * Post: Returns the position right after the last tile of that table. Throws IOException if the table or one
+	 * 		 of its tiles is past the end of the file.
+	 */
+	private long sectionEnd(int table) throws IOException {
+		int numTiles = cols * rows;
+		long end = table + 12L * numTiles;
+		if (end > data.capacity()) {
+			throw this.corrupt();
+		}
+		for (int i = 0; i < numTiles; i++) {
+			long offset = data.getLong(table + 12 * i);
+			int length = data.getInt(table + 12 * i + 8);
+			if (length == 0) {
+				continue; // Blank: its offset is not used
+			}
+			if (offset < HEADER_SIZE || length < 0 || offset + length > data.capacity()) {
+				throw this.corrupt();
+			}
+			end = Math.max(end, offset + length);
+		}
+		return end;
+	}
+
+	/* Pre:  hasHistory()
+	 * Post: Returns a buffer positioned at the number of strokes. Throws IOException if it is past the end of the
+	 * 		 file.
+	 */
+	private ByteBuffer strokes() throws IOException {
+		long start = this.sectionEnd(historyTable);
+		if (start > data.capacity() - 4) {
+			throw this.corrupt();
+		}
+		ByteBuffer buf = data.duplicate();
+		buf.position((int)start);
+		return buf;
+	}
+
+	/* Pre:  buf is positioned at a stroke
+	 * Post: Reads the length of the stroke and returns it. Throws IOException if the stroke does not fit in buf.
+	 */
+	private int strokeLength(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < 4) {
+			throw this.corrupt();
+		}
+		int length = buf.getInt();
+		if (length < 0 || length > buf.remaining()) {
+			throw this.corrupt();
+		}
+		return length;
+	}
+
+	/* Pre:  hasHistory()
+	 * Post: Returns the position right after the last stroke. Throws IOException if the strokes are cut short.
+	 */
+	private int strokesEnd() throws IOException {
+		ByteBuffer buf = this.strokes();
+		int count = buf.getInt();
+		if (count < 0) {
+			throw this.corrupt();
+		}
+		for (int i = 0; i < count; i++) {
+			int length = this.strokeLength(buf);
+			buf.position(buf.position() + length);
+		}
+		return buf.position();
+	}
+
+	/* Pre:  None
+	 * Post: Returns the exception reporting that the file is corrupt or cut short
+	 */
+	private IOException corrupt() {
+		return new IOException("Corrupt doodle file: " + file.getName());
+	}
+
+	/* Pre:  table is the position of a tile table. dest holds at least the tile's pixels.
+	 * Post: Decodes tile (col, row) of that table into dest and returns the number of pixels. A tile stored with
+	 * 		 length 0 is white.
+	 */
+	private int readTile(int table, int col, int row, int[] dest) throws IOException {
+		return this.readTile(table, WHITE, col, row, dest);
+	}
+
+	/* Pre:  table is the position of a tile table. dest holds at least the tile's pixels.
+	 * Post: Decodes tile (col, row) of that table into dest and returns the number of pixels. A tile stored with
+	 * 		 length 0 is filled with blank.
+	 */
+	private int readTile(int table, int blank, int col, int row, int[] dest) throws IOException {
+		int w = Math.min(TILE_SIZE, width - col * TILE_SIZE);
+		int h = Math.min(TILE_SIZE, height - row * TILE_SIZE);
+		int i = row * cols + col;
+		long offset = data.getLong(table + 12 * i);
+		int length = data.getInt(table + 12 * i + 8);
+		if (length == 0) {
+			Arrays.fill(dest, 0, w * h, blank);
+			return w * h;
+		}
+		byte[] packed = new byte[length];
+		ByteBuffer buf = data.duplicate();
+		buf.position((int)offset);
+		buf.get(packed);
+		byte[] raw = new byte[4 * w * h];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(packed);
+			int n = 0;
+			while (n < raw.length) {
+				int read = inflater.inflate(raw, n, raw.length - n);
+				if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw this.corrupt(); // Cut short
+				}
+				n += read;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt tile in " + file.getName(), e);
+		} finally {
+			inflater.end();
+		}
+		ByteBuffer.wrap(raw).asIntBuffer().get(dest, 0, w * h);
+		return w * h;
+	}
+
+	/* Pre:  table is the position of a tile table
+	 * Post: Returns the image stored in that table. White tiles are filled, not decoded.
+	 */
+	private BufferedImage readTiles(int table, IOProgress task) throws IOException {
+		this.sectionEnd(table); // Checks that every tile is in the file
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		WritableRaster raster = img.getRaster();
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				task.checkCancelled();
+				int w = Math.min(TILE_SIZE, width - col * TILE_SIZE);
+				int h = Math.min(TILE_SIZE, height - row * TILE_SIZE);
+				this.readTile(table, col, row, pixels);
+				raster.setDataElements(col * TILE_SIZE, row * TILE_SIZE, w, h, pixels);
+			}
+			task.reportProgress(row + 1, rows);
+		}
+		return img;
+	}
+
+	/* Pre:  table is the position of a tile table
+	 * Post: Returns the canvas stored in that table, transparent or not. Blank tiles are skipped.
+	 */
+	private TiledCanvas readCanvasTiles(int table, boolean transparent, IOProgress task) throws IOException {
+		this.sectionEnd(table); // Checks that every tile is in the file
+		TiledCanvas canvas = new TiledCanvas(width, height, transparent);
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				task.checkCancelled();
+				if (data.getInt(table + 12 * (row * cols + col) + 8) == 0) {
+					continue; // Blank
+				}
+				int w = Math.min(TILE_SIZE, width - col * TILE_SIZE);
+				int h = Math.min(TILE_SIZE, height - row * TILE_SIZE);
+				this.readTile(table, canvas.blankPixel(), col, row, pixels);
+				canvas.setPixels(col * TILE_SIZE, row * TILE_SIZE, w, h, pixels);
+			}
+			task.reportProgress(row + 1, rows);
+		}
+		return canvas;
+	}
+
+	/* Pre:  out is positioned where the tile table goes
+	 * Post: Writes the tile table of img, then its tiles. Tiles that are all white, or clear if img is transparent,
+	 * 		 are not written, and blank tiles of img are not read.
+	 */
+	private static void writeTiles(DataOutputStream out, TiledCanvas img, Deflater deflater, IOProgress task, long tilesDone, long totalTiles) throws IOException {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int cols = (w + TILE_SIZE - 1) / TILE_SIZE;
+		int rows = (h + TILE_SIZE - 1) / TILE_SIZE;
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		ByteBuffer raw = ByteBuffer.allocate(4 * TILE_SIZE * TILE_SIZE);
+		byte[] buf = new byte[raw.capacity() + 64];
+		ArrayList<byte[]> packed = new ArrayList<byte[]>(cols * rows);
+		int blank = img.blankPixel();
+		int mask = img.isTransparent() ? 0xFFFFFFFF : WHITE;
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				task.checkCancelled();
+				int tw = Math.min(TILE_SIZE, w - col * TILE_SIZE);
+				int th = Math.min(TILE_SIZE, h - row * TILE_SIZE);
+				boolean isBlank = true;
+				if (!img.isBlank(col * TILE_SIZE, row * TILE_SIZE, tw, th)) {
+					img.getPixels(col * TILE_SIZE, row * TILE_SIZE, tw, th, pixels);
+					for (int i = 0; i < tw * th && isBlank; i++) {
+						isBlank = (pixels[i] & mask) == blank;
+					}
+				}
+				if (isBlank) {
+					packed.add(null);
+				} else {
+					raw.clear();
+					raw.asIntBuffer().put(pixels, 0, tw * th);
+					deflater.reset();
+					deflater.setInput(raw.array(), 0, 4 * tw * th);
+					deflater.finish();
+					int n = 0;
+					while (!deflater.finished()) {
+						if (n == buf.length) {
+							buf = Arrays.copyOf(buf, 2 * buf.length);
+						}
+						n += deflater.deflate(buf, n, buf.length - n);
+					}
+					packed.add(Arrays.copyOf(buf, n));
+				}
+				task.reportProgress(++tilesDone, totalTiles);
+			}
+		}
+		long offset = out.size() + 12L * packed.size(); // DataOutputStream counts every byte written so far
+		for (byte[] tile : packed) {
+			out.writeLong(tile == null ? 0 : offset);
+			out.writeInt(tile == null ? 0 : tile.length);
+			offset += (tile == null) ? 0 : tile.length;
+		}
+		for (byte[] tile : packed) {
+			if (tile != null) {
+				out.write(tile);
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.swing.SwingWorker;
+
+/* This class is a save or an open running on the Model's I/O thread. Progress, from 0 to 100, is reported through
+ * the SwingWorker "progress" property. When the task is cancelled, the streams and image readers/writers it
+ * tracks stop at their next read or write.
+ */
+public abstract class FileTask<T> extends SwingWorker<T, Void> implements IOProgress {
+
+	/********* Instance Variables *********/
+
+	private final File file;
+
+	/************* Constructor ************/
+
+	/* Pre:  file is not null
+	 * Post: Creates a task that reads or writes file
+	 */
+	public FileTask(File file) {
+		this.file = file;
+	}
+
+	/*********** Getters/Setters **********/
+
+	public File getFile() { return file; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  0 <= done <= total
+	 * Post: Sets the progress of this task to done / total
+	 */
+	public void reportProgress(long done, long total) {
+		if (total > 0) {
+			this.setProgress((int)Math.min(100, 100 * done / total));
+		}
+	}
+
+	/* Pre:  preview is not null and is not changed afterwards
+	 * Post: Hands preview, the picture being read, to the listeners of the "preview" property on the Event
+	 * 		 Dispatch Thread, so it can be shown before the task ends
+	 */
+	public void showPreview(TiledCanvas preview) {
+		this.firePropertyChange("preview", null, preview);
+	}
+
+	/* Pre:  None
+	 * Post: Throws InterruptedIOException if this task was cancelled
+	 */
+	public void checkCancelled() throws InterruptedIOException {
+		if (this.isCancelled()) {
+			throw new InterruptedIOException("Cancelled: " + file.getName());
+		}
+	}
+
+	/* Pre:  in is not null. total is the number of bytes expected, or 0 if unknown.
+	 * Post: Returns a stream that reads in, reports progress and stops when this task is cancelled
+	 */
+	public InputStream track(InputStream in, final long total) {
+		return new FilterInputStream(in) {
+			private long count = 0;
+			public int read() throws IOException {
+				checkCancelled();
+				int b = super.read();
+				if (b >= 0) {
+					reportProgress(++count, total);
+				}
+				return b;
+			}
+			public int read(byte[] buf, int off, int len) throws IOException {
+				checkCancelled();
+				int n = super.read(buf, off, len);
+				if (n > 0) {
+					count += n;
+					reportProgress(count, total);
+				}
+				return n;
+			}
+		};
+	}
+
+	/* Pre:  out is not null. total is the number of bytes expected, or 0 if unknown.
+	 * Post: Returns a stream that writes to out, reports progress and stops when this task is cancelled
+	 */
+	public OutputStream track(OutputStream out, final long total) {
+		return new FilterOutputStream(out) {
+			private long count = 0;
+			public void write(int b) throws IOException {
+				checkCancelled();
+				out.write(b);
+				reportProgress(++count, total);
+			}
+			public void write(byte[] buf, int off, int len) throws IOException {
+				checkCancelled();
+				out.write(buf, off, len);
+				count += len;
+				reportProgress(count, total);
+			}
+		};
+	}
+
+	/* Pre:  reader is not null
+	 * Post: reader reports its progress to this task and aborts when this task is cancelled
+	 */
+	public void track(ImageReader reader) {
+		reader.addIIOReadProgressListener(new ImageProgress());
+	}
+
+	/* Pre:  writer is not null
+	 * Post: writer reports its progress to this task and aborts when this task is cancelled
+	 */
+	public void track(ImageWriter writer) {
+		writer.addIIOWriteProgressListener(new ImageProgress());
+	}
+
+	/* INNER CLASS: Forwards the progress of an ImageIO reader or writer to this task
+	 */
+	private class ImageProgress implements IIOReadProgressListener, IIOWriteProgressListener {
+
+		public void imageProgress(ImageReader source, float percentageDone) {
+			reportProgress((long)percentageDone, 100);
+			if (isCancelled()) {
+				source.abort();
+			}
+		}
+
+		public void imageProgress(ImageWriter source, float percentageDone) {
+			reportProgress((long)percentageDone, 100);
+			if (isCancelled()) {
+				source.abort();
+			}
+		}
+
+		public void sequenceStarted(ImageReader source, int minIndex) 		  {}
+		public void sequenceComplete(ImageReader source) 					  {}
+		public void imageStarted(ImageReader source, int imageIndex) 		  {}
+		public void imageComplete(ImageReader source) 						  {}
+		public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+		public void thumbnailProgress(ImageReader source, float percentageDone) {}
+		public void thumbnailComplete(ImageReader source) 					  {}
+		public void readAborted(ImageReader source) 						  {}
+
+		public void imageStarted(ImageWriter source, int imageIndex) 		  {}
+		public void imageComplete(ImageWriter source) 						  {}
+		public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {}
+		public void thumbnailProgress(ImageWriter source, float percentageDone) {}
+		public void thumbnailComplete(ImageWriter source) 					  {}
+		public void writeAborted(ImageWriter source) 						  {}
+	}
+}
@@ -0,0 +1,60 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+
+/* This class represents one use of the fill tool: the region around a seed point whose colors are within
+ * tolerance of the seed's is filled with a color. Like a stroke it is kept in the history and drawn again, in
+ * order, on the canvas it was first applied to, so only its seed is stored. It is applied by TiledCanvas (see
+ * FloodFill), since a Graphics cannot fill a region.
+ */
+public class FillCommand extends StrokeCommand {
+
+	public static final int MAX_TOLERANCE = 255;
+
+	/********* Instance Variables *********/
+
+	private final int tolerance; // Largest difference, in any of red, green and blue, from the seed's color
+	private Rectangle area; // Pixels changed the last time the fill was applied. Empty before
+
+	/************* Constructor ************/
+
+	/* Pre:  0 <= tolerance <= MAX_TOLERANCE
+	 * Post: Creates a fill seeded at (x, y)
+	 */
+	public FillCommand(Color color, int tolerance, int x, int y) {
+		super(color, 1, x, y);
+		this.tolerance = tolerance;
+		this.area = new Rectangle(x, y, 0, 0);
+	}
+
+	/*********** Getters/Setters **********/
+
+	public int getTolerance() { return tolerance; }
+
+	/* Pre:  None
+	 * Post: Returns the pixels changed the last time this fill was applied, empty if it was not
+	 */
+	public Rectangle getBounds() { return new Rectangle(area); }
+
+	void setBounds(Rectangle area) { this.area = area; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  None
+	 * Post: Does nothing: a fill has no segments. It is applied by TiledCanvas.draw().
+	 */
+	public void drawSegments(Graphics2D g, int from, int to) {
+	}
+
+	/* Pre:  None
+	 * Post: Returns this fill as bytes, like a stroke of one point whose width, -1 - tolerance, is negative
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buf = this.allocateBytes(1);
+		buf.putInt(this.getColor().getRGB());
+		buf.putInt(-1 - tolerance);
+		buf.putInt(1);
+		buf.putInt(this.getX(0));
+		buf.putInt(this.getY(0));
+		return buf.array();
+	}
+}
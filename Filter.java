@@ -0,0 +1,41 @@
+/* The filters that can be applied to the whole canvas (see RasterFilter). Each takes one amount, between min and
+ * max. The ordinal of a filter is stored in files, so new filters go at the end.
+ */
+public enum Filter {
+	BLUR("Blur", "Radius", 1, 64, 4),				// Gaussian blur of the given radius, in pixels
+	SHARPEN("Sharpen", "Amount (%)", 1, 500, 100),	// Unsharp mask: adds the amount of the difference with a blur
+	BRIGHTNESS("Brightness", "Change", -255, 255, 32), // Adds the amount to red, green and blue
+	CONTRAST("Contrast", "Change (%)", -100, 100, 25),	// Scales the distance of each channel from mid gray
+	INVERT("Invert", null, 0, 0, 0),				// Makes each channel 255 minus itself. Takes no amount.
+	POSTERIZE("Posterize", "Levels", 2, 64, 4);		// Rounds each channel to one of the given number of levels
+
+	/********* Instance Variables *********/
+
+	private final String label;
+	private final String amountLabel; // null if the filter takes no amount
+	private final int min;
+	private final int max;
+	private final int defaultAmount;
+
+	/************* Constructor ************/
+
+	/* Pre:  min <= defaultAmount <= max
+	 * Post: Creates a filter shown as label, whose amount is described by amountLabel
+	 */
+	private Filter(String label, String amountLabel, int min, int max, int defaultAmount) {
+		this.label = label;
+		this.amountLabel = amountLabel;
+		this.min = min;
+		this.max = max;
+		this.defaultAmount = defaultAmount;
+	}
+
+	/*********** Getters/Setters **********/
+
+	public String getLabel()		{ return label; 		}
+	public String getAmountLabel()	{ return amountLabel;	}
+	public int getMin()				{ return min; 			}
+	public int getMax()				{ return max; 			}
+	public int getDefaultAmount()	{ return defaultAmount; }
+	public boolean hasAmount()		{ return amountLabel != null; }
+}
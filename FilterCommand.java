@@ -0,0 +1,63 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+
+/* This class represents one use of a filter (see Filter) on the canvas. Like a stroke it is kept in the history
+ * and applied again, in order, on the canvas it was first applied to, so only the filter and its amount are
+ * stored. It is applied by TiledCanvas (see RasterFilter), over the whole canvas as it was then.
+ */
+public class FilterCommand extends StrokeCommand {
+
+	public static final int FIRST_MARK = -2 - FillCommand.MAX_TOLERANCE; // Width stored for the first filter
+
+	/********* Instance Variables *********/
+
+	private final Filter filter;
+	private final int amount;
+	private Rectangle area; // Pixels the filter was applied to the last time. Empty before
+
+	/************* Constructor ************/
+
+	/* Pre:  filter is not null. filter.getMin() <= amount <= filter.getMax()
+	 * Post: Creates a use of filter with the given amount
+	 */
+	public FilterCommand(Filter filter, int amount) {
+		super(Color.BLACK, 1, 0, 0);
+		this.filter = filter;
+		this.amount = amount;
+		this.area = new Rectangle();
+	}
+
+	/*********** Getters/Setters **********/
+
+	public Filter getFilter()	{ return filter; }
+	public int getAmount()		{ return amount; }
+
+	/* Pre:  None
+	 * Post: Returns the pixels the filter was applied to the last time, empty if it was not
+	 */
+	public Rectangle getBounds() { return new Rectangle(area); }
+
+	void setBounds(Rectangle area) { this.area = area; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  None
+	 * Post: Does nothing: a filter has no segments. It is applied by TiledCanvas.draw().
+	 */
+	public void drawSegments(Graphics2D g, int from, int to) {
+	}
+
+	/* Pre:  None
+	 * Post: Returns this filter as bytes, like a stroke of one point, (amount, 0), whose width is
+	 * 		 FIRST_MARK - the ordinal of the filter. It is below the widths of fills (see FillCommand.toBytes()).
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buf = this.allocateBytes(1);
+		buf.putInt(this.getColor().getRGB());
+		buf.putInt(FIRST_MARK - filter.ordinal());
+		buf.putInt(1);
+		buf.putInt(amount);
+		buf.putInt(0);
+		return buf.array();
+	}
+}
@@ -0,0 +1,225 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/* This class fills the region of a TiledCanvas around a seed pixel: the pixels reachable from it, left, right, up
+ * or down, whose color is within a tolerance of the seed's. It is a span filling scanline fill: each step fills
+ * a run of a row and pushes the parts of the rows above and below to scan on a stack of ints, so no point is ever
+ * boxed. Pixels are read and written in the int arrays backing the tiles. A blank tile is only allocated once a
+ * pixel in it is filled. On a transparent canvas alpha is compared like the other channels, and the fill is opaque.
+ */
+public class FloodFill {
+
+	private static final int TILE_SIZE = TiledCanvas.TILE_SIZE;
+	private static final int WHITE = 0xFFFFFF;
+
+	/********* Instance Variables *********/
+
+	private final TiledCanvas canvas;
+	private final int width; // The fill stays inside the top left width x height of the canvas
+	private final int height;
+	private final int cols;
+	private final int mask; // Bits of a pixel that are compared: RGB, or ARGB on a transparent canvas
+	private final int target; // Color of the seed
+	private final int rgb; // Fill color, as stored in the tiles
+	private final int tolerance;
+	private final int[][] pixels; // Array backing each tile, looked up on first use. Blank tiles share the white one.
+	private final boolean[] writable; // Tiles whose array may be written
+	private final long[][] visited; // One bit per filled pixel, per tile. null if filled pixels no longer match.
+	private int[] stack = new int[256]; // x1, x2, y, dy of each run to scan
+	private int size = 0;
+	private int minX, minY, maxX, maxY; // Bounds of the filled pixels
+
+	/************* Constructor ************/
+
+	/* Pre:  canvas is not null. (x, y) is inside the top left w x h of the canvas. 0 <= tolerance.
+	 * Post: Prepares a fill of the region around (x, y) with rgb. Nothing is filled before run().
+	 */
+	public FloodFill(TiledCanvas canvas, int x, int y, int rgb, int tolerance, int w, int h) {
+		this.canvas = canvas;
+		this.width = Math.min(w, canvas.getWidth());
+		this.height = Math.min(h, canvas.getHeight());
+		this.cols = canvas.numCols();
+		this.pixels = new int[cols * canvas.numRows()][];
+		this.writable = new boolean[pixels.length];
+		this.mask = canvas.isTransparent() ? 0xFFFFFFFF : WHITE;
+		this.rgb = canvas.isTransparent() ? (rgb | 0xFF000000) : (rgb & WHITE);
+		this.tolerance = tolerance;
+		this.target = this.pixel(x, y);
+		// A filled pixel that still matches would be filled again, forever: remember which ones are filled
+		this.visited = this.matches(this.rgb) ? new long[pixels.length][] : null;
+		minX = minY = Integer.MAX_VALUE;
+		maxX = maxY = Integer.MIN_VALUE;
+	}
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  canvas is not null. 0 <= tolerance.
+	 * Post: Fills the region around (x, y) inside the top left w x h of canvas with rgb, and returns the bounds of
+	 * 		 the pixels changed. Returns an empty rectangle if (x, y) is outside or nothing changed.
+	 */
+	public static Rectangle fill(TiledCanvas canvas, int x, int y, int rgb, int tolerance, int w, int h) {
+		if (x < 0 || y < 0 || x >= Math.min(w, canvas.getWidth()) || y >= Math.min(h, canvas.getHeight())) {
+			return new Rectangle(x, y, 0, 0);
+		}
+		int seed = canvas.getPixels(x, y, 1, 1, new int[1])[0];
+		if (tolerance == 0 && (canvas.isTransparent() ? (rgb | 0xFF000000) == seed : (rgb & WHITE) == (seed & WHITE))) {
+			return new Rectangle(x, y, 0, 0); // Already that color
+		}
+		return new FloodFill(canvas, x, y, rgb, tolerance, w, h).run(x, y);
+	}
+
+	/* Pre:  (seedX, seedY) is the seed given to the constructor
+	 * Post: Fills the region and returns the bounds of the pixels filled
+	 */
+	public Rectangle run(int seedX, int seedY) {
+		this.push(seedX, seedX, seedY, 1);
+		this.push(seedX, seedX, seedY - 1, -1);
+		while (size > 0) {
+			size -= 4;
+			int x1 = stack[size];
+			int x2 = stack[size + 1];
+			int y = stack[size + 2];
+			int dy = stack[size + 3];
+			int left = x1;
+			if (this.inside(left, y)) { // Extend the run to the left, past where the row above or below reached
+				left = this.fillRun(x1 - 1, y, -1) + 1;
+				if (left < x1) {
+					this.push(left, x1 - 1, y - dy, -dy);
+				}
+			}
+			while (x1 <= x2) {
+				x1 = this.fillRun(x1, y, 1);
+				if (x1 > left) {
+					this.push(left, x1 - 1, y + dy, dy);
+				}
+				if (x1 - 1 > x2) { // Went past the end of the row it came from: look back too
+					this.push(x2 + 1, x1 - 1, y - dy, -dy);
+				}
+				x1++;
+				while (x1 < x2 && !this.inside(x1, y)) {
+					x1++;
+				}
+				left = x1;
+			}
+		}
+		if (maxX < minX) {
+			return new Rectangle(seedX, seedY, 0, 0);
+		}
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  None
+	 * Post: Returns true if (x, y) is in the area, not filled yet and matches the seed's color
+	 */
+	private boolean inside(int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return false;
+		}
+		int t = (y / TILE_SIZE) * cols + x / TILE_SIZE;
+		int i = (y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE;
+		if (visited != null && visited[t] != null && (visited[t][i >> 6] & (1L << i)) != 0) {
+			return false;
+		}
+		int[] tile = pixels[t];
+		if (tile == null) {
+			tile = pixels[t] = canvas.tileData(x / TILE_SIZE, y / TILE_SIZE, false);
+		}
+		return this.matches(tile[i]);
+	}
+
+	/* Pre:  dx is 1 or -1
+	 * Post: Fills the pixels of row y from x on, going in direction dx, as long as they are inside. Returns the
+	 * 		 first x, in that direction, that was not filled. Each tile crossed is scanned in its own array.
+	 */
+	private int fillRun(int x, int y, int dx) {
+		if (y < 0 || y >= height) {
+			return x;
+		}
+		int end = (dx > 0) ? width : -1;
+		int row = y / TILE_SIZE;
+		int rowStart = (y % TILE_SIZE) * TILE_SIZE;
+		while (x != end) {
+			int col = x / TILE_SIZE;
+			int t = row * cols + col;
+			int offset = rowStart - col * TILE_SIZE; // Index in the tile of (x, y) is offset + x
+			int stop = (dx > 0) ? Math.min(end, (col + 1) * TILE_SIZE) : Math.max(end, col * TILE_SIZE - 1);
+			int[] tile = pixels[t];
+			if (tile == null) {
+				tile = pixels[t] = canvas.tileData(col, row, false);
+			}
+			long[] seen = (visited == null) ? null : visited[t];
+			int start = x;
+			while (x != stop && this.matches(tile[offset + x]) && (seen == null || (seen[(offset + x) >> 6] & (1L << (offset + x))) == 0)) {
+				x += dx;
+			}
+			if (x != start) {
+				this.fill(t, col, row, offset, Math.min(start, x - dx), Math.max(start, x - dx), y);
+			}
+			if (x != stop) {
+				break;
+			}
+		}
+		return x;
+	}
+
+	/* Pre:  from <= to. (from, y) .. (to, y) are in tile t, at (col, row). offset + x is the index of (x, y) in it.
+	 * Post: Fills (from, y) .. (to, y)
+	 */
+	private void fill(int t, int col, int row, int offset, int from, int to, int y) {
+		if (!writable[t]) {
+			pixels[t] = canvas.tileData(col, row, true);
+			writable[t] = true;
+		}
+		Arrays.fill(pixels[t], offset + from, offset + to + 1, rgb);
+		if (visited != null) {
+			if (visited[t] == null) {
+				visited[t] = new long[TILE_SIZE * TILE_SIZE / 64];
+			}
+			for (int i = offset + from; i <= offset + to; i++) {
+				visited[t][i >> 6] |= 1L << i;
+			}
+		}
+		minX = Math.min(minX, from);
+		maxX = Math.max(maxX, to);
+		minY = Math.min(minY, y);
+		maxY = Math.max(maxY, y);
+	}
+
+	/* Pre:  (x, y) is in the area
+	 * Post: Returns the color of (x, y)
+	 */
+	private int pixel(int x, int y) {
+		int[] tile = canvas.tileData(x / TILE_SIZE, y / TILE_SIZE, false);
+		return tile[(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE] & mask;
+	}
+
+	/* Pre:  None
+	 * Post: Returns true if no channel of color differs from the seed's by more than tolerance
+	 */
+	private boolean matches(int color) {
+		color &= mask;
+		if (tolerance == 0) {
+			return color == target;
+		}
+		return Math.abs((color >>> 24) - (target >>> 24)) <= tolerance
+				&& Math.abs((color >> 16 & 0xFF) - (target >> 16 & 0xFF)) <= tolerance
+				&& Math.abs((color >> 8 & 0xFF) - (target >> 8 & 0xFF)) <= tolerance
+				&& Math.abs((color & 0xFF) - (target & 0xFF)) <= tolerance;
+	}
+
+	/* Pre:  None
+	 * Post: Pushes the run x1 .. x2 of row y, to be scanned going in direction dy
+	 */
+	private void push(int x1, int x2, int y, int dy) {
+		if (size + 4 > stack.length) {
+			stack = Arrays.copyOf(stack, 2 * stack.length);
+		}
+		stack[size] = x1;
+		stack[size + 1] = x2;
+		stack[size + 2] = y;
+		stack[size + 3] = dy;
+		size += 4;
+	}
+}
@@ -0,0 +1,30 @@
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/* Interface IOProgress: lets a long read or write report its progress and be cancelled. FileTask implements it
+ * for the app. NONE is for callers, like the headless renderer, that run without a user interface.
+ */
+public interface IOProgress {
+
+	/* Pre:  0 <= done <= total
+	 * Post: Reports that done out of total units of work are done
+	 */
+	public void reportProgress(long done, long total);
+
+	/* Pre:  None
+	 * Post: Throws InterruptedIOException if the work was cancelled
+	 */
+	public void checkCancelled() throws InterruptedIOException;
+
+	/* Pre:  in is not null. total is the number of bytes expected, or 0 if unknown.
+	 * Post: Returns a stream that reads in, reports progress and stops when the work is cancelled
+	 */
+	public InputStream track(InputStream in, long total);
+
+	/* Reports nothing and is never cancelled */
+	public static final IOProgress NONE = new IOProgress() {
+		public void reportProgress(long done, long total) 	 {}
+		public void checkCancelled() 						 {}
+		public InputStream track(InputStream in, long total) { return in; }
+	};
+}
@@ -0,0 +1,58 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/* This class is one layer of a drawing (see LayerStack): a canvas and how it is shown over the layers below it.
+ * The bottom layer is opaque, it starts white. The layers above it are transparent, they start clear.
+ * Its properties are changed through the LayerStack, which redoes the composite where the layer has pixels.
+ */
+public class Layer {
+
+	public static final int MAX_OPACITY = 100;
+
+	/********* Instance Variables *********/
+
+	private final TiledCanvas canvas;
+	private String name;
+	private boolean visible = true;
+	private int opacity = MAX_OPACITY; // Percent
+	private BlendMode blend = BlendMode.NORMAL;
+
+	/************* Constructor ************/
+
+	/* Pre:  name and canvas are not null
+	 * Post: Creates a visible, fully opaque, normal layer holding canvas
+	 */
+	public Layer(String name, TiledCanvas canvas) {
+		this.name = name;
+		this.canvas = canvas;
+	}
+
+	/*********** Getters/Setters **********/
+
+	public TiledCanvas getCanvas()	{ return canvas;  }
+	public String getName()			{ return name; 	  }
+	public boolean isVisible()		{ return visible; }
+	public int getOpacity()			{ return opacity; }
+	public BlendMode getBlend()		{ return blend;   }
+
+	void setName(String name)		  { this.name = name; 		}
+	void setVisible(boolean visible)  { this.visible = visible; }
+	void setOpacity(int opacity)	  { this.opacity = opacity; }
+	void setBlend(BlendMode blend)	  { this.blend = blend; 	}
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  out is not null
+	 * Post: Writes the properties of this layer: visibility (1 or 0), opacity, blend mode (see BlendMode), then the
+	 * 		 length and UTF-8 bytes of its name. They are read by LayerStack.readProperties().
+	 */
+	public void writeProperties(DataOutput out) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(visible ? 1 : 0);
+		out.writeInt(opacity);
+		out.writeInt(blend.ordinal());
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,300 @@
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/* This class is the stack of layers of a drawing, bottom first (see Layer). The layers are blended, over white,
+ * into a composite canvas that is kept between paints, so painting is one copy of the composite's tiles. The
+ * composite is only redone on the tiles that changed: each layer's canvas records the tiles written since the last
+ * refresh(), and changing the properties of a layer marks the tiles it has pixels on. While there is only the
+ * background, shown as it is, it is its own composite and no copy is made.
+ * Every layer has the size of the stack. Layers are added on top, and are never removed or reordered.
+ */
+public class LayerStack {
+
+	public static final String BACKGROUND = "Background"; // Name of the bottom layer of a new stack
+
+	private static final int TILE_SIZE = TiledCanvas.TILE_SIZE;
+	private static final int WHITE = 0xFFFFFF;
+
+	/********* Instance Variables *********/
+
+	private ArrayList<Layer> layers; // layers.get(0) is the opaque background
+	private TiledCanvas composite; // The layers blended together. null while the background is its own composite
+	private BitSet dirty; // Tiles of the composite to redo, besides those the layers wrote
+	private int[] scratch; // The composite tile being blended
+
+	/************* Constructor ************/
+
+	/* Pre:  width and height are positive
+	 * Post: Creates a stack of one white background layer of the given size
+	 */
+	public LayerStack(int width, int height) {
+		this(new TiledCanvas(width, height));
+	}
+
+	/* Pre:  background is not null and not transparent
+	 * Post: Creates a stack of one layer holding background
+	 */
+	public LayerStack(TiledCanvas background) {
+		layers = new ArrayList<Layer>();
+		layers.add(new Layer(BACKGROUND, background));
+		dirty = new BitSet();
+		scratch = new int[TILE_SIZE * TILE_SIZE];
+	}
+
+	/*********** Getters/Setters **********/
+
+	public int size()				{ return layers.size(); 	 }
+	public Layer getLayer(int i)	{ return layers.get(i); 	 }
+	public int getWidth()			{ return this.background().getWidth();  }
+	public int getHeight()			{ return this.background().getHeight(); }
+
+	/* Pre:  0 <= i < size(). name is not null.
+	 * Post: Renames layer i
+	 */
+	public void setName(int i, String name) {
+		layers.get(i).setName(name);
+	}
+
+	/* Pre:  0 <= i < size()
+	 * Post: Shows or hides layer i. The composite is redone where it has pixels.
+	 */
+	public void setVisible(int i, boolean visible) {
+		if (layers.get(i).isVisible() != visible) {
+			layers.get(i).setVisible(visible);
+			this.markLayer(i);
+		}
+	}
+
+	/* Pre:  0 <= i < size(). 0 <= opacity <= Layer.MAX_OPACITY.
+	 * Post: Sets the opacity of layer i, in percent. The composite is redone where it has pixels.
+	 */
+	public void setOpacity(int i, int opacity) {
+		if (layers.get(i).getOpacity() != opacity) {
+			layers.get(i).setOpacity(opacity);
+			this.markLayer(i);
+		}
+	}
+
+	/* Pre:  0 <= i < size(). blend is not null.
+	 * Post: Sets how layer i is blended with the layers below it. The composite is redone where it has pixels.
+	 */
+	public void setBlend(int i, BlendMode blend) {
+		if (layers.get(i).getBlend() != blend) {
+			layers.get(i).setBlend(blend);
+			this.markLayer(i);
+		}
+	}
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  name is not null
+	 * Post: Adds a clear layer on top and returns its index. The composite does not change.
+	 */
+	public int addLayer(String name) {
+		layers.add(new Layer(name, new TiledCanvas(this.getWidth(), this.getHeight(), true)));
+		return layers.size() - 1;
+	}
+
+	/* Pre:  name is not null. canvas is transparent and has the size of the stack.
+	 * Post: Adds a layer holding canvas on top and returns its index. The composite is redone where it has pixels.
+	 */
+	public int addLayer(String name, TiledCanvas canvas) {
+		layers.add(new Layer(name, canvas));
+		this.markLayer(layers.size() - 1);
+		return layers.size() - 1;
+	}
+
+	/* Pre:  0 <= i < size(). buf is positioned at properties written by Layer.writeProperties().
+	 * Post: Reads them into layer i and returns true, or returns false, without changing the layer, if they are
+	 * 		 corrupt
+	 */
+	public boolean readProperties(int i, ByteBuffer buf) {
+		try {
+			boolean visible = buf.getInt() != 0;
+			int opacity = buf.getInt();
+			int blend = buf.getInt();
+			int length = buf.getInt();
+			if (opacity < 0 || opacity > Layer.MAX_OPACITY || blend < 0 || blend >= BlendMode.values().length
+					|| length < 0 || length > buf.remaining()) {
+				return false;
+			}
+			byte[] name = new byte[length];
+			buf.get(name);
+			this.setName(i, new String(name, StandardCharsets.UTF_8));
+			this.setVisible(i, visible);
+			this.setOpacity(i, opacity);
+			this.setBlend(i, BlendMode.values()[blend]);
+			return true;
+		} catch (BufferUnderflowException e) {
+			return false;
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Returns a stack of the same size, with the same layers and properties, whose canvases are blank
+	 */
+	public LayerStack blankCopy() {
+		LayerStack s = new LayerStack(this.getWidth(), this.getHeight());
+		for (int i = 0; i < layers.size(); i++) {
+			Layer l = layers.get(i);
+			if (i > 0) {
+				s.addLayer(l.getName());
+			}
+			s.setName(i, l.getName());
+			s.setVisible(i, l.isVisible());
+			s.setOpacity(i, l.getOpacity());
+			s.setBlend(i, l.getBlend());
+		}
+		return s;
+	}
+
+	/* Pre:  None
+	 * Post: Grows every layer, and the composite, so they are at least width x height (see TiledCanvas.grow)
+	 */
+	public void grow(int width, int height) {
+		int cols = this.background().numCols();
+		for (Layer l : layers) {
+			l.getCanvas().grow(width, height);
+		}
+		if (composite != null) {
+			composite.grow(width, height);
+		}
+		int newCols = this.background().numCols();
+		BitSet moved = new BitSet();
+		for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+			moved.set((i / cols) * newCols + i % cols);
+		}
+		dirty = moved;
+	}
+
+	/* Pre:  None
+	 * Post: Redoes the tiles of the composite that changed since the last refresh
+	 */
+	public void refresh() {
+		if (this.isBackgroundOnly()) {
+			composite = null; // The background is shown as it is
+			this.background().changedTiles();
+			dirty.clear();
+			return;
+		}
+		if (composite == null) {
+			composite = new TiledCanvas(this.getWidth(), this.getHeight());
+			for (Layer l : layers) {
+				dirty.or(l.getCanvas().allocatedTiles());
+			}
+		}
+		for (Layer l : layers) {
+			dirty.or(l.getCanvas().changedTiles());
+		}
+		int cols = composite.numCols();
+		for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+			this.composeTile(i % cols, i / cols);
+		}
+		dirty.clear();
+		composite.changedTiles(); // Its pyramid is kept up to date by the canvas itself
+	}
+
+	/* Pre:  None
+	 * Post: Returns the layers blended together, up to date. It must not be written.
+	 */
+	public TiledCanvas getComposite() {
+		this.refresh();
+		return (composite == null) ? this.background() : composite;
+	}
+
+	/* Pre:  g is not null. clip is in canvas coordinates. scale is positive.
+	 * Post: Brings the composite up to date and draws its tiles that intersect clip (see TiledCanvas.paint)
+	 */
+	public void paint(Graphics g, Rectangle clip, double scale) {
+		this.getComposite().paint(g, clip, scale);
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  None
+	 * Post: Returns the canvas of the bottom layer
+	 */
+	private TiledCanvas background() {
+		return layers.get(0).getCanvas();
+	}
+
+	/* Pre:  None
+	 * Post: Returns true if the composite equals the background: it is the only layer and is shown as it is
+	 */
+	private boolean isBackgroundOnly() {
+		Layer l = layers.get(0);
+		return layers.size() == 1 && l.isVisible() && l.getOpacity() == Layer.MAX_OPACITY && l.getBlend() == BlendMode.NORMAL;
+	}
+
+	/* Pre:  0 <= i < size()
+	 * Post: The tiles layer i has pixels on will be redone at the next refresh
+	 */
+	private void markLayer(int i) {
+		dirty.or(layers.get(i).getCanvas().allocatedTiles());
+	}
+
+	/* Pre:  composite is not null. (col, row) is one of its tiles.
+	 * Post: Blends the visible layers that have pixels on tile (col, row) over white, into the composite. A tile
+	 * 		 that ends up white is released.
+	 */
+	private void composeTile(int col, int row) {
+		int x = col * TILE_SIZE;
+		int y = row * TILE_SIZE;
+		Arrays.fill(scratch, WHITE);
+		boolean white = true;
+		for (Layer l : layers) {
+			TiledCanvas c = l.getCanvas();
+			if (l.isVisible() && l.getOpacity() > 0 && !c.isBlank(x, y, TILE_SIZE, TILE_SIZE)) {
+				this.blend(c.tileData(col, row, false), c.isTransparent(), l.getOpacity(), l.getBlend(), scratch);
+				white = false;
+			}
+		}
+		if (white) {
+			composite.fillBlank(x, y, TILE_SIZE, TILE_SIZE);
+		} else {
+			composite.setPixels(x, y, TILE_SIZE, TILE_SIZE, scratch);
+		}
+	}
+
+	/* Pre:  src and dest hold one tile. src is ARGB if transparent, RGB otherwise. 0 < opacity <= MAX_OPACITY.
+	 * Post: Blends src with mode over dest, at the given opacity (in percent) times the alpha of each pixel
+	 */
+	private void blend(int[] src, boolean transparent, int opacity, BlendMode mode, int[] dest) {
+		int layerAlpha = (opacity * 255 + Layer.MAX_OPACITY / 2) / Layer.MAX_OPACITY;
+		if (!transparent && layerAlpha == 255 && mode == BlendMode.NORMAL) {
+			System.arraycopy(src, 0, dest, 0, src.length); // Covers what is below
+			return;
+		}
+		for (int i = 0; i < src.length; i++) {
+			int s = src[i];
+			int a = transparent ? s >>> 24 : 255;
+			if (a == 0) {
+				continue;
+			}
+			a = (a * layerAlpha + 127) / 255;
+			if (a == 255 && mode == BlendMode.NORMAL) {
+				dest[i] = s & WHITE;
+				continue;
+			}
+			int d = dest[i];
+			int r = mix(mode, (s >> 16) & 0xFF, (d >> 16) & 0xFF, a);
+			int g = mix(mode, (s >> 8) & 0xFF, (d >> 8) & 0xFF, a);
+			int b = mix(mode, s & 0xFF, d & 0xFF, a);
+			dest[i] = (r << 16) | (g << 8) | b;
+		}
+	}
+
+	/* Pre:  0 <= s, d, a <= 255
+	 * Post: Returns channel s blended with channel d by mode, then laid over d with alpha a, rounded
+	 */
+	private static int mix(BlendMode mode, int s, int d, int a) {
+		int diff = (mode.blend(s, d) - d) * a;
+		return d + (diff + (diff >= 0 ? 127 : -127)) / 255;
+	}
+}
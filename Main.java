@@ -10,9 +10,9 @@ public class Main{
 
 	public static void main(String[] args){	
 		
+		Metrics.register(); // Only if the app was started with -Ddoodle.metrics=true
 		Model model = new Model();
-		View view = new View(model);
-		model.setView(view);
+		new View(model); // The view subscribes to the model's change events
 		
 		
 	} 
@@ -0,0 +1,258 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/* This class is the metrics registry of the app: where the time of the user interface and of file I/O goes. It
+ * keeps:
+ * 		input to paint	- from the first mouse event not shown yet to the end of the paint that shows it
+ * 		paint			- time of each paint of the canvas
+ * 		history			- number of entries and bytes of the undo history
+ * 		save, open		- duration of each save and open, by format
+ * Metrics are off unless the app is started with -Ddoodle.metrics=true. When they are off, ENABLED is a constant
+ * false, so the JIT drops the calls to the record methods: the hot paths pay nothing. When on, they are read through JMX (see
+ * MetricsMXBean), and each record is also a JFR event, in the "Doodle" category, when a flight recording is on:
+ * 		java -Ddoodle.metrics=true -XX:StartFlightRecording=filename=doodle.jfr Main
+ * Record methods may be called from any thread.
+ */
+public class Metrics implements MetricsMXBean {
+
+	public static final boolean ENABLED = Boolean.getBoolean("doodle.metrics");
+	public static final String OBJECT_NAME = "doodle:type=Metrics";
+
+	private static final long MICROS = 1000; // ns per us
+	private static final long MILLIS = 1000000; // ns per ms
+	private static final Metrics INSTANCE = new Metrics();
+
+	/********* Instance Variables *********/
+
+	private final Histogram inputToPaint = new Histogram();
+	private final Histogram paint = new Histogram();
+	private final ConcurrentHashMap<String, Histogram> saves = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentHashMap<String, Histogram> opens = new ConcurrentHashMap<String, Histogram>();
+	private volatile int historyEntries = 0;
+	private volatile long historyBytes = 0;
+	private boolean registered = false;
+
+	/************* Constructor ************/
+
+	private Metrics() {}
+
+	/*********** Getters/Setters **********/
+
+	public Histogram.Snapshot getInputToPaint()	{ return inputToPaint.snapshot(MICROS); }
+	public Histogram.Snapshot getPaint()		{ return paint.snapshot(MICROS); 		}
+	public int getHistoryEntries()				{ return historyEntries; 				}
+	public long getHistoryBytes()				{ return historyBytes; 					}
+	public Map<String, Histogram.Snapshot> getSaves() { return snapshots(saves); }
+	public Map<String, Histogram.Snapshot> getOpens() { return snapshots(opens); }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  None
+	 * Post: If metrics are on, registers the registry with the platform MBean server, once. Does nothing otherwise.
+	 */
+	public static synchronized void register() {
+		if (!ENABLED || INSTANCE.registered) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+			INSTANCE.registered = true;
+		} catch (JMException e) {
+			throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Returns the time to pass to a record method as start, or 0 if metrics are off
+	 */
+	public static long start() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/* Pre:  start was returned by start() when the first mouse event not shown yet was handled
+	 * Post: Records that it is shown now
+	 */
+	public static void inputToPaint(long start) {
+		if (!ENABLED) {
+			return;
+		}
+		long ns = System.nanoTime() - start;
+		INSTANCE.inputToPaint.record(ns);
+		InputToPaintEvent event = new InputToPaintEvent();
+		if (event.shouldCommit()) {
+			event.latency = ns;
+			event.commit();
+		}
+	}
+
+	/* Pre:  start was returned by start() when the paint of a width x height area of the screen began
+	 * Post: Records that it ends now
+	 */
+	public static void paint(long start, int width, int height) {
+		if (!ENABLED) {
+			return;
+		}
+		long ns = System.nanoTime() - start;
+		INSTANCE.paint.record(ns);
+		PaintEvent event = new PaintEvent();
+		if (event.shouldCommit()) {
+			event.time = ns;
+			event.width = width;
+			event.height = height;
+			event.commit();
+		}
+	}
+
+	/* Pre:  entries >= 1. bytes >= 0.
+	 * Post: Records the size of the undo history
+	 */
+	public static void history(int entries, long bytes) {
+		if (!ENABLED) {
+			return;
+		}
+		INSTANCE.historyEntries = entries;
+		INSTANCE.historyBytes = bytes;
+		HistoryEvent event = new HistoryEvent();
+		if (event.shouldCommit()) {
+			event.entries = entries;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+	/* Pre:  format is not null. start was returned by start() when a save in format began. bytes >= 0.
+	 * Post: Records that the save, of bytes bytes, ends now
+	 */
+	public static void save(String format, long start, long bytes) {
+		if (ENABLED) {
+			record(INSTANCE.saves, "save", format, start, bytes);
+		}
+	}
+
+	/* Pre:  format is not null. start was returned by start() when an open of a file in format began. bytes >= 0.
+	 * Post: Records that the open, of bytes bytes, ends now
+	 */
+	public static void open(String format, long start, long bytes) {
+		if (ENABLED) {
+			record(INSTANCE.opens, "open", format, start, bytes);
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Forgets every latency and duration recorded so far. The size of the history is kept.
+	 */
+	public void reset() {
+		inputToPaint.reset();
+		paint.reset();
+		saves.clear();
+		opens.clear();
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  start was returned by start() when the operation began
+	 * Post: Records the duration of a save or open in format into the histogram of format in byFormat
+	 */
+	private static void record(ConcurrentHashMap<String, Histogram> byFormat, String operation, String format, long start, long bytes) {
+		long ns = System.nanoTime() - start;
+		Histogram h = byFormat.get(format);
+		if (h == null) {
+			byFormat.putIfAbsent(format, new Histogram());
+			h = byFormat.get(format);
+		}
+		h.record(ns);
+		FileEvent event = new FileEvent();
+		if (event.shouldCommit()) {
+			event.operation = operation;
+			event.format = format;
+			event.time = ns;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+	/* Pre:  byFormat is not null
+	 * Post: Returns a snapshot, in ms, of each histogram of byFormat, sorted by format
+	 */
+	private static Map<String, Histogram.Snapshot> snapshots(ConcurrentHashMap<String, Histogram> byFormat) {
+		Map<String, Histogram.Snapshot> result = new TreeMap<String, Histogram.Snapshot>();
+		for (Map.Entry<String, Histogram> e : byFormat.entrySet()) {
+			result.put(e.getKey(), e.getValue().snapshot(MILLIS));
+		}
+		return result;
+	}
+
+	/* INNER CLASS: JFR event of a mouse event shown on screen
+	 */
+	@Name("doodle.InputToPaint")
+	@Label("Input to Paint")
+	@Category("Doodle")
+	@Description("Time from the first mouse event not shown yet to the end of the paint that shows it")
+	static class InputToPaintEvent extends Event {
+		@Label("Latency")
+		@Timespan(Timespan.NANOSECONDS)
+		long latency;
+	}
+
+	/* INNER CLASS: JFR event of a paint of the canvas
+	 */
+	@Name("doodle.Paint")
+	@Label("Paint")
+	@Category("Doodle")
+	@Description("A paint of the canvas")
+	static class PaintEvent extends Event {
+		@Label("Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+	}
+
+	/* INNER CLASS: JFR event of a change of the undo history
+	 */
+	@Name("doodle.History")
+	@Label("History")
+	@Category("Doodle")
+	@Description("Size of the undo history after it changed")
+	static class HistoryEvent extends Event {
+		@Label("Entries")
+		int entries;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	/* INNER CLASS: JFR event of a save or an open
+	 */
+	@Name("doodle.File")
+	@Label("Save or Open")
+	@Category("Doodle")
+	@Description("A doodle saved or opened")
+	static class FileEvent extends Event {
+		@Label("Operation")
+		String operation;
+		@Label("Format")
+		String format;
+		@Label("Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+}
@@ -0,0 +1,43 @@
+import java.util.Map;
+
+/* Interface MetricsMXBean: the metrics of the app as read through JMX, e.g. in JConsole or VisualVM, under the
+ * name Metrics.OBJECT_NAME (see Metrics). Latencies are in us and file durations in ms. Each histogram is read as
+ * a composite of count, mean, p50, p90, p99 and max.
+ */
+public interface MetricsMXBean {
+
+	/* Pre:  None
+	 * Post: Returns the time from the first mouse event not shown yet to the end of the paint that shows it, in us
+	 */
+	public Histogram.Snapshot getInputToPaint();
+
+	/* Pre:  None
+	 * Post: Returns the time of each paint of the canvas, in us
+	 */
+	public Histogram.Snapshot getPaint();
+
+	/* Pre:  None
+	 * Post: Returns the number of entries of the undo history
+	 */
+	public int getHistoryEntries();
+
+	/* Pre:  None
+	 * Post: Returns the bytes held by the undo history, in memory and compressed
+	 */
+	public long getHistoryBytes();
+
+	/* Pre:  None
+	 * Post: Returns the duration of the saves of each format ("binary", "txt", "png", ...), in ms
+	 */
+	public Map<String, Histogram.Snapshot> getSaves();
+
+	/* Pre:  None
+	 * Post: Returns the duration of the opens of each format, in ms
+	 */
+	public Map<String, Histogram.Snapshot> getOpens();
+
+	/* Pre:  None
+	 * Post: Forgets every latency and duration recorded so far
+	 */
+	public void reset();
+}
@@ -0,0 +1,178 @@
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+
+/* This class holds downscaled copies of a TiledCanvas, used to draw it zoomed out. Level 0 is the canvas itself,
+ * level k is half the size of level k - 1, and every level is cut into TiledCanvas.TILE_SIZE tiles, so a tile
+ * of level k covers 2^k x 2^k tiles of the canvas. A tile is built, by averaging 2 x 2 pixels of the level below,
+ * only when it is drawn. Drawing on the canvas only marks the tiles above the changed canvas tile as stale, and
+ * they are rebuilt the next time they are drawn. Tiles above blank canvas tiles are the shared white tile.
+ */
+public class MipmapPyramid {
+
+	private static final int TILE_SIZE = TiledCanvas.TILE_SIZE;
+
+	/********* Instance Variables *********/
+
+	private final TiledCanvas canvas;
+	private final Level[] levels; // levels[k] is level k. levels[0] is unused: it is the canvas.
+
+	/************* Constructor ************/
+
+	/* Pre:  canvas is not null
+	 * Post: Creates an empty pyramid over canvas. Levels are added until one tile holds the whole canvas.
+	 */
+	public MipmapPyramid(TiledCanvas canvas) {
+		this.canvas = canvas;
+		int n = 0;
+		for (int size = Math.max(canvas.getWidth(), canvas.getHeight()); size > TILE_SIZE; size = (size + 1) / 2) {
+			n++;
+		}
+		levels = new Level[n + 1];
+		for (int k = 1; k <= n; k++) {
+			levels[k] = new Level((canvas.getWidth() + (1 << k) - 1) >> k, (canvas.getHeight() + (1 << k) - 1) >> k);
+		}
+	}
+
+	/*********** Getters/Setters **********/
+
+	public int numLevels() { return levels.length; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  scale is positive
+	 * Post: Returns the level to draw at scale: the smallest one that is still at least as large as needed
+	 */
+	public int levelFor(double scale) {
+		int k = 0;
+		while (k + 1 < levels.length && scale <= 1.0 / (2 << k)) {
+			k++;
+		}
+		return k;
+	}
+
+	/* Pre:  (col, row) is a tile of the canvas
+	 * Post: Marks the tiles above canvas tile (col, row) as stale
+	 */
+	public void invalidate(int col, int row) {
+		for (int k = 1; k < levels.length; k++) {
+			col >>= 1;
+			row >>= 1;
+			levels[k].valid.clear(row * levels[k].cols + col);
+		}
+	}
+
+	/* Pre:  g is not null. clip is in canvas coordinates. 0 < level < numLevels().
+	 * Post: Draws the tiles of level that intersect clip with g, each stretched over the area of the canvas it
+	 * 		 covers. Stale tiles are rebuilt first.
+	 */
+	public void paint(Graphics g, Rectangle clip, int level) {
+		clip = clip.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+		if (clip.isEmpty()) {
+			return;
+		}
+		Level l = levels[level];
+		int span = TILE_SIZE << level; // Canvas pixels covered by one tile of level
+		for (int row = clip.y / span; row <= (clip.y + clip.height - 1) / span; row++) {
+			for (int col = clip.x / span; col <= (clip.x + clip.width - 1) / span; col++) {
+				BufferedImage tile = this.tile(level, col, row);
+				int w = Math.min(TILE_SIZE, l.width - col * TILE_SIZE);
+				int h = Math.min(TILE_SIZE, l.height - row * TILE_SIZE);
+				int x = col * span;
+				int y = row * span;
+				g.drawImage(tile, x, y, Math.min(canvas.getWidth(), x + span), Math.min(canvas.getHeight(), y + span), 0, 0, w, h, null);
+			}
+		}
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  (col, row) is a tile of level
+	 * Post: Returns tile (col, row) of level, rebuilding it if it is stale. Level 0 tiles come from the canvas.
+	 */
+	private BufferedImage tile(int level, int col, int row) {
+		if (level == 0) {
+			return canvas.tile(col, row);
+		}
+		Level l = levels[level];
+		int i = row * l.cols + col;
+		if (l.valid.get(i)) {
+			return l.tiles[i];
+		}
+		int childCols = (level == 1) ? canvas.numCols() : levels[level - 1].cols;
+		int childRows = (level == 1) ? canvas.numRows() : levels[level - 1].rows;
+		BufferedImage[] children = new BufferedImage[4];
+		boolean blank = true;
+		for (int k = 0; k < 4; k++) {
+			int c = 2 * col + (k & 1);
+			int r = 2 * row + (k >> 1);
+			if (c < childCols && r < childRows) {
+				children[k] = this.tile(level - 1, c, r);
+				blank &= TiledCanvas.isWhiteTile(children[k]);
+			}
+		}
+		if (blank) {
+			l.tiles[i] = TiledCanvas.whiteTile();
+		} else {
+			if (l.tiles[i] == null || TiledCanvas.isWhiteTile(l.tiles[i])) {
+				l.tiles[i] = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+			}
+			this.reduce(children, l.tiles[i]);
+		}
+		l.valid.set(i);
+		return l.tiles[i];
+	}
+
+	/* Pre:  children holds the 4 tiles below dest (top left, top right, bottom left, bottom right), null for
+	 * 		 those beyond the edge of the canvas
+	 * Post: Fills dest with the children at half size, each pixel the average of 2 x 2 pixels
+	 */
+	private void reduce(BufferedImage[] children, BufferedImage dest) {
+		int half = TILE_SIZE / 2;
+		int[] src = new int[TILE_SIZE * TILE_SIZE];
+		int[] out = new int[half * half];
+		for (int k = 0; k < 4; k++) {
+			if (children[k] == null) {
+				continue;
+			}
+			children[k].getRaster().getDataElements(0, 0, TILE_SIZE, TILE_SIZE, src);
+			for (int y = 0; y < half; y++) {
+				for (int x = 0; x < half; x++) {
+					int i = 2 * y * TILE_SIZE + 2 * x;
+					int a = src[i];
+					int b = src[i + 1];
+					int c = src[i + TILE_SIZE];
+					int d = src[i + TILE_SIZE + 1];
+					int red = ((a >> 16 & 0xFF) + (b >> 16 & 0xFF) + (c >> 16 & 0xFF) + (d >> 16 & 0xFF) + 2) >> 2;
+					int green = ((a >> 8 & 0xFF) + (b >> 8 & 0xFF) + (c >> 8 & 0xFF) + (d >> 8 & 0xFF) + 2) >> 2;
+					int blue = ((a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF) + 2) >> 2;
+					out[y * half + x] = (red << 16) | (green << 8) | blue;
+				}
+			}
+			dest.getRaster().setDataElements((k & 1) * half, (k >> 1) * half, half, half, out);
+		}
+	}
+
+	/* INNER CLASS: One level of the pyramid. tiles[row * cols + col] holds tile (col, row), or null if it was
+	 * 				never built.
+	 */
+	private static class Level {
+
+		final int width; // Size of the level in pixels
+		final int height;
+		final int cols;
+		final int rows;
+		final BufferedImage[] tiles;
+		final BitSet valid; // Tiles that are built and not stale
+
+		Level(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+			this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+			this.tiles = new BufferedImage[cols * rows];
+			this.valid = new BitSet(cols * rows);
+		}
+	}
+}
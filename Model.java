@@ -2,9 +2,17 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -14,11 +22,15 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 public class Model {
 	
 	public static final int MAX_NUM_COLORS = 8; // Maximum number of colors in palette
+	public static final String JOURNAL_NAME = ".doodle.journal"; // Crash journal, in the user's home directory
 
 
 	/********* Instance Variables *********/
 	
-	private IView myView; // The View Associated with this Model 
+	/* Relating to Change Events */
+	private ArrayList<IModelListener> listeners; // Listeners of this model, e.g. parts of the view
+	private ArrayList<EnumSet<ModelEvent>> interests; // interests.get(i) holds the events listeners.get(i) wants
+	private EnumSet<ModelEvent> pendingEvents; // Events not dispatched yet. Guarded by itself
 	
 	/* Relating to Colors */
 	private ArrayList<Color> myColors; // Contains basic 6 colors. Allows the addition of two more custom colors.
@@ -31,6 +43,11 @@ public class Model {
 	public static final int THICK_STROKE = 5;
 	private int currentStrokeSize = MED_STROKE; // Default
 	
+	/* Relating to the Tool */
+	public static final int DEFAULT_TOLERANCE = 32;
+	private Tool currentTool = Tool.PEN; // Default
+	private int fillTolerance = DEFAULT_TOLERANCE; // Largest color difference the fill tool spreads over
+	
 	/* Relating to Drawing on Canvas */
 	private int strokeCurrX = 0;
 	private int strokeCurrY = 0;
@@ -38,13 +55,22 @@ public class Model {
 	private int strokeStartY =0;
 	private boolean startedToDraw = false;
 	private int counter = 1;
+	private StrokeCommand currentStroke; // The stroke being drawn. null when the mouse is up
+	private Document pendingDocument; // Read while a stroke was drawn: shown once the stroke ends. null when none
 	
-	/* To Implement Undo */
-	private Stack<Image> undoStack;
-	private Stack<Image> redoStack;
+	/* Relating to the Canvas and Undo */
+	private LayerStack layers; // The surfaces the user draws on, blended together. Only their inked tiles are allocated
+	private int activeLayer = 0; // Index of the layer strokes are drawn on
+	private TileHistory history; // Log of every stroke, with a raster keyframe every few strokes
 	
 	/* Relating to Saving */
 	private ArrayList<FileNameExtensionFilter> fileExtensions; // Allowed file extensions
+	private ExecutorService ioExecutor; // Runs saves and opens one at a time, off the Event Dispatch Thread
+	
+	/* Relating to Crash Recovery */
+	private StrokeJournal journal; // Log of the doodle being drawn
+	private int journalStart = 0; // history.numEvicted() when the journal began: its positions count from its base
+	private File recoveryFile; // Journal left by a session that did not exit normally, or null
 	
 	/* Relating to Slider */
 	private int knobLocation = 0; // Default
@@ -54,31 +80,70 @@ public class Model {
 	
 	/************* Constructor ************/
 	public Model() {
+		this(new File(System.getProperty("user.home"), JOURNAL_NAME));
+	}
+	
+	/* Pre:  journalFile is not null
+	 * Post: Creates a model whose crash journal is journalFile, e.g. a scratch file for benchmarks (see Bench)
+	 */
+	public Model(File journalFile) {
 		
 		// Initialize Colors
+		listeners = new ArrayList<IModelListener>();
+		interests = new ArrayList<EnumSet<ModelEvent>>();
+		pendingEvents = EnumSet.noneOf(ModelEvent.class);
 		this.initializeColors();
 		this.initializeStrokeSizes();
-		undoStack = new Stack<Image>();
-		redoStack = new Stack<Image>();
+		history = new TileHistory();
+		history.setSpillEnabled(true); // History over budget goes to a scratch file instead of being dropped
 		this.initializeFileExtensions();
+		ioExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Doodle I/O");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.initializeJournal(journalFile);
 	}
 		
 	/************* MVC Methods ************/
 	
-	/* Pre: aView is not null
-	 * Post: Associates aView with this Model
+	/* Pre:  l is not null. events is not empty.
+	 * Post: l will be notified of the given kinds of changes to this model
 	 */
-	public void setView(IView aView) {
-		myView = aView;
-		this.updateView();
+	public void addListener(IModelListener l, EnumSet<ModelEvent> events) {
+		listeners.add(l);
+		interests.add(EnumSet.copyOf(events));
 	}
 	
 	/* Pre:  None
-	 * Post: Updates myView. This method is called when changes are made to this model.
+	 * Post: l is no longer notified of changes to this model
 	 */
-	public void updateView() {
-		if(myView != null) {
-			myView.updateView();
+	public void removeListener(IModelListener l) {
+		int i = listeners.indexOf(l);
+		if (i >= 0) {
+			listeners.remove(i);
+			interests.remove(i);
+		}
+	}
+	
+	/* Pre:  None
+	 * Post: Records that e happened. Listeners are notified once, on the Event Dispatch Thread, of all the
+	 * 		 events recorded until then.
+	 */
+	public void fire(ModelEvent e) {
+		boolean schedule;
+		synchronized (pendingEvents) {
+			schedule = pendingEvents.isEmpty();
+			pendingEvents.add(e);
+		}
+		if (schedule) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					dispatchEvents();
+				}
+			});
 		}
 	}
 	
@@ -86,8 +151,24 @@ public class Model {
 	
 	public ArrayList<Color> Colors() 		{ return myColors; 	  }
 	public ArrayList<Integer> StrokeSizes() { return strokeSizes; }
-	public Stack<Image> undo()				{ return undoStack;	  }
-	public Stack<Image> redo()				{ return redoStack;	  }
+	public LayerStack getLayers()			{ return layers;	  }
+	public int getActiveLayer()				{ return activeLayer; }
+	public int historySize()				{ return history.size();  }
+	public int undoSize()					{ return history.undoSize(); }
+	public int redoSize()					{ return history.redoSize(); }
+	public long historyBytes()				{ return history.bytes();	 }
+	
+	/* Pre:  None
+	 * Post: Returns the canvas of the layer strokes are drawn on, or null before the first canvas is created
+	 */
+	public TiledCanvas getCanvas() {
+		return (layers == null) ? null : layers.getLayer(activeLayer).getCanvas();
+	}
+	
+	/* Pre:  bytes is positive
+	 * Post: Sets the memory budget of the undo history. Old strokes are compressed, then spilled to disk, to stay within it.
+	 */
+	public void setHistoryBudget(long bytes) { history.setBudget(bytes); }
 
 	public int getStrokeCurrX()   		{ return strokeCurrX;   }
 	public int getStrokeCurrY()   		{ return strokeCurrY;   }
@@ -96,37 +177,63 @@ public class Model {
 	public void setStrokeCurrX(int x)   { strokeCurrX = x;  	}
 	public void setStrokeCurrY(int y)   { strokeCurrY = y;  	}	
 	
+	/* The view is not updated: the canvas repaints only the area a segment touched */
 	public void setStrokeStartCoor(int x, int y) {
 		strokeStartX = x;
 		strokeStartY = y;
-		this.updateView();
 	}
 	
 	public int counter() {	return counter; }
 	
-	public boolean startedToDraw()	{ return startedToDraw; }
+	public StrokeCommand getCurrentStroke() { return currentStroke; }
 	
-	public void setStartedToDraw(Boolean bool) { 
-		startedToDraw = bool; 
-		this.updateView();
+	/* Pre:  None
+	 * Post: Starts a new stroke at (x, y) with the current color and stroke size
+	 */
+	public void beginStroke(int x, int y) {
+		currentStroke = new StrokeCommand(currentColor, currentStrokeSize, x, y);
+		currentStroke.setLayer(activeLayer);
+		this.setStrokeStartCoor(x, y);
 	}
 	
+	public boolean startedToDraw()	{ return startedToDraw; }
+	
+	public void setStartedToDraw(Boolean bool) { startedToDraw = bool; }
+	
 	public Color getCurrentColor() 		 { return currentColor; }
-	public void setCurrentColor(Color c) { currentColor = c; 	}
+	public void setCurrentColor(Color c) { 
+		currentColor = c;
+		this.fire(ModelEvent.TOOL_CHANGED);
+	}
 	
-	public void setCurrentStrokeSize(int size) { currentStrokeSize = size; }
+	public void setCurrentStrokeSize(int size) { 
+		currentStrokeSize = size;
+		this.fire(ModelEvent.TOOL_CHANGED);
+	}
 	public int getCurrentStrokeSize()		   { return currentStrokeSize; }
 	
+	public Tool getCurrentTool()			   { return currentTool; 	   }
+	public void setCurrentTool(Tool t) {
+		currentTool = t;
+		this.fire(ModelEvent.TOOL_CHANGED);
+	}
+	
+	public int getFillTolerance()			   { return fillTolerance; 	   }
+	
+	/* Pre:  0 <= tolerance <= FillCommand.MAX_TOLERANCE
+	 * Post: Sets how far, in any of red, green and blue, a color may be from the clicked one and still be filled
+	 */
+	public void setFillTolerance(int tolerance) {
+		fillTolerance = tolerance;
+		this.fire(ModelEvent.TOOL_CHANGED);
+	}
+	
 	public ArrayList<FileNameExtensionFilter> fileExtensions() {  return fileExtensions; }
 	
 	public int getKnobLocation() 		 {	return this.knobLocation; }
 	public void setKnobLocation(int loc) {	
 		this.knobLocation = loc;  
-		try {
-			this.updateView();
-		} catch(StackOverflowError e) {
-			// do nothing
-		}
+		this.fire(ModelEvent.HISTORY_CHANGED);
 	}
 	
 	public boolean hasUndoed() { return hasUndoed(); }
@@ -134,42 +241,173 @@ public class Model {
 	
 	/*********** Public Methods ***********/
 
+	/* Pre:  0 <= numToUndo < undoSize()
+	 * Post: Moves the history numToUndo entries back
+	 */
 	public void doUndo(int numToUndo) {
 		this.hasUndoed = true;
-		System.out.println("--In doUndo--");
-		for(int i=0; i< numToUndo; i++) {
-			Image m = (Image)this.undo().pop();
-			this.redo().push(m);
-			System.out.println("Current Size of Undo Stack: " + this.undo().size());
-			System.out.println("Current Size of Redo Stack: " + this.redo().size());
+		this.seek(history.cursor() - numToUndo);
+	}
+	
+	/* Pre:  None
+	 * Post: Moves the history to its last entry
+	 */
+	public void resetRedo() {
+		this.seek(history.size() - 1);
+	}
+	
+	/* Pre:  0 <= index < historySize()
+	 * Post: Shows history entry index on the canvas. The cost does not depend on the length of the history:
+	 * 		 at most one keyframe is restored and KEYFRAME_INTERVAL - 1 strokes are drawn.
+	 */
+	public void seek(int index) {
+		if (index == history.cursor()) {
+			return;
 		}
-		this.updateView();
+		history.seek(layers, index);
+		this.fire(ModelEvent.CANVAS_CHANGED);
+		this.fire(ModelEvent.HISTORY_CHANGED);
+	}
+	
+	/* Pre:  None
+	 * Post: Drops every entry that could be redone
+	 */
+	public void clearRedo() {
+		history.truncate();
+		this.fire(ModelEvent.HISTORY_CHANGED);
 	}
 	
+	/* Pre:  width and height are positive
+	 * Post: Replaces the layers with a white background of the given size and makes it the first history entry
+	 */
+	public void newCanvas(int width, int height) {
+		layers = new LayerStack(width, height);
+		activeLayer = 0;
+		history.start(layers);
+		journalStart = 0;
+		journal.begin(layers);
+		this.fire(ModelEvent.DOCUMENT_LOADED);
+	}
 	
-	public void resetRedo() {
-		System.out.println("in reset redo");
-		for(int i=0; i<this.redo().size(); i++) {
-			Image m = (Image)this.redo().pop();
-			this.undo().push(m);
+	/* Pre:  None
+	 * Post: Grows every layer so it is at least width x height. Their pixels stay in place and only the new area,
+	 * 		 blank, is added: the cost does not depend on the size of the canvas, and no history entry is copied.
+	 */
+	public void growCanvas(int width, int height) {
+		if (width <= layers.getWidth() && height <= layers.getHeight()) {
+			return;
 		}
+		layers.grow(width, height);
+		history.grow(layers);
+		journal.grow(layers.getWidth(), layers.getHeight());
+		this.fire(ModelEvent.CANVAS_CHANGED);
+	}
+	
+	/* Pre:  layers were created
+	 * Post: Adds a clear layer on top and draws on it from now on. The picture does not change.
+	 */
+	public void addLayer() {
+		int i = layers.addLayer("Layer " + layers.size());
+		history.addLayer(layers);
+		journal.layer(i, layers.getLayer(i));
+		activeLayer = i;
+		this.fire(ModelEvent.LAYERS_CHANGED);
+	}
+	
+	/* Pre:  0 <= i < number of layers
+	 * Post: Draws on layer i from now on
+	 */
+	public void selectLayer(int i) {
+		activeLayer = i;
+		this.fire(ModelEvent.LAYERS_CHANGED);
+	}
+	
+	/* Pre:  0 <= i < number of layers
+	 * Post: Shows or hides layer i. Only the tiles it has pixels on are blended again.
+	 */
+	public void setLayerVisible(int i, boolean visible) {
+		layers.setVisible(i, visible);
+		this.layerChanged(i);
+	}
+	
+	/* Pre:  0 <= i < number of layers. 0 <= opacity <= Layer.MAX_OPACITY.
+	 * Post: Sets the opacity of layer i, in percent. Only the tiles it has pixels on are blended again.
+	 */
+	public void setLayerOpacity(int i, int opacity) {
+		layers.setOpacity(i, opacity);
+		this.layerChanged(i);
+	}
+	
+	/* Pre:  0 <= i < number of layers. blend is not null.
+	 * Post: Sets how layer i is blended with the layers below it. Only the tiles it has pixels on are blended again.
+	 */
+	public void setLayerBlend(int i, BlendMode blend) {
+		layers.setBlend(i, blend);
+		this.layerChanged(i);
+	}
+
+	/* Pre:  The current stroke has been drawn on the canvas of its layer
+	 * Post: Adds the current stroke to the history and ends it
+	 */
+	public void addToStack() {
+		history.commit(layers, currentStroke);
+		journal.append(currentStroke, this.journalPosition());
+		currentStroke = null;
+		knobLocation = Math.min(knobLocation, history.size() - 1); // The oldest strokes may have been dropped
+		this.fire(ModelEvent.HISTORY_CHANGED); // The canvas already shows the stroke
+		this.showPending();
 	}
 	
+	/* Pre:  None
+	 * Post: Ends the current stroke without adding it to the history, e.g. when the mouse was only clicked
+	 */
+	public void cancelStroke() {
+		currentStroke = null;
+		this.showPending();
+	}
 	
 	/* Pre:  None
-	 * Post: Adds img to undo stack
+	 * Post: Fills the region around (x, y) with the current color (see FloodFill) and adds the fill to the
+	 * 		 history. Its undo record is made of the tiles the fill changed. Nothing is added if no pixel changed.
+	 */
+	public void fill(int x, int y) {
+		FillCommand fill = new FillCommand(currentColor, fillTolerance, x, y);
+		fill.setLayer(activeLayer);
+		this.getCanvas().draw(fill);
+		if (fill.getBounds().isEmpty()) {
+			return;
+		}
+		history.commit(layers, fill);
+		journal.append(fill, this.journalPosition());
+		knobLocation = Math.min(knobLocation, history.size() - 1); // The oldest strokes may have been dropped
+		this.fire(ModelEvent.CANVAS_CHANGED);
+		this.fire(ModelEvent.HISTORY_CHANGED);
+	}
+	
+	/* Pre:  filter is not null. filter.getMin() <= amount <= filter.getMax().
+	 * Post: Applies filter to the whole canvas of the active layer (see RasterFilter) and adds it to the history as
+	 * 		 one entry. Nothing is added if the filter cannot change the canvas.
 	 */
-	public void addToStack(Image img) {
-		this.undo().push(img);
-		this.updateView();
+	public void applyFilter(Filter filter, int amount) {
+		FilterCommand command = new FilterCommand(filter, amount);
+		command.setLayer(activeLayer);
+		this.getCanvas().draw(command);
+		if (command.getBounds().isEmpty()) {
+			return;
+		}
+		history.commit(layers, command);
+		journal.append(command, this.journalPosition());
+		knobLocation = Math.min(knobLocation, history.size() - 1); // The oldest strokes may have been dropped
+		this.fire(ModelEvent.CANVAS_CHANGED);
+		this.fire(ModelEvent.HISTORY_CHANGED);
 	}
 	
 	/* Pre:  undo stack is initialized
 	 * Post: resets this model - sets everything to default values
 	 */
 	public void reset() {
-		this.undo().removeAllElements();
-		this.redo().removeAllElements();
+		history.clear();
+		currentStroke = null;
 		this.setStartedToDraw(false);
 		this.setCurrentColor(Color.BLACK); // Default
 		this.setCurrentStrokeSize(MED_STROKE); // Default
@@ -177,14 +415,16 @@ public class Model {
 		this.knobLocation = 0;
 		this.hasUndoed = false;
 		this.inUndoOperation = false;
-		this.updateView();
+		this.fire(ModelEvent.DOCUMENT_LOADED);
 	}
 	
 	/* Pre:   saveDialog is not null
-	 * Post:  Saves the image in one of the following formats: Binary, JPG, PNG, GIF, BMP
+	 * Post:  Starts saving a copy of the image, on the I/O thread, in one of the following formats: Binary, JPG,
+	 * 		  PNG, GIF, BMP. Returns the running task. Drawing can go on while it runs.
 	 */
-	public void save(JFileChooser saveDialog) {
+	public FileTask<Boolean> save(JFileChooser saveDialog) {
     	File aFile = saveDialog.getSelectedFile();
+    	String format = null;
 		if ( saveDialog.getFileFilter() instanceof FileNameExtensionFilter) { // If user doesn't select all files
 			FileNameExtensionFilter myFilter = (FileNameExtensionFilter) saveDialog.getFileFilter();		
 	        if( myFilter.getDescription() == "binary") { // save in binary format
@@ -193,40 +433,193 @@ public class Model {
 	        		String newName = aFile.getPath().substring(0, index);
 	        		aFile = new File(newName);
 	        	}
-	        	this.saveInBinaryFormat(aFile);
-	        } else if(myFilter.getDescription() == "txt") { // Save in text format
+	        	format = "binary";
+	        } else { // Save in TXT, JPG, GIF, BMP, PNG Format
 	        	aFile = new File(saveDialog.getSelectedFile() + "." + saveDialog.getFileFilter().getDescription());
-	        	this.saveInTextFormat(aFile);
-	        } else { // Save in JPG, GIF, BMP, PNG Format
-	        	aFile = new File(saveDialog.getSelectedFile() + "." + saveDialog.getFileFilter().getDescription());
-	           this.saveInImageFormat(aFile, saveDialog.getFileFilter().getDescription());
+	        	format = saveDialog.getFileFilter().getDescription();
 	        }
 		} else { // If user selects all files
 			assert(saveDialog.getFileFilter().getDescription().equals("All Files"));
 			String ext = getFileExtension(aFile);
 			if (ext == "") {
-				this.saveInBinaryFormat(aFile);
-			} else if( ext.equals("jpg") | ext.equals("png") | ext.equals("gif") | ext.equals("bmp") ) {
-				this.saveInImageFormat(aFile, ext);
-			} else if ( ext.equals("txt") ) {
-				this.saveInTextFormat(aFile);
+				format = "binary";
+			} else if( ext.equals("jpg") | ext.equals("png") | ext.equals("gif") | ext.equals("bmp") | ext.equals("txt") ) {
+				format = ext;
 			}
 		}
+		return this.save(aFile, format);
+	}
+	
+	/* Pre:   aFile is not null. format is "binary", "txt", "jpg", "png", "gif", "bmp", or null if it is unknown.
+	 * Post:  Starts saving a copy of the image to aFile, on the I/O thread, in the given format. Returns the running
+	 * 		  task, which returns false if the format is unknown. Drawing can go on while it runs. The copy is written
+	 * 		  to a temporary file next to aFile, renamed over aFile once complete, so a save that is cancelled or
+	 * 		  fails leaves aFile as it was.
+	 */
+	public FileTask<Boolean> save(File aFile, String format) {
+		final String fileFormat = format;
+		final TiledCanvas snapshot = layers.getComposite().copy(); // Shares its tiles: the layers may change while the task runs
+		final TileHistory.Saved saved = ("binary".equals(format) || "txt".equals(format)) ? history.saved(layers) : null; // Read on the I/O thread
+		FileTask<Boolean> task = new FileTask<Boolean>(aFile) {
+			protected Boolean doInBackground() throws Exception {
+				long start = Metrics.start();
+				if (fileFormat == null) { // Unknown extension: nothing is saved
+					return false;
+				}
+				File temp = File.createTempFile("doodle", ".part", getFile().getAbsoluteFile().getParentFile());
+				try {
+					if (fileFormat.equals("binary")) {
+						saveInBinaryFormat(temp, snapshot, saved.firstLayers(), saved.strokes(), this);
+					} else if (fileFormat.equals("txt")) {
+						saveInTextFormat(temp, saved.firstLayers(), saved.strokes(), this);
+					} else {
+						saveInImageFormat(temp, fileFormat, snapshot.toImage(), this);
+					}
+					this.checkCancelled();
+					Files.move(temp.toPath(), getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					temp.delete(); // Only left if the save was cancelled or failed
+				}
+				this.setProgress(100);
+				Metrics.save(fileFormat, start, getFile().length());
+				return true;
+			}
+		};
+		ioExecutor.execute(task);
+		return task;
 	}
 	
 	/* Pre:	 openDialog is not null
-	 * Post: Opens the file selected by user
-	 */
-	public void openFile(JFileChooser openDialog) {
-		File aFile = openDialog.getSelectedFile();
-		String ext = getFileExtension(aFile);
-		boolean isImage = (ext.equals("jpg") | ext.equals("png") | ext.equals("gif") | ext.equals("bmp") );
-		if(isImage) { 
-			this.openImageFile(aFile);
-		} else if (ext == "") { // dont forget to reset
-			this.openBinaryFile(aFile);
+	 * Post: Starts reading the file selected by user on the I/O thread and returns the running task. Once the file
+	 * 		 is read, the model is reset and shows it, with its history if the file has one. The current doodle is
+	 * 		 kept if the task fails or is cancelled.
+	 */
+	public FileTask<Document> openFile(JFileChooser openDialog) {
+		return this.openFile(openDialog.getSelectedFile());
+	}
+	
+	/* Pre:	 aFile is not null
+	 * Post: Starts reading aFile, whose format is given by its extension, on the I/O thread and returns the running
+	 * 		 task. Once the file is read, the model is reset and shows it (see openFile(JFileChooser)).
+	 */
+	public FileTask<Document> openFile(File aFile) {
+		final String ext = getFileExtension(aFile);
+		final long budget = history.getBudget();
+		FileTask<Document> task = new FileTask<Document>(aFile) {
+			private final AtomicReference<Document> read = new AtomicReference<Document>(); // Until done() takes it
+			protected Document doInBackground() throws Exception {
+				long start = Metrics.start();
+				boolean isImage = (ext.equals("jpg") | ext.equals("png") | ext.equals("gif") | ext.equals("bmp") );
+				Document doc = null;
+				if(isImage) { 
+					doc = new Document(new LayerStack(TiledCanvas.fromImage(Renderer.flatten(openImageFile(getFile(), this)))), null);
+				} else if (ext == "") {
+					doc = openBinaryFile(getFile(), budget, this);
+				} else if (ext.equals("txt")) {
+					doc = openTextFile(getFile(), budget, this);
+				}
+				if (doc != null) {
+					Metrics.open((ext == "") ? "binary" : ext, start, getFile().length());
+				}
+				read.set(doc);
+				if (this.isCancelled()) {
+					discard(read.getAndSet(null)); // done() may have run already
+				}
+				return doc;
+			}
+			protected void done() {
+				Document doc = read.getAndSet(null);
+				if (this.isCancelled()) {
+					discard(doc); // Or by doInBackground(), if it is still reading
+					return;
+				}
+				try {
+					this.get(); // Throws what doInBackground() threw
+					if (doc != null) {
+						showWhenIdle(doc);
+					}
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+		};
+		ioExecutor.execute(task);
+		return task;
+	}
+	
+	/* Pre:  None
+	 * Post: Returns true if the last session did not exit normally and left a journal that can be recovered
+	 */
+	public boolean canRecover() {
+		return recoveryFile != null;
+	}
+	
+	/* Pre:  canRecover()
+	 * Post: Starts rebuilding the doodle of the last session from its journal, on the I/O thread, and returns the
+	 * 		 running task. Once it is rebuilt, the model is reset and shows it.
+	 */
+	public FileTask<Document> recover() {
+		final long budget = history.getBudget();
+		FileTask<Document> task = new FileTask<Document>(recoveryFile) {
+			private final AtomicReference<Document> read = new AtomicReference<Document>(); // Until done() takes it
+			protected Document doInBackground() throws Exception {
+				TileHistory h = new TileHistory(budget);
+				h.setSpillEnabled(true);
+				Document doc;
+				try {
+					LayerStack l = StrokeJournal.replay(getFile(), h, this);
+					doc = (l == null) ? null : new Document(l, h);
+				} catch (IOException e) {
+					h.clear(); // Deletes its spill file
+					throw e;
+				}
+				read.set(doc);
+				if (this.isCancelled()) {
+					discard(read.getAndSet(null)); // done() may have run already
+				}
+				return doc;
+			}
+			protected void done() {
+				Document doc = read.getAndSet(null);
+				if (this.isCancelled()) {
+					discard(doc); // Or by doInBackground(), if it is still replaying
+					return;
+				}
+				try {
+					this.get(); // Throws what doInBackground() threw
+					if (doc != null) {
+						showWhenIdle(doc);
+					}
+					discardRecovery();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+		};
+		ioExecutor.execute(task);
+		return task;
+	}
+	
+	/* Pre:  None
+	 * Post: Deletes the journal of the last session
+	 */
+	public void discardRecovery() {
+		if (recoveryFile != null) {
+			recoveryFile.delete();
+			recoveryFile = null;
 		}
-	    this.updateView();
+	}
+	
+	/* Pre:  None
+	 * Post: Called when the user exits. Writes what the journal has pending and deletes it, since there is nothing
+	 * 		 to recover.
+	 */
+	public void close() {
+		journal.close(true);
 	}
 	
 	public void incrementCounter() {
@@ -235,6 +628,110 @@ public class Model {
 	
 	/********** Private Methods ***********/
 	
+	/* Pre:  Called on the Event Dispatch Thread
+	 * Post: Notifies every listener of the pending events it is interested in
+	 */
+	private void dispatchEvents() {
+		EnumSet<ModelEvent> events;
+		synchronized (pendingEvents) {
+			events = EnumSet.copyOf(pendingEvents);
+			pendingEvents.clear();
+		}
+		if (events.contains(ModelEvent.HISTORY_CHANGED) || events.contains(ModelEvent.DOCUMENT_LOADED)) {
+			Metrics.history(history.size(), history.bytes());
+		}
+		for (int i = 0; i < listeners.size(); i++) {
+			EnumSet<ModelEvent> wanted = EnumSet.copyOf(interests.get(i));
+			wanted.retainAll(events);
+			if (!wanted.isEmpty()) {
+				listeners.get(i).modelChanged(wanted);
+			}
+		}
+	}
+	
+	/* Pre:  i is a layer whose properties just changed
+	 * Post: Journals them and reports the change
+	 */
+	private void layerChanged(int i) {
+		journal.layer(i, layers.getLayer(i));
+		this.fire(ModelEvent.LAYERS_CHANGED);
+		this.fire(ModelEvent.CANVAS_CHANGED);
+	}
+	
+	/* Pre:  doc is not null. Called on the Event Dispatch Thread.
+	 * Post: Shows doc now, or once the current stroke ends if one is being drawn: the view draws it on the layers
+	 * 		 until then, and the history must still be there to take it.
+	 */
+	private void showWhenIdle(Document doc) {
+		if (currentStroke != null) {
+			discard(pendingDocument); // Replaced, as it would have been if shown
+			pendingDocument = doc;
+		} else {
+			this.show(doc);
+		}
+	}
+	
+	/* Pre:  doc is null or will not be shown
+	 * Post: Clears the history of doc, if it has one, which deletes its spill file
+	 */
+	private static void discard(Document doc) {
+		if (doc != null && doc.history != null) {
+			doc.history.clear();
+		}
+	}
+	
+	/* Pre:  No stroke is being drawn
+	 * Post: Shows the document read while the last stroke was drawn, if any
+	 */
+	private void showPending() {
+		if (pendingDocument != null) {
+			Document doc = pendingDocument;
+			pendingDocument = null;
+			this.show(doc);
+		}
+	}
+	
+	/* Pre:  doc is not null
+	 * Post: Resets this model and shows doc, with its history if it has one
+	 */
+	private void show(Document doc) {
+		this.reset(); // this sets startedToDraw to False
+		startedToDraw = true; // Otherwise, it'll paint blank screen on opened image
+		layers = doc.layers;
+		activeLayer = 0;
+		if (doc.history != null) {
+			history = doc.history;
+			knobLocation = history.size() - 1;
+		} else {
+			history.start(layers);
+		}
+		journalStart = history.numEvicted(); // Entries evicted while the history was rebuilt are not in the journal
+		journal.begin(doc.journalBase, doc.strokes);
+		this.fire(ModelEvent.DOCUMENT_LOADED);
+	}
+	
+	/* Pre:  The current entry of the history was just added
+	 * Post: Returns its position in the journal
+	 */
+	private int journalPosition() {
+		return history.numEvicted() - journalStart + history.cursor();
+	}
+	
+	/* Pre:  file is not null
+	 * Post: Creates the journal in file. A journal left by the last session is moved aside, so the new one does not
+	 * 		 overwrite it before the user chooses to recover it.
+	 */
+	private void initializeJournal(File file) {
+		if (file.length() > 0) {
+			File aside = new File(file.getPath() + ".recover");
+			aside.delete();
+			if (file.renameTo(aside)) {
+				recoveryFile = aside;
+			}
+		}
+		journal = new StrokeJournal(file);
+	}
+	
 	/* Pre:  none
 	 * Post: Creates an array with 6 basic colors and two colors to be chosen by user.
 	 */
@@ -272,52 +769,43 @@ public class Model {
 		fileExtensions.add(new FileNameExtensionFilter("bmp", "bmp"));
 	}
 
-	/* Pre:  aFile is not null
-	 * Post: saves the canvas in binary format
+	/* Pre:  aFile, img and first are not null. Drawing strokes on the layers of first, then blending them, gives img.
+	 * Post: saves img, and the history made of first and strokes, in the native binary format (see DoodleFile)
 	 */
-	private void saveInBinaryFormat(File aFile) {
-		try {
-			FileOutputStream fos = new FileOutputStream(aFile);
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
-			ImageIcon img = new ImageIcon((Image)this.undo().peek());
-			oos.writeObject(img);
-			oos.close();
-			fos.close();
-		} catch (FileNotFoundException e1) { 
-			System.out.println(e1.getMessage());
-			e1.printStackTrace();
-		} catch (IOException e2) { 
-			System.out.println(e2.getMessage());
-			e2.printStackTrace();
-		}
+	private void saveInBinaryFormat(File aFile, TiledCanvas img, LayerStack first, ArrayList<StrokeCommand> strokes, FileTask<?> task) throws IOException {
+		DoodleFile.write(aFile, img, first, strokes, task);
 	}
 	
-	/* Pre:  aFile is not null
-	 * Post: saves the canvas in binary format
+	/* Pre:  aFile, first and strokes are not null. Drawing strokes on the layers of first gives the layers shown.
+	 * Post: saves strokes, and the layers they are drawn on with what was under them (e.g. an opened image), in
+	 * 		 text format (see StrokeTextFile)
 	 */
-	private void saveInTextFormat(File aFile) {
-		// NOT IMPLEMENTED
+	private void saveInTextFormat(File aFile, LayerStack first, ArrayList<StrokeCommand> strokes, FileTask<?> task) throws IOException {
+		StrokeTextFile.write(aFile, first, strokes, task);
 	}
 	
-	/* Pre:  aFile is not null
-	 * Post: saves the canvas in JPG, BMP, PNG or GIF Format
+	/* Pre:  aFile and bi are not null
+	 * Post: saves bi in JPG, BMP, PNG or GIF Format. PNG is encoded on every core (see PngEncoder).
 	 */
-	private void saveInImageFormat(File aFile, String extension) {
-		BufferedImage bi = null;
-		if (this.undo().peek() instanceof BufferedImage) {
-			bi = (BufferedImage)this.undo().peek();
-		} else {
-			bi = new BufferedImage(this.undo().peek().getWidth(null), this.undo().peek().getHeight(null), BufferedImage.TYPE_INT_ARGB);
-			Graphics2D aG = (Graphics2D)bi.getGraphics();
-			aG.drawImage(this.undo().peek(), 0, 0, null);
+	private void saveInImageFormat(File aFile, String extension, BufferedImage bi, FileTask<?> task) throws IOException {
+		if (extension.equals("png")) {
+			PngEncoder.write(aFile, bi, task);
+			return;
 		}
-		assert(bi!=null);
-         try {
-         	FileOutputStream fos = new FileOutputStream(aFile);
-			ImageIO.write(bi, extension, fos);
-			fos.close();
-		} catch (IOException e) {
-				e.printStackTrace();
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(extension);
+		if (!writers.hasNext()) {
+			throw new IOException("No writer for format " + extension);
+		}
+		ImageWriter writer = writers.next();
+		ImageOutputStream ios = ImageIO.createImageOutputStream(new FileOutputStream(aFile));
+		try {
+			writer.setOutput(ios);
+			task.track(writer);
+			writer.write(bi);
+			task.checkCancelled(); // The writer stops early when aborted
+		} finally {
+			writer.dispose();
+			ios.close();
 		}
 	}
 	
@@ -334,43 +822,137 @@ public class Model {
 	}
 	
 	/* Pre:  aFile is not null
-	 * Post: loads the image saved in aFile onto the canvas
+	 * Post: Returns the image saved in aFile
 	 */
-	private void openImageFile(File aFile) {
-		this.reset(); // this sets startedToDraw to False
-		this.startedToDraw = true; // Otherwise, it'll paint blank screen on opened image
-		BufferedImage imgToOpen = null;
+	private Image openImageFile(File aFile, FileTask<?> task) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(aFile);
+		if (iis == null) {
+			throw new FileNotFoundException(aFile.getPath());
+		}
 		try {
-		    imgToOpen = ImageIO.read(aFile);
-		    this.undo().push(imgToOpen);
-		} catch (IOException e) {
-			System.err.println(e.getMessage());
-		} 
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) {
+				throw new IOException("Not an image: " + aFile.getName());
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis);
+				task.track(reader);
+				BufferedImage img = reader.read(0);
+				task.checkCancelled(); // The reader stops early when aborted
+				return img;
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			iis.close();
+		}
 	}
 	
 	/* Pre:  aFile is not null. aFile is a binary File
-	 * Post: Deserializes object stored in binary file 
+	 * Post: Reads a file in the native binary format. If it holds a history, its picture is first handed to the
+	 * 		 view as a preview (see FileTask.showPreview()), then the history is rebuilt, with the given budget, by
+	 * 		 drawing its strokes. Files saved by older versions (a serialized ImageIcon) can still be read.
 	 */
-	private void openBinaryFile(File aFile) {
-		this.reset(); // this sets startedToDraw to False
-		this.startedToDraw = true; // Otherwise, it'll paint blank screen on opened image
-		FileInputStream fileIn;
-		ImageIcon myImage = null;
+	private Document openBinaryFile(File aFile, long budget, FileTask<?> task) throws IOException, ClassNotFoundException {
+		if (!DoodleFile.isDoodleFile(aFile)) {
+			return new Document(new LayerStack(TiledCanvas.fromImage(Renderer.flatten(this.openSerializedFile(aFile, task)))), null);
+		}
+		DoodleFile doodle = new DoodleFile(aFile);
+		if (!doodle.hasHistory()) {
+			return new Document(new LayerStack(doodle.readCanvas(task)), null);
+		}
+		task.showPreview(doodle.readCanvas(task)); // Shown while the history, whose cost grows with its length, is rebuilt
+		LayerStack l = doodle.readHistoryLayers(task);
+		ArrayList<StrokeCommand> strokes = doodle.readStrokes();
+		TileHistory h = new TileHistory(budget);
+		h.setSpillEnabled(true);
+		h.start(l);
 		try {
-			fileIn = new FileInputStream(aFile);
-			ObjectInputStream in = new ObjectInputStream(fileIn);
-			myImage = (ImageIcon)in.readObject();
+			for (int i = 0; i < strokes.size(); i++) {
+				task.checkCancelled();
+				StrokeCommand stroke = strokes.get(i);
+				if (stroke.getLayer() >= l.size()) {
+					throw new IOException("Stroke on a missing layer in " + aFile.getName());
+				}
+				l.getLayer(stroke.getLayer()).getCanvas().draw(stroke);
+				h.commit(l, stroke);
+				task.reportProgress(i + 1, strokes.size());
+			}
+		} catch (IOException e) {
+			h.clear(); // Deletes its spill file
+			throw e;
+		}
+		return new Document(l, h);
+	}
+	
+	/* Pre:  aFile is not null. aFile is in text format.
+	 * Post: Reads the strokes of aFile one at a time and draws them on the layers it declares. The history is
+	 * 		 rebuilt, with the given budget, as they are drawn.
+	 */
+	private Document openTextFile(File aFile, long budget, FileTask<?> task) throws IOException {
+		StrokeTextFile text = new StrokeTextFile(aFile, task);
+		TileHistory h = new TileHistory(budget);
+		h.setSpillEnabled(true);
+		try {
+			LayerStack l = text.getLayers();
+			h.start(l);
+			StrokeCommand stroke;
+			while ((stroke = text.readStroke()) != null) {
+				l.getLayer(stroke.getLayer()).getCanvas().draw(stroke);
+				h.commit(l, stroke);
+			}
+			return new Document(l, h);
+		} catch (IOException e) {
+			h.clear(); // Deletes its spill file
+			throw e;
+		} finally {
+			text.close();
+		}
+	}
+	
+	/* Pre:  aFile is not null. aFile holds a serialized ImageIcon.
+	 * Post: Deserializes the image stored in binary file 
+	 */
+	private Image openSerializedFile(File aFile, FileTask<?> task) throws IOException, ClassNotFoundException {
+		FileInputStream fileIn = new FileInputStream(aFile);
+		try {
+			ObjectInputStream in = new ObjectInputStream(task.track(new BufferedInputStream(fileIn), aFile.length()));
+			ImageIcon myImage = (ImageIcon)in.readObject();
 			in.close();
+			return myImage.getImage();
+		} finally {
 			fileIn.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
 		}
-		assert(myImage != null);
-        this.undo().push(myImage.getImage());
+	}
+	
+	/* INNER CLASS: A document read from a file: its layers, and its history if the file has one. When history is not
+	 * 				null, layers show the last entry of history.
+	 */
+	public static class Document {
+		
+		final LayerStack layers;
+		final TileHistory history;
+		final byte[] journalBase; // What the journal starts over with when the document is shown
+		final ArrayList<StrokeCommand> strokes; // Strokes of history, journaled after journalBase
+		
+		/* Pre:  Called on the I/O thread, which owns layers and history. history is null or shows layers.
+		 * Post: Creates a document. What the journal needs to start over with it is encoded now (see
+		 * 		 StrokeJournal.begin()), so showing it does not deflate its tiles on the Event Dispatch Thread.
+		 */
+		Document(LayerStack layers, TileHistory history) {
+			this.layers = layers;
+			this.history = history;
+			this.strokes = new ArrayList<StrokeCommand>();
+			if (history == null) {
+				journalBase = StrokeJournal.encodeBase(layers);
+				return;
+			}
+			journalBase = StrokeJournal.encodeBase(history.firstLayers(layers));
+			for (int i = 1; i < history.size(); i++) {
+				strokes.add(history.getStroke(i));
+			}
+		}
 	}
 	
 }
@@ -0,0 +1,10 @@
+/* The kinds of changes a Model reports to its listeners. Listeners subscribe to the kinds they care about.
+ * Changes made during one cycle of the Event Dispatch Thread are coalesced into a single notification.
+ */
+public enum ModelEvent {
+	HISTORY_CHANGED,  // History entries were added or removed, or the current entry moved
+	CANVAS_CHANGED,   // The canvas changed outside the stroke being drawn (undo, redo, seeking, filling, filters)
+	TOOL_CHANGED, 	  // The current tool, color, stroke size or fill tolerance changed
+	LAYERS_CHANGED,	  // A layer was added or selected, or its visibility, opacity or blend mode changed
+	DOCUMENT_LOADED	  // The canvas was replaced: new doodle, opened file or reset
+}
@@ -0,0 +1,281 @@
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/* This class writes an image as a 24-bit RGB PNG, using every core. The image is cut into bands of BAND_ROWS
+ * rows. Each band is filtered and deflated on its own thread into a raw deflate block that ends on a byte
+ * boundary (SYNC_FLUSH). The blocks are written in order as IDAT chunks and, with the zlib header in front and
+ * the combined Adler-32 at the end, form one valid zlib stream. Filters only look at the row above, which is
+ * read from the image, so the bands do not depend on each other.
+ */
+public class PngEncoder {
+
+	public static final int BAND_ROWS = 128; // Rows filtered and deflated by one thread at a time
+
+	private static final byte[] SIGNATURE = { (byte)137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+	private static final int ADLER_BASE = 65521;
+	private static final ExecutorService encoders = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "PNG encoder");
+			t.setDaemon(true); // Don't keep the app alive after the window is closed
+			return t;
+		}
+	});
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  aFile, img and task are not null
+	 * Post: Writes img to aFile as a PNG. Transparency, if any, is dropped.
+	 */
+	public static void write(File aFile, BufferedImage img, IOProgress task) throws IOException {
+		write(aFile, img, task, true);
+	}
+
+	/* Pre:  aFile, img and task are not null
+	 * Post: Writes img to aFile as a PNG. The bands are encoded on every core if parallel, otherwise on the calling
+	 * 		 thread, for callers that already keep every core busy with other images.
+	 */
+	public static void write(File aFile, BufferedImage img, IOProgress task, boolean parallel) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(aFile), 1 << 16);
+		try {
+			write(out, img, task, parallel);
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Pre:  out, img and task are not null
+	 * Post: Writes img to out as a PNG, encoding its bands on every core if parallel
+	 */
+	public static void write(OutputStream out, final BufferedImage img, IOProgress task, boolean parallel) throws IOException {
+		int width = img.getWidth();
+		int height = img.getHeight();
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(SIGNATURE);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream ihdr = new DataOutputStream(header);
+		ihdr.writeInt(width);
+		ihdr.writeInt(height);
+		ihdr.writeByte(8); // Bits per sample
+		ihdr.writeByte(2); // Color type: RGB
+		ihdr.writeByte(0); // Compression: deflate
+		ihdr.writeByte(0); // Filter method: adaptive
+		ihdr.writeByte(0); // No interlace
+		writeChunk(data, "IHDR", header.toByteArray(), header.size());
+
+		writeChunk(data, "IDAT", new byte[] { 0x78, 0x01 }, 2); // zlib header: deflate, 32K window
+		int numBands = (height + BAND_ROWS - 1) / BAND_ROWS;
+		int window = parallel ? 2 * Runtime.getRuntime().availableProcessors() : 1; // Bands in flight, so memory stays bounded
+		ArrayDeque<Future<Band>> pending = new ArrayDeque<Future<Band>>();
+		long adler = 1;
+		int next = 0;
+		try {
+			for (int done = 0; done < numBands; done++) {
+				while (next < numBands && pending.size() < window) {
+					final int first = next * BAND_ROWS;
+					final int last = Math.min(height, first + BAND_ROWS);
+					final boolean isLast = (++next == numBands);
+					Callable<Band> encode = new Callable<Band>() {
+						public Band call() {
+							return encodeBand(img, first, last, isLast);
+						}
+					};
+					if (parallel) {
+						pending.add(encoders.submit(encode));
+					} else {
+						FutureTask<Band> band = new FutureTask<Band>(encode);
+						band.run();
+						pending.add(band);
+					}
+				}
+				task.checkCancelled();
+				Band band = getBand(pending.poll());
+				writeChunk(data, "IDAT", band.packed, band.packed.length);
+				adler = combineAdler(adler, band.adler, band.length);
+				task.reportProgress(done + 1, numBands);
+			}
+		} finally {
+			for (Future<Band> f : pending) {
+				f.cancel(true);
+			}
+		}
+		byte[] trailer = { (byte)(adler >>> 24), (byte)(adler >>> 16), (byte)(adler >>> 8), (byte)adler };
+		writeChunk(data, "IDAT", trailer, 4);
+		writeChunk(data, "IEND", new byte[0], 0);
+		data.flush();
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  future is not null
+	 * Post: Waits for future and returns its band. Failures are reported as IOException.
+	 */
+	private static Band getBand(Future<Band> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while encoding PNG");
+		} catch (ExecutionException e) {
+			throw new IOException("PNG encoding failed", e.getCause());
+		}
+	}
+
+	/* Pre:  0 <= first < last <= img.getHeight()
+	 * Post: Filters rows first .. last - 1 of img and deflates them. The block ends the deflate stream if
+	 * 		 isLast, otherwise it ends on a byte boundary so the next band can follow it.
+	 */
+	private static Band encodeBand(BufferedImage img, int first, int last, boolean isLast) {
+		int width = img.getWidth();
+		int stride = 3 * width;
+		int[] pixels = new int[width];
+		byte[] prev = new byte[stride];
+		byte[] cur = new byte[stride];
+		byte[] filtered = new byte[(1 + stride) * (last - first)];
+		if (first > 0) {
+			toRGB(img, first - 1, pixels, prev);
+		}
+		int pos = 0;
+		for (int y = first; y < last; y++) {
+			toRGB(img, y, pixels, cur);
+			pos = filterRow(cur, prev, filtered, pos);
+			byte[] tmp = prev;
+			prev = cur;
+			cur = tmp;
+		}
+
+		Adler32 adler = new Adler32();
+		adler.update(filtered, 0, filtered.length);
+		Deflater deflater = new Deflater(4, true); // Raw deflate: the zlib wrapper is written once
+		deflater.setInput(filtered);
+		ByteArrayOutputStream packed = new ByteArrayOutputStream(filtered.length / 4 + 64);
+		byte[] buf = new byte[1 << 16];
+		if (isLast) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				packed.write(buf, 0, deflater.deflate(buf));
+			}
+		} else {
+			int n;
+			do {
+				n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+				packed.write(buf, 0, n);
+			} while (n == buf.length || !deflater.needsInput());
+		}
+		deflater.end();
+		return new Band(packed.toByteArray(), adler.getValue(), filtered.length);
+	}
+
+	/* Pre:  pixels has img.getWidth() ints. rgb has 3 * img.getWidth() bytes.
+	 * Post: Stores row y of img in rgb, 3 bytes per pixel
+	 */
+	private static void toRGB(BufferedImage img, int y, int[] pixels, byte[] rgb) {
+		int width = img.getWidth();
+		if (img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB) {
+			img.getRaster().getDataElements(0, y, width, 1, pixels); // Straight copy, no color conversion
+		} else {
+			img.getRGB(0, y, width, 1, pixels, 0, width);
+		}
+		for (int x = 0, i = 0; x < width; x++) {
+			int p = pixels[x];
+			rgb[i++] = (byte)(p >> 16);
+			rgb[i++] = (byte)(p >> 8);
+			rgb[i++] = (byte)p;
+		}
+	}
+
+	/* Pre:  cur and prev are rows of the same length. out has room for 1 + cur.length bytes at pos.
+	 * Post: Writes cur to out with the filter that gives the smallest sum of absolute values, the heuristic
+	 * 		 suggested by the PNG specification. Returns the position after the row.
+	 */
+	private static int filterRow(byte[] cur, byte[] prev, byte[] out, int pos) {
+		long best = Long.MAX_VALUE;
+		int bestType = 0;
+		for (int type = 0; type < 5; type++) {
+			long sum = 0;
+			for (int i = 0; i < cur.length && sum < best; i++) {
+				int v = filter(type, cur, prev, i);
+				sum += (type == 0) ? v : Math.abs((byte)v); // Unfiltered bytes count as unsigned
+			}
+			if (sum < best) {
+				best = sum;
+				bestType = type;
+			}
+		}
+		out[pos++] = (byte)bestType;
+		for (int i = 0; i < cur.length; i++) {
+			out[pos++] = (byte)filter(bestType, cur, prev, i);
+		}
+		return pos;
+	}
+
+	/* Pre:  0 <= type < 5. 0 <= i < cur.length.
+	 * Post: Returns byte i of cur after PNG filter type (None, Sub, Up, Average, Paeth)
+	 */
+	private static int filter(int type, byte[] cur, byte[] prev, int i) {
+		int x = cur[i] & 0xFF;
+		int a = (i >= 3) ? cur[i - 3] & 0xFF : 0; // Same sample, pixel to the left
+		int b = prev[i] & 0xFF;
+		int c = (i >= 3) ? prev[i - 3] & 0xFF : 0;
+		switch (type) {
+			case 1:  return x - a;
+			case 2:  return x - b;
+			case 3:  return x - ((a + b) >> 1);
+			case 4:
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				return x - ((pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c);
+			default: return x;
+		}
+	}
+
+	/* Pre:  adler1 and adler2 are the Adler-32 of two byte sequences. len2 is the length of the second.
+	 * Post: Returns the Adler-32 of both sequences one after the other (as zlib's adler32_combine)
+	 */
+	private static long combineAdler(long adler1, long adler2, long len2) {
+		long rem = len2 % ADLER_BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % ADLER_BASE;
+		sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+		sum1 %= ADLER_BASE;
+		sum2 %= ADLER_BASE;
+		return (sum2 << 16) | sum1;
+	}
+
+	/* Pre:  out is not null. data holds at least length bytes.
+	 * Post: Writes a PNG chunk: length, type, data, CRC of type and data
+	 */
+	private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+		byte[] name = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(data, 0, length);
+		out.writeInt(length);
+		out.write(name);
+		out.write(data, 0, length);
+		out.writeInt((int)crc.getValue());
+	}
+
+	/* INNER CLASS: One band of rows, filtered and deflated
+	 */
+	private static class Band {
+
+		final byte[] packed;
+		final long adler; // Adler-32 of the filtered rows, before deflate
+		final long length; // Number of filtered bytes
+
+		Band(byte[] packed, long adler, long length) {
+			this.packed = packed;
+			this.adler = adler;
+			this.length = length;
+		}
+	}
+}
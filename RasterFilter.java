@@ -0,0 +1,411 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* This class applies a filter (see Filter) to the top left w x h of a TiledCanvas. The tiles are split among the
+ * threads of the common fork/join pool and their pixels are read and written in the int arrays backing them.
+ * Filters that map each channel to a new value on its own (brightness, contrast, invert, posterize) look it up in
+ * a table and change the tiles in place. Blur and sharpen read around each pixel: each tile is blurred, in two
+ * passes, a row then a column at a time, into a buffer of its own, and the buffers are copied into the tiles once
+ * every tile has been read. The three channels of a pixel are blurred together, packed in one long. Outside the
+ * area the edge pixels are repeated. A blank tile is only allocated if the filter can change it.
+ * On a transparent canvas the per channel filters keep alpha and leave clear pixels alone. Blur and sharpen
+ * weigh the channels by alpha: the premultiplied channels and alpha are blurred in two passes, then divided again.
+ */
+public class RasterFilter {
+
+	private static final int TILE_SIZE = TiledCanvas.TILE_SIZE;
+	private static final int SHARPEN_RADIUS = 2; // Of the blur subtracted to sharpen
+	private static final int WEIGHT_BITS = 12; // Blur weights are fixed point, summing to 1 << WEIGHT_BITS
+	private static final int FIELD_BITS = 21; // Room for a channel times 1 << WEIGHT_BITS, in a packed pixel
+	private static final long CHANNELS = 0xFFL << (2 * FIELD_BITS) | 0xFFL << FIELD_BITS | 0xFF; // Packed channel bits
+	private static final long HALF = CHANNELS / 0xFF << (WEIGHT_BITS - 1); // Rounds every channel of a weighted sum
+
+	/********* Instance Variables *********/
+
+	private final TiledCanvas canvas;
+	private final boolean transparent; // The pixels have alpha
+	private final Filter filter;
+	private final int amount;
+	private final int width; // The filter is applied to the top left width x height of the canvas
+	private final int height;
+	private final int cols; // Tiles the area is on
+	private final int rows;
+	private final int[][] source; // Array backing each tile before the filter. Read only: may be the white tile's.
+	private final int[][] target; // Array backing each tile the filter changes, null for the others
+	private final int[][] blurred; // Blur or sharpen only: new pixels of each tile, copied into target at the end
+	private final int[] table; // New value of each channel value, for the filters that do not read around a pixel
+	private final long[] kernel; // Weights of the pixels -radius .. radius around a pixel, for blur and sharpen
+	private final int radius;
+	private int grain; // Tiles done by one task without splitting
+
+	/************* Constructor ************/
+
+	/* Pre:  canvas and filter are not null. filter.getMin() <= amount <= filter.getMax(). 0 < w, h.
+	 * Post: Prepares filter to be applied to the top left w x h of canvas. Nothing is changed before run().
+	 */
+	public RasterFilter(TiledCanvas canvas, Filter filter, int amount, int w, int h) {
+		this.canvas = canvas;
+		this.transparent = canvas.isTransparent();
+		this.filter = filter;
+		this.amount = amount;
+		this.width = Math.min(w, canvas.getWidth());
+		this.height = Math.min(h, canvas.getHeight());
+		this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+		this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		this.source = new int[cols * rows][];
+		this.target = new int[cols * rows][];
+		boolean reads = (filter == Filter.BLUR || filter == Filter.SHARPEN);
+		this.blurred = reads ? new int[cols * rows][] : null;
+		this.radius = (filter == Filter.BLUR) ? amount : SHARPEN_RADIUS;
+		this.kernel = reads ? gaussian(radius) : null;
+		this.table = reads ? null : table(filter, amount);
+	}
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  canvas and filter are not null. filter.getMin() <= amount <= filter.getMax().
+	 * Post: Applies filter to the top left w x h of canvas and returns the area it was applied to. Returns an
+	 * 		 empty rectangle if the area is empty or the filter cannot change it, e.g. a blur of a blank canvas.
+	 */
+	public static Rectangle apply(TiledCanvas canvas, Filter filter, int amount, int w, int h) {
+		if (Math.min(w, canvas.getWidth()) <= 0 || Math.min(h, canvas.getHeight()) <= 0) {
+			return new Rectangle();
+		}
+		return new RasterFilter(canvas, filter, amount, w, h).run();
+	}
+
+	/* Pre:  None
+	 * Post: Applies the filter and returns the area it was applied to, or an empty rectangle if no tile could change
+	 */
+	public Rectangle run() {
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				source[row * cols + col] = canvas.tileData(col, row, false);
+			}
+		}
+		int[] changed = new int[cols * rows]; // Tiles the filter may change
+		int n = 0;
+		for (int t = 0; t < changed.length; t++) {
+			if (this.mayChange(t % cols, t / cols)) {
+				changed[n++] = t;
+			}
+		}
+		if (n == 0) {
+			return new Rectangle();
+		}
+		for (int i = 0; i < n; i++) { // Allocating a tile changes the canvas: not done by the pool
+			int t = changed[i];
+			target[t] = canvas.tileData(t % cols, t / cols, true);
+		}
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		grain = Math.max(1, n / (4 * pool.getParallelism())); // Enough tasks to keep every thread busy
+		pool.invoke(new TileTask(changed, 0, n, false));
+		if (blurred != null) {
+			pool.invoke(new TileTask(changed, 0, n, true));
+		}
+		return new Rectangle(0, 0, width, height);
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  (col, row) is a tile of the area
+	 * Post: Returns true if the filter may change a pixel of tile (col, row). A blank tile stays blank unless the
+	 * 		 filter changes white, or, for blur and sharpen, a tile next to it is not blank.
+	 */
+	private boolean mayChange(int col, int row) {
+		if (table != null) {
+			return !this.isBlank(col, row) || (!transparent && table[0xFF] != 0xFF);
+		}
+		for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) { // radius < TILE_SIZE
+			for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+				if (!this.isBlank(c, r)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/* Pre:  (col, row) is a tile of the area
+	 * Post: Returns true if tile (col, row) was blank before the filter
+	 */
+	private boolean isBlank(int col, int row) {
+		return canvas.isBlank(col * TILE_SIZE, row * TILE_SIZE, 1, 1);
+	}
+
+	/* Pre:  target[t] is not null
+	 * Post: Applies the table to the pixels of tile t inside the area, in place. Alpha is kept.
+	 */
+	private void map(int t) {
+		int[] pixels = target[t];
+		int w = Math.min(TILE_SIZE, width - (t % cols) * TILE_SIZE);
+		int h = Math.min(TILE_SIZE, height - (t / cols) * TILE_SIZE);
+		int alphaMask = transparent ? 0xFF000000 : 0;
+		for (int y = 0; y < h; y++) {
+			for (int i = y * TILE_SIZE; i < y * TILE_SIZE + w; i++) {
+				int p = pixels[i];
+				if (transparent && p == 0) {
+					continue; // Clear stays clear
+				}
+				pixels[i] = (p & alphaMask) | table[p >> 16 & 0xFF] << 16 | table[p >> 8 & 0xFF] << 8 | table[p & 0xFF];
+			}
+		}
+	}
+
+	/* Pre:  target[t] is not null
+	 * Post: Sets blurred[t] to the pixels of tile t inside the area, blurred or sharpened. The tiles are not changed.
+	 */
+	private void blur(int t) {
+		int[] out = new int[TILE_SIZE * TILE_SIZE];
+		this.blurChannels(t, false, out);
+		if (transparent) {
+			int[] alpha = new int[TILE_SIZE * TILE_SIZE];
+			this.blurChannels(t, true, alpha);
+			this.unpremultiply(t, out, alpha);
+		}
+		blurred[t] = out;
+	}
+
+	/* Pre:  out holds one tile
+	 * Post: Sets the pixels of tile t inside the area in out to the red, green and blue of the blurred pixels, or,
+	 * 		 if alpha is true, to their blurred alpha. On a transparent canvas the colors are premultiplied by alpha
+	 * 		 and not sharpened yet (see unpremultiply()).
+	 */
+	private void blurChannels(int t, boolean alpha, int[] out) {
+		int x0 = (t % cols) * TILE_SIZE;
+		int y0 = (t / cols) * TILE_SIZE;
+		int w = Math.min(TILE_SIZE, width - x0);
+		int h = Math.min(TILE_SIZE, height - y0);
+		int span = 2 * radius + 1;
+		long[] row = new long[w + span - 1]; // One row around the tile
+		long[] across = new long[(h + span - 1) * w]; // Rows blurred across: radius above and below the tile too
+		for (int j = 0; j < h + span - 1; j++) {
+			this.readRow(Math.min(height - 1, Math.max(0, y0 - radius + j)), x0 - radius, row, alpha);
+			for (int i = 0; i < w; i++) {
+				long sum = HALF + row[i + radius] * kernel[radius];
+				for (int k = 0; k < radius; k++) { // The kernel is symmetric: weigh both sides at once
+					sum += (row[i + k] + row[i + span - 1 - k]) * kernel[k];
+				}
+				across[j * w + i] = (sum >>> WEIGHT_BITS) & CHANNELS;
+			}
+		}
+		long[] sums = new long[w]; // Weighted sums of one row of the tile
+		int[] original = source[t];
+		for (int y = 0; y < h; y++) {
+			int center = (y + radius) * w; // Start of row y in across
+			for (int i = 0; i < w; i++) {
+				sums[i] = HALF + across[center + i] * kernel[radius];
+			}
+			for (int k = 1; k <= radius; k++) { // A row at a time: reading a column would go through a cache set
+				long weight = kernel[radius + k];
+				int above = center - k * w;
+				int below = center + k * w;
+				for (int i = 0; i < w; i++) {
+					sums[i] += (across[above + i] + across[below + i]) * weight;
+				}
+			}
+			for (int i = 0; i < w; i++) {
+				long sum = sums[i];
+				int r = (int)(sum >>> (WEIGHT_BITS + 2 * FIELD_BITS)) & 0xFF;
+				int g = (int)(sum >>> (WEIGHT_BITS + FIELD_BITS)) & 0xFF;
+				int b = (int)(sum >>> WEIGHT_BITS) & 0xFF;
+				if (filter == Filter.SHARPEN && !transparent) { // Push each channel away from the blur
+					int p = original[y * TILE_SIZE + i];
+					r = sharpen(p >> 16 & 0xFF, r, amount);
+					g = sharpen(p >> 8 & 0xFF, g, amount);
+					b = sharpen(p & 0xFF, b, amount);
+				}
+				out[y * TILE_SIZE + i] = r << 16 | g << 8 | b;
+			}
+		}
+	}
+
+	/* Pre:  out and alpha were set by blurChannels() for tile t
+	 * Post: Sets the pixels of tile t inside the area in out to ARGB: the blurred colors divided by the blurred
+	 * 		 alpha. A sharpen pushes the premultiplied colors and alpha away from the blur first.
+	 */
+	private void unpremultiply(int t, int[] out, int[] alpha) {
+		int w = Math.min(TILE_SIZE, width - (t % cols) * TILE_SIZE);
+		int h = Math.min(TILE_SIZE, height - (t / cols) * TILE_SIZE);
+		int[] original = source[t];
+		for (int y = 0; y < h; y++) {
+			for (int i = y * TILE_SIZE; i < y * TILE_SIZE + w; i++) {
+				int p = out[i];
+				int a = alpha[i];
+				int r = p >> 16 & 0xFF;
+				int g = p >> 8 & 0xFF;
+				int b = p & 0xFF;
+				if (filter == Filter.SHARPEN) {
+					int q = premultiply(original[i]);
+					a = sharpen(original[i] >>> 24, a, amount);
+					r = Math.min(a, sharpen(q >> 16 & 0xFF, r, amount));
+					g = Math.min(a, sharpen(q >> 8 & 0xFF, g, amount));
+					b = Math.min(a, sharpen(q & 0xFF, b, amount));
+				}
+				if (a == 0) {
+					out[i] = 0;
+				} else {
+					out[i] = a << 24 | Math.min(255, (r * 255 + a / 2) / a) << 16 | Math.min(255, (g * 255 + a / 2) / a) << 8 | Math.min(255, (b * 255 + a / 2) / a);
+				}
+			}
+		}
+	}
+
+	/* Pre:  0 <= y < height
+	 * Post: Sets row to the pixels of row y from x on, packed (see pack()), or to their alpha if alpha is true.
+	 * 		 Pixels left or right of the area are those of its edge.
+	 */
+	private void readRow(int y, int x, long[] row, boolean alpha) {
+		int offset = (y % TILE_SIZE) * TILE_SIZE;
+		int rowStart = (y / TILE_SIZE) * cols;
+		int i = 0;
+		while (i < row.length) {
+			int cx = Math.min(width - 1, Math.max(0, x + i));
+			int[] tile = source[rowStart + cx / TILE_SIZE];
+			int from = offset + cx % TILE_SIZE;
+			int n = (x + i == cx) ? Math.min(row.length - i, Math.min(width - cx, TILE_SIZE - cx % TILE_SIZE)) : 1; // Rest of the tile
+			if (alpha) {
+				for (int j = from; j < from + n; j++) {
+					row[i++] = tile[j] >>> 24;
+				}
+			} else if (transparent) {
+				for (int j = from; j < from + n; j++) {
+					row[i++] = pack(premultiply(tile[j]));
+				}
+			} else {
+				for (int j = from; j < from + n; j++) {
+					row[i++] = pack(tile[j]);
+				}
+			}
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Returns the red, green and blue of argb multiplied by its alpha, rounded
+	 */
+	private static int premultiply(int argb) {
+		int a = argb >>> 24;
+		return ((argb >> 16 & 0xFF) * a + 127) / 255 << 16 | ((argb >> 8 & 0xFF) * a + 127) / 255 << 8 | ((argb & 0xFF) * a + 127) / 255;
+	}
+
+	/* Pre:  None
+	 * Post: Returns red, green and blue of rgb in one long, FIELD_BITS apart, so that one multiplication weighs all
+	 * 		 three. A channel times the weights of a blur never reaches the next.
+	 */
+	private static long pack(int rgb) {
+		return (long)(rgb >> 16 & 0xFF) << (2 * FIELD_BITS) | (long)(rgb >> 8 & 0xFF) << FIELD_BITS | (rgb & 0xFF);
+	}
+
+	/* Pre:  blurred[t] is set
+	 * Post: Copies blurred[t] into the pixels of tile t inside the area
+	 */
+	private void store(int t) {
+		int w = Math.min(TILE_SIZE, width - (t % cols) * TILE_SIZE);
+		int h = Math.min(TILE_SIZE, height - (t / cols) * TILE_SIZE);
+		for (int y = 0; y < h; y++) {
+			System.arraycopy(blurred[t], y * TILE_SIZE, target[t], y * TILE_SIZE, w);
+		}
+		blurred[t] = null;
+	}
+
+	/* Pre:  0 <= value, blur <= 255
+	 * Post: Returns value moved away from blur by percent % of their difference, kept in 0 .. 255
+	 */
+	private static int sharpen(int value, int blur, int percent) {
+		return Math.min(255, Math.max(0, value + (value - blur) * percent / 100));
+	}
+
+	/* Pre:  filter does not read around a pixel. filter.getMin() <= amount <= filter.getMax().
+	 * Post: Returns the new value of each channel value 0 .. 255
+	 */
+	private static int[] table(Filter filter, int amount) {
+		int[] table = new int[256];
+		for (int v = 0; v < 256; v++) {
+			int value;
+			switch (filter) {
+				case BRIGHTNESS:
+					value = v + amount;
+					break;
+				case CONTRAST:
+					value = 128 + (v - 128) * (100 + amount) / 100;
+					break;
+				case INVERT:
+					value = 255 - v;
+					break;
+				case POSTERIZE:
+					int level = (v * (amount - 1) + 127) / 255;
+					value = (level * 255 + (amount - 1) / 2) / (amount - 1);
+					break;
+				default:
+					throw new IllegalArgumentException("Not a per channel filter: " + filter);
+			}
+			table[v] = Math.min(255, Math.max(0, value));
+		}
+		return table;
+	}
+
+	/* Pre:  0 < radius < TILE_SIZE
+	 * Post: Returns the weights of a Gaussian of sigma radius / 2, from -radius to radius. They sum to
+	 * 		 1 << WEIGHT_BITS exactly, so a blur keeps a flat color.
+	 */
+	private static long[] gaussian(int radius) {
+		double sigma = radius / 2.0;
+		double[] exact = new double[2 * radius + 1];
+		double sum = 0;
+		for (int k = -radius; k <= radius; k++) {
+			exact[k + radius] = Math.exp(-k * k / (2 * sigma * sigma));
+			sum += exact[k + radius];
+		}
+		long[] weights = new long[exact.length];
+		long total = 0;
+		for (int k = 0; k < exact.length; k++) {
+			weights[k] = Math.round(exact[k] / sum * (1 << WEIGHT_BITS));
+			total += weights[k];
+		}
+		weights[radius] += (1 << WEIGHT_BITS) - total; // Rounding error goes to the center
+		return weights;
+	}
+
+	/* INNER CLASS: TileTask
+	 * Filters, or stores the blurred pixels of, a range of the tiles changed, splitting it in two while it is
+	 * larger than grain
+	 */
+	private class TileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] tiles;
+		private final int from;
+		private final int to;
+		private final boolean store; // Copies blurred pixels into the tiles instead of filtering
+
+		/* Pre:  0 <= from <= to <= tiles.length
+		 * Post: Creates a task for tiles[from .. to - 1]
+		 */
+		TileTask(int[] tiles, int from, int to, boolean store) {
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+			this.store = store;
+		}
+
+		protected void compute() {
+			if (to - from > grain) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new TileTask(tiles, from, mid, store), new TileTask(tiles, mid, to, store));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				if (store) {
+					store(tiles[i]);
+				} else if (table != null) {
+					map(tiles[i]);
+				} else {
+					blur(tiles[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+/* This is the command line entry point of the headless renderer. It renders a doodle to an image without
+ * opening a window, so it runs on servers with no display:
+ * 		java Render <doodle> <image.png|jpg|bmp|gif> [max size]
+ * If max size is given, the image is scaled down so neither side is larger, e.g. for thumbnails.
+ */
+public class Render {
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true"); // Before any AWT class is loaded
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: java Render <doodle> <image.png|jpg|bmp|gif> [max size]");
+			System.exit(2);
+		}
+		File in = new File(args[0]);
+		File out = new File(args[1]);
+		String format = extension(out);
+		if (!(format.equals("png") || format.equals("jpg") || format.equals("bmp") || format.equals("gif"))) {
+			System.err.println("Unsupported image format: " + out.getName());
+			System.exit(2);
+		}
+		try {
+			BufferedImage img = Renderer.render(in, IOProgress.NONE);
+			if (args.length == 3) {
+				img = Renderer.scaleToFit(img, Integer.parseInt(args[2]));
+			}
+			Renderer.write(img, format, out, IOProgress.NONE, true);
+		} catch (Exception e) {
+			System.err.println("Cannot render " + in.getName() + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/* Pre:  aFile is not null
+	 * Post: Returns the extension of aFile, in lower case, or "" if it has none
+	 */
+	private static String extension(File aFile) {
+		String name = aFile.getName();
+		int index = name.lastIndexOf('.');
+		return (index < 0) ? "" : name.substring(index + 1).toLowerCase();
+	}
+}
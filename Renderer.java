@@ -0,0 +1,125 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+/* This class rasterizes doodles without a user interface: it only draws on BufferedImages, so it runs with
+ * java.awt.headless=true and needs no display. It reads the native binary format (see DoodleFile), binary files
+ * saved by older versions (a serialized ImageIcon), the text format (see StrokeTextFile) and images. It is used
+ * by the Model and by the Render and Convert command line tools.
+ */
+public class Renderer {
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  width and height are positive
+	 * Post: Returns a white TYPE_INT_RGB image of the given size
+	 */
+	public static BufferedImage blank(int width, int height) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.setPaint(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.dispose();
+		return img;
+	}
+
+	/* Pre:  img is not null and fully loaded
+	 * Post: Returns img drawn on a white TYPE_INT_RGB image of the same size
+	 */
+	public static BufferedImage flatten(Image img) {
+		BufferedImage flat = blank(img.getWidth(null), img.getHeight(null));
+		Graphics2D g = flat.createGraphics();
+		g.drawImage(img, 0, 0, null);
+		g.dispose();
+		return flat;
+	}
+
+	/* Pre:  aFile and task are not null
+	 * Post: Returns the doodle saved in aFile. Text files are rendered from their strokes. A doodle in the native
+	 * 		 format holds its picture, with or without a history, so its strokes are not drawn again. Throws
+	 * 		 IOException if aFile is not in a format that can be rendered.
+	 */
+	public static BufferedImage render(File aFile, IOProgress task) throws IOException {
+		if (DoodleFile.isDoodleFile(aFile)) {
+			return new DoodleFile(aFile).readImage(task);
+		} else if (isSerialized(aFile)) {
+			ObjectInputStream in = new ObjectInputStream(task.track(new BufferedInputStream(new FileInputStream(aFile)), aFile.length()));
+			try {
+				return flatten(((ImageIcon)in.readObject()).getImage());
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Not a doodle: " + aFile.getName(), e);
+			} catch (ClassCastException e) {
+				throw new IOException("Not a doodle: " + aFile.getName(), e);
+			} finally {
+				in.close();
+			}
+		} else if (aFile.getName().endsWith(".txt")) {
+			StrokeTextFile text = new StrokeTextFile(aFile, task);
+			try {
+				LayerStack layers = text.getLayers();
+				StrokeCommand stroke;
+				while ((stroke = text.readStroke()) != null) {
+					layers.getLayer(stroke.getLayer()).getCanvas().draw(stroke);
+				}
+				return layers.getComposite().toImage();
+			} finally {
+				text.close();
+			}
+		}
+		BufferedImage img = ImageIO.read(aFile);
+		if (img == null) {
+			throw new IOException("Cannot render " + aFile.getName());
+		}
+		return flatten(img);
+	}
+
+	/* Pre:  img is not null. maxSize is positive.
+	 * Post: Returns img scaled down, keeping its aspect ratio, so neither side is larger than maxSize. Returns img
+	 * 		 itself if it already fits.
+	 */
+	public static BufferedImage scaleToFit(BufferedImage img, int maxSize) {
+		double scale = Math.min((double)maxSize / img.getWidth(), (double)maxSize / img.getHeight());
+		if (scale >= 1) {
+			return img;
+		}
+		int w = Math.max(1, (int)Math.round(img.getWidth() * scale));
+		int h = Math.max(1, (int)Math.round(img.getHeight() * scale));
+		BufferedImage small = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = small.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		g.drawImage(img, 0, 0, w, h, null);
+		g.dispose();
+		return small;
+	}
+
+	/* Pre:  img and aFile are not null. format is png, jpg, bmp or gif.
+	 * Post: Writes img to aFile in format. PNG is encoded on every core if parallel (see PngEncoder).
+	 */
+	public static void write(BufferedImage img, String format, File aFile, IOProgress task, boolean parallel) throws IOException {
+		if (format.equals("png")) {
+			PngEncoder.write(aFile, img, task, parallel);
+		} else if (!ImageIO.write(img, format, aFile)) {
+			throw new IOException("No writer for format " + format);
+		}
+	}
+
+	/* Pre:  aFile is not null
+	 * Post: Returns true if aFile starts like a Java serialization stream
+	 */
+	public static boolean isSerialized(File aFile) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(aFile));
+			try {
+				return in.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/* This class is an append-only scratch file used to move old history entries off the heap. The file is
+ * memory-mapped in segments of SEGMENT_SIZE bytes. A record never spans two segments, so it is addressed by
+ * a long holding its segment index (high 32 bits) and its position in that segment (low 32 bits).
+ * Records are read through read-only views of the segments, which are never changed once published, so a record
+ * can be read on another thread that was handed its address, even after the file is closed.
+ * The file is deleted by close(), or when the JVM exits.
+ */
+public class SpillFile {
+
+	public static final int SEGMENT_SIZE = 32 * 1024 * 1024; // Bytes mapped at a time
+
+	/********* Instance Variables *********/
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer segment; // Last mapped region of the file, written to
+	private volatile ByteBuffer[] views = new ByteBuffer[0]; // Read-only views of the mapped regions, in file order
+	private long fileLength = 0; // Bytes of the file covered by segments
+	private long bytesWritten = 0;
+
+	/************* Constructor ************/
+
+	/* Pre:  None
+	 * Post: Creates an empty scratch file in the temporary directory
+	 */
+	public SpillFile() throws IOException {
+		file = File.createTempFile("doodle", ".history");
+		file.deleteOnExit();
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+	}
+
+	/*********** Getters/Setters **********/
+
+	public File getFile()  { return file; 		  }
+	public long bytes()	   { return bytesWritten; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  data is not null
+	 * Post: Appends data to the file and returns its address
+	 */
+	public long write(byte[] data) throws IOException {
+		if (segment == null || segment.remaining() < data.length) {
+			int size = Math.max(SEGMENT_SIZE, data.length);
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, fileLength, size);
+			ByteBuffer[] v = Arrays.copyOf(views, views.length + 1);
+			v[v.length - 1] = segment.asReadOnlyBuffer();
+			views = v; // Published whole: readers never see it change
+			fileLength += size;
+		}
+		long address = ((long)(views.length - 1) << 32) | segment.position();
+		segment.put(data);
+		bytesWritten += data.length;
+		return address;
+	}
+
+	/* Pre:  address was returned by write() for a record of length bytes, before this thread was handed it
+	 * Post: Returns a copy of the record
+	 */
+	public byte[] read(long address, int length) {
+		byte[] data = new byte[length];
+		views[(int)(address >>> 32)].duplicate().position((int)address).get(data); // duplicate() leaves the view as it is
+		return data;
+	}
+
+	/* Pre:  None
+	 * Post: Closes and deletes the file. The mapped segments are released once they are garbage collected, so the
+	 * 		 records can still be read until then.
+	 */
+	public void close() {
+		segment = null;
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+}
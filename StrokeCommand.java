@@ -0,0 +1,225 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* This class represents one freehand stroke: its color, its width and every point the mouse went through.
+ * Strokes are the canonical content of a drawing. Any position in the history can be rebuilt by drawing
+ * the strokes again, in order, on top of a raster keyframe. A use of the fill tool is a FillCommand, one of a
+ * filter a FilterCommand. Each is drawn on one layer of the drawing (see LayerStack), the background by default.
+ */
+public class StrokeCommand {
+
+	/********* Instance Variables *********/
+
+	private final Color color;
+	private final int width;
+	private final BasicStroke pen; // Created once, so drawing a segment does not allocate
+	private int[] points; // x0, y0, x1, y1, ...
+	private int numPoints = 0;
+	private Rectangle bounds; // Area covered by the stroke, inflated by its width
+	private int layer = 0; // Index of the layer the stroke is drawn on
+
+	/************* Constructor ************/
+
+	/* Pre:  width is positive
+	 * Post: Creates a stroke that starts at (x, y)
+	 */
+	public StrokeCommand(Color color, int width, int x, int y) {
+		this.color = (color == null) ? Color.BLACK : color;
+		this.width = width;
+		this.pen = new BasicStroke(width);
+		this.points = new int[16];
+		this.addPoint(x, y);
+	}
+
+	/*********** Getters/Setters **********/
+
+	public Color getColor()	  { return color; 			}
+	public int getWidth()	  { return width; 			}
+	public int size()		  { return numPoints; 		}
+	public int getX(int i)	  { return points[2 * i]; 	}
+	public int getY(int i)	  { return points[2 * i + 1]; }
+	public int getLayer()	  { return layer; 			}
+
+	/* Pre:  layer >= 0
+	 * Post: Sets the layer the stroke is drawn on
+	 */
+	public void setLayer(int layer) { this.layer = layer; }
+
+	public Rectangle getBounds() { return new Rectangle(bounds); }
+
+	/* Pre:  None
+	 * Post: Returns how far the pen reaches past a point. Its caps are square, so on a diagonal their corners reach
+	 * 		 width / 2 * sqrt(2).
+	 */
+	public int pad() {
+		return (int)Math.ceil(width * Math.sqrt(0.5)) + 1;
+	}
+
+	/* Pre:  0 <= first <= last < size()
+	 * Post: Returns the area covered by points first .. last and the segments between them, inflated by the width
+	 */
+	public Rectangle getBounds(int first, int last) {
+		int pad = this.pad();
+		int minX = points[2 * first];
+		int minY = points[2 * first + 1];
+		int maxX = minX;
+		int maxY = minY;
+		for (int i = first + 1; i <= last; i++) {
+			minX = Math.min(minX, points[2 * i]);
+			minY = Math.min(minY, points[2 * i + 1]);
+			maxX = Math.max(maxX, points[2 * i]);
+			maxY = Math.max(maxY, points[2 * i + 1]);
+		}
+		return new Rectangle(minX - pad, minY - pad, maxX - minX + 2 * pad + 1, maxY - minY + 2 * pad + 1);
+	}
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  None
+	 * Post: Adds (x, y) to the end of this stroke
+	 */
+	public void addPoint(int x, int y) {
+		if (2 * numPoints == points.length) {
+			points = Arrays.copyOf(points, 2 * points.length);
+		}
+		points[2 * numPoints] = x;
+		points[2 * numPoints + 1] = y;
+		numPoints++;
+		int pad = this.pad();
+		if (bounds == null) {
+			bounds = new Rectangle(x - pad, y - pad, 0, 0);
+		} else {
+			bounds.add(x - pad, y - pad);
+		}
+		bounds.add(x + pad + 1, y + pad + 1);
+	}
+
+	/* Pre:  None
+	 * Post: Releases the unused part of the point array. Called once the stroke is complete.
+	 */
+	public void trimToSize() {
+		points = Arrays.copyOf(points, 2 * numPoints);
+	}
+
+	/* Pre:  g is not null
+	 * Post: Draws the whole stroke with g
+	 */
+	public void draw(Graphics2D g) {
+		this.drawSegments(g, 1, numPoints - 1);
+	}
+
+	/* Pre:  g is not null
+	 * Post: Draws the segment ending at the last point added. The pixels match those drawn by draw().
+	 */
+	public void drawLastSegment(Graphics2D g) {
+		this.drawSegments(g, numPoints - 1, numPoints - 1);
+	}
+
+	/* Pre:  g is not null. 1 <= from.
+	 * Post: Draws the segments ending at points from .. to, each as its own line, so the pixels match those
+	 * 		 drawn by draw() no matter how the stroke is split into calls.
+	 */
+	public void drawSegments(Graphics2D g, int from, int to) {
+		if (from < 1 || to < from) {
+			return;
+		}
+		g.setColor(color);
+		g.setStroke(pen);
+		for (int i = from; i <= to; i++) {
+			g.drawLine(points[2 * i - 2], points[2 * i - 1], points[2 * i], points[2 * i + 1]);
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Returns the number of bytes used by this stroke's points
+	 */
+	public long bytes() {
+		return 4L * points.length;
+	}
+	
+	/* Pre:  None
+	 * Post: Returns this stroke as bytes: color, width, number of points, the points, then the layer unless it is
+	 * 		 the background
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buf = this.allocateBytes(numPoints);
+		buf.putInt(color.getRGB());
+		buf.putInt(width);
+		buf.putInt(numPoints);
+		buf.asIntBuffer().put(points, 0, 2 * numPoints);
+		return buf.array();
+	}
+	
+	/* Pre:  data was returned by toBytes()
+	 * Post: Returns the stroke stored in data. A negative width marks a fill (see FillCommand.toBytes()) or, below
+	 * 		 FilterCommand.FIRST_MARK, a filter (see FilterCommand.toBytes()). Data written before layers has no
+	 * 		 layer: it is drawn on the background.
+	 */
+	public static StrokeCommand fromBytes(byte[] data) {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		Color color = new Color(buf.getInt(), true);
+		int width = buf.getInt();
+		int n = buf.getInt();
+		int[] points = new int[2 * n];
+		buf.asIntBuffer().get(points);
+		StrokeCommand stroke;
+		if (width <= FilterCommand.FIRST_MARK) {
+			stroke = new FilterCommand(Filter.values()[FilterCommand.FIRST_MARK - width], points[0]);
+		} else if (width < 0) {
+			stroke = new FillCommand(color, -1 - width, points[0], points[1]);
+		} else {
+			stroke = new StrokeCommand(color, width, points[0], points[1]);
+			for (int i = 1; i < n; i++) {
+				stroke.addPoint(points[2 * i], points[2 * i + 1]);
+			}
+			stroke.trimToSize();
+		}
+		if (data.length >= 16 + 8 * n) {
+			stroke.setLayer(buf.getInt(12 + 8 * n));
+		}
+		return stroke;
+	}
+
+	/* Pre:  data is not null
+	 * Post: Returns true if fromBytes() can read data: at least one point, all present, a width that is not 0, a
+	 * 		 known filter with an amount it takes, and a layer that is not negative. Used on data read from a file.
+	 */
+	public static boolean isValid(byte[] data) {
+		if (data.length < 12) {
+			return false;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int width = buf.getInt(4);
+		int n = buf.getInt(8);
+		if (n < 1 || n > (data.length - 12) / 8 || width == 0) {
+			return false;
+		}
+		if (data.length >= 16 + 8 * n && buf.getInt(12 + 8 * n) < 0) {
+			return false;
+		}
+		if (width <= FilterCommand.FIRST_MARK) {
+			int ordinal = FilterCommand.FIRST_MARK - width;
+			if (ordinal < 0 || ordinal >= Filter.values().length) {
+				return false;
+			}
+			Filter filter = Filter.values()[ordinal];
+			return buf.getInt(12) >= filter.getMin() && buf.getInt(12) <= filter.getMax();
+		}
+		return true;
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  numPoints >= 0
+	 * Post: Returns a buffer for the bytes of a stroke of numPoints points (see toBytes()), positioned at its
+	 * 		 start. The layer, unless it is the background, is already written at its end.
+	 */
+	protected ByteBuffer allocateBytes(int numPoints) {
+		ByteBuffer buf = ByteBuffer.allocate(12 + 8 * numPoints + ((layer == 0) ? 0 : 4));
+		if (layer != 0) {
+			buf.putInt(12 + 8 * numPoints, layer);
+		}
+		return buf;
+	}
+}
@@ -0,0 +1,89 @@
+/* This class is the input pipeline of the canvas. Mouse events only write their points into a primitive ring
+ * buffer. The buffered points are then drained, appended to the current stroke and drawn in one pass, so a burst
+ * of motion events costs a single render. Buffering a point does not allocate: the ring buffer is reused and the
+ * stroke's pen and color are created once per stroke. It is not thread safe: StrokeRenderer guards the one the
+ * Event Dispatch Thread and its render thread share.
+ */
+public class StrokeInput {
+
+	public static final int CAPACITY = 1024; // Points buffered between two frames
+
+	/********* Instance Variables *********/
+
+	private final int[] ring = new int[2 * CAPACITY]; // x0, y0, x1, y1, ...
+	private int head = 0; // Index of the oldest buffered point
+	private int count = 0; // Number of buffered points
+	private int lastX;
+	private int lastY;
+	private StrokeCommand stroke; // Stroke the points are added to. null between strokes
+
+	/*********** Getters/Setters **********/
+
+	public int getLastX()	  { return lastX; 		 }
+	public int getLastY()	  { return lastY; 		 }
+	public boolean isEmpty()  { return count == 0; 	 }
+	public boolean isActive() { return stroke != null; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  stroke is not null and has one point
+	 * Post: Buffered points will be added to stroke
+	 */
+	public void begin(StrokeCommand stroke) {
+		this.stroke = stroke;
+		head = 0;
+		count = 0;
+		lastX = stroke.getX(stroke.size() - 1);
+		lastY = stroke.getY(stroke.size() - 1);
+	}
+
+	/* Pre:  isActive()
+	 * Post: Buffers (x, y). Returns false, without buffering, if the buffer is full and must be drained first.
+	 */
+	public boolean offer(int x, int y) {
+		if (count == CAPACITY) {
+			return false;
+		}
+		int i = (head + count) % CAPACITY;
+		ring[2 * i] = x;
+		ring[2 * i + 1] = y;
+		count++;
+		lastX = x;
+		lastY = y;
+		return true;
+	}
+
+	/* Pre:  canvas is not null
+	 * Post: Adds every buffered point to the stroke and draws the new segments on canvas
+	 */
+	public void drain(TiledCanvas canvas) {
+		int from = this.transfer();
+		if (from >= 0) {
+			canvas.draw(stroke, from, stroke.size() - 1);
+		}
+	}
+	
+	/* Pre:  None
+	 * Post: Adds every buffered point to the stroke, without drawing them. Returns the index in the stroke of the
+	 * 		 first point added, or -1 if none was.
+	 */
+	public int transfer() {
+		if (stroke == null || count == 0) {
+			return -1;
+		}
+		int from = stroke.size();
+		for (; count > 0; count--) {
+			stroke.addPoint(ring[2 * head], ring[2 * head + 1]);
+			head = (head + 1) % CAPACITY;
+		}
+		return from;
+	}
+
+	/* Pre:  canvas is not null
+	 * Post: Drains the buffer and detaches the stroke
+	 */
+	public void end(TiledCanvas canvas) {
+		this.drain(canvas);
+		stroke = null;
+	}
+}
@@ -0,0 +1,528 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* This class is an append-only log of the doodle being drawn, used to recover it after a crash. A file holds
+ * MAGIC and VERSION, then records, each as: length of the payload, type, payload, CRC-32 of type and payload.
+ * 		BASE:   number of layers, then each layer, bottom first, as the length of its canvas, its canvas and its
+ * 				properties (see LAYER). A canvas is its width, height, number of tiles that are not blank, then each
+ * 				of them as its index, its length and its TILE_SIZE x TILE_SIZE pixels deflated as big-endian RGB
+ * 				(ARGB above the background) ints
+ * 		STROKE: position of the stroke in the history (1 for the first stroke), then StrokeCommand.toBytes()
+ * 		GROW:   new width and height of the canvas, which grew between the strokes before and after it
+ * 		LAYER:  index of a layer, then its properties (see Layer.writeProperties()). An index past the top layer
+ * 				adds a layer, otherwise its properties changed.
+ * Records are written on a background thread and forced to disk together, every FLUSH_STROKES strokes or
+ * FLUSH_MS milliseconds, whichever comes first, so the drawing path never waits for the disk. After a crash at
+ * most the strokes of the last FLUSH_MS are lost. A record cut short by the crash is ignored by replay().
+ */
+public class StrokeJournal {
+
+	public static final int MAGIC = 0x444A4E4C; // "DJNL"
+	public static final int VERSION = 3;
+	public static final int FLUSH_STROKES = 8; // Strokes written before the journal is forced to disk
+	public static final long FLUSH_MS = 200; // Longest time a written stroke waits to be forced to disk
+	public static final int TILE_SIZE = TileHistory.TILE_SIZE; // Tiles of the BASE record
+
+	private static final byte BASE = 1;
+	private static final byte STROKE = 2;
+	private static final byte GROW = 3;
+	private static final byte LAYER = 4;
+	private static final byte RESET = -1; // Not written: tells the writer to start the file over
+	private static final byte STOP = -2; // Not written: tells the writer to force the file and end
+
+	/********* Instance Variables *********/
+
+	private final File file;
+	private final LinkedBlockingQueue<Record> queue; // Records waiting for the writer thread
+	private Thread writer; // Created by the first begin()
+	private volatile boolean failed = false; // Set once a write fails. The journal is then turned off.
+
+	/************* Constructor ************/
+
+	/* Pre:  aFile is not null
+	 * Post: Creates a journal that writes to aFile. Nothing is written before begin().
+	 */
+	public StrokeJournal(File aFile) {
+		file = aFile;
+		queue = new LinkedBlockingQueue<Record>();
+	}
+
+	/*********** Getters/Setters **********/
+
+	public File getFile() { return file; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  first is not null
+	 * Post: Starts the journal over with the layers of first as the first history entry. first is encoded on the
+	 * 		 calling thread, which is cheap for a new drawing: its blank tiles are left out. Returns right away.
+	 */
+	public void begin(LayerStack first) {
+		this.begin(encodeLayers(first), Collections.<StrokeCommand>emptyList());
+	}
+
+	/* Pre:  base was returned by encodeBase(). strokes.get(i) leads to history entry i + 1 of the drawing whose
+	 * 		 first entry is base. None of them is changed afterwards.
+	 * Post: Starts the journal over with base and strokes. Returns right away: the strokes are encoded and written
+	 * 		 by the writer thread.
+	 */
+	public void begin(byte[] base, List<StrokeCommand> strokes) {
+		if (failed) {
+			return;
+		}
+		if (writer == null) {
+			writer = new Thread(new Runnable() {
+				public void run() {
+					writeRecords();
+				}
+			}, "Doodle journal");
+			writer.setDaemon(true);
+			writer.start();
+		}
+		queue.add(new Record(RESET, null));
+		queue.add(new Record(BASE, base, strokes));
+	}
+
+	/* Pre:  begin() was called. stroke is complete. position is the index of the history entry it leads to.
+	 * Post: Adds stroke to the journal. Returns right away.
+	 */
+	public void append(StrokeCommand stroke, int position) {
+		if (failed || writer == null) {
+			return;
+		}
+		queue.add(new Record(STROKE, encodeStroke(stroke, position)));
+	}
+
+	/* Pre:  begin() was called. The canvas was just grown to width x height.
+	 * Post: Adds the new size to the journal. Returns right away.
+	 */
+	public void grow(int width, int height) {
+		if (failed || writer == null) {
+			return;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putInt(width);
+		payload.putInt(height);
+		queue.add(new Record(GROW, payload.array()));
+	}
+
+	/* Pre:  begin() was called. layer is layer index of the drawing, which was just added or changed.
+	 * Post: Adds the properties of layer to the journal. Returns right away.
+	 */
+	public void layer(int index, Layer layer) {
+		if (failed || writer == null) {
+			return;
+		}
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(payload);
+		try {
+			data.writeInt(index);
+			layer.writeProperties(data);
+		} catch (IOException e) {
+			throw new AssertionError(e); // A ByteArrayOutputStream does not throw
+		}
+		queue.add(new Record(LAYER, payload.toByteArray()));
+	}
+
+	/* Pre:  None
+	 * Post: Writes and forces every pending record, stops the writer, and deletes the file if delete is true
+	 */
+	public void close(boolean delete) {
+		if (writer != null) {
+			queue.add(new Record(STOP, null));
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+		if (delete) {
+			file.delete();
+		}
+	}
+
+	/* Pre:  first is not null and is not changed while this runs
+	 * Post: Returns first as the base of a drawing for begin(byte[], List). Every tile that is not blank is
+	 * 		 deflated, so it is meant for the I/O thread.
+	 */
+	public static byte[] encodeBase(LayerStack first) {
+		return encodeLayers(first);
+	}
+
+	/* Pre:  aFile, history and task are not null
+	 * Post: Rebuilds the drawing journaled in aFile into history and returns the layers showing its last entry.
+	 * 		 Replay stops at the first record that is incomplete or corrupt. Returns null if aFile holds no
+	 * 		 drawing.
+	 */
+	public static LayerStack replay(File aFile, TileHistory history, IOProgress task) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(task.track(new FileInputStream(aFile), aFile.length())));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a doodle journal: " + aFile.getName());
+			}
+			if (in.readInt() != VERSION) {
+				throw new IOException("Unsupported doodle journal version: " + aFile.getName());
+			}
+			LayerStack layers = null;
+			Record r;
+			while ((r = readRecord(in, aFile.length())) != null) {
+				if (r.type == BASE) {
+					layers = decodeLayers(r.payload);
+					history.start(layers);
+				} else if (r.type == STROKE && layers != null) {
+					ByteBuffer payload = ByteBuffer.wrap(r.payload);
+					int target = payload.getInt() - 1 - history.numEvicted(); // Entry the stroke was drawn on
+					if (target < 0 || target > history.size() - 1) {
+						continue; // Drawn on an entry that is gone
+					}
+					byte[] bytes = new byte[payload.remaining()];
+					payload.get(bytes);
+					StrokeCommand stroke = StrokeCommand.fromBytes(bytes);
+					if (stroke.getLayer() >= layers.size()) {
+						continue; // Corrupt: the layer was never added
+					}
+					if (target != history.cursor()) {
+						history.seek(layers, target); // The strokes after it were undone
+					}
+					layers.getLayer(stroke.getLayer()).getCanvas().draw(stroke);
+					history.commit(layers, stroke);
+				} else if (r.type == GROW && layers != null) {
+					ByteBuffer payload = ByteBuffer.wrap(r.payload);
+					layers.grow(payload.getInt(), payload.getInt());
+					history.grow(layers);
+				} else if (r.type == LAYER && layers != null) {
+					ByteBuffer payload = ByteBuffer.wrap(r.payload);
+					int index = payload.getInt();
+					if (index == layers.size()) {
+						layers.addLayer("");
+						history.addLayer(layers);
+					}
+					if (index >= 0 && index < layers.size() && !layers.readProperties(index, payload)) {
+						break; // Corrupt
+					}
+				}
+			}
+			return layers;
+		} catch (EOFException e) {
+			return null; // Cut short before its header was written
+		} finally {
+			in.close();
+		}
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  Runs on the writer thread
+	 * Post: Writes the queued records until STOP. The file is forced once FLUSH_STROKES strokes, or strokes
+	 * 		 older than FLUSH_MS, are waiting.
+	 */
+	private void writeRecords() {
+		RandomAccessFile raf = null;
+		FileChannel channel = null;
+		int unforced = 0; // Strokes written but not forced yet
+		long deadline = 0; // Time by which the written strokes must be forced
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			while (true) {
+				Record r = (unforced == 0) ? queue.take()
+						: queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if (r == null) { // The oldest written stroke has waited FLUSH_MS
+					channel.force(false);
+					unforced = 0;
+					continue;
+				} else if (r.type == STOP) {
+					channel.force(false);
+					return;
+				} else if (r.type == RESET) {
+					channel.truncate(0);
+					channel.position(0);
+					ByteBuffer header = ByteBuffer.allocate(8);
+					header.putInt(MAGIC).putInt(VERSION).flip();
+					this.writeFully(channel, header);
+					unforced = 0; // Forced with the BASE record that follows
+					continue;
+				}
+				this.writeFully(channel, encodeRecord(r));
+				if (r.type == BASE) {
+					for (int i = 0; i < r.strokes.size(); i++) {
+						this.writeFully(channel, encodeRecord(new Record(STROKE, encodeStroke(r.strokes.get(i), i + 1))));
+					}
+					channel.force(false); // A new drawing: don't leave the old one half replaced
+				} else if (++unforced == 1) {
+					deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_MS);
+				}
+				if (unforced >= FLUSH_STROKES) {
+					channel.force(false);
+					unforced = 0;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace(); // The drawing goes on without a journal
+			failed = true;
+			queue.clear();
+		} catch (InterruptedException e) {
+			failed = true;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/* Pre:  channel is open for writing
+	 * Post: Writes all of buf to channel
+	 */
+	private void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	/* Pre:  stroke is complete. position is the index of the history entry it leads to.
+	 * Post: Returns the payload of a STROKE record holding stroke
+	 */
+	private static byte[] encodeStroke(StrokeCommand stroke, int position) {
+		byte[] bytes = stroke.toBytes();
+		ByteBuffer payload = ByteBuffer.allocate(4 + bytes.length);
+		payload.putInt(position);
+		payload.put(bytes);
+		return payload.array();
+	}
+
+	/* Pre:  r is a BASE, STROKE, GROW or LAYER record
+	 * Post: Returns r as it is stored in the file
+	 */
+	private static ByteBuffer encodeRecord(Record r) {
+		CRC32 crc = new CRC32();
+		crc.update(r.type);
+		crc.update(r.payload);
+		ByteBuffer buf = ByteBuffer.allocate(9 + r.payload.length);
+		buf.putInt(r.payload.length);
+		buf.put(r.type);
+		buf.put(r.payload);
+		buf.putInt((int)crc.getValue());
+		buf.flip();
+		return buf;
+	}
+
+	/* Pre:  in is positioned at a record. fileLength is the length of the file in is reading.
+	 * Post: Returns the record, or null if the file ends or the record is incomplete or corrupt
+	 */
+	private static Record readRecord(DataInputStream in, long fileLength) throws IOException {
+		try {
+			int length = in.readInt();
+			if (length < 0 || length > fileLength) { // A length cut short or corrupt
+				return null;
+			}
+			byte type = in.readByte();
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(type);
+			crc.update(payload);
+			if (in.readInt() != (int)crc.getValue()) {
+				return null;
+			}
+			return new Record(type, payload);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/* Pre:  layers is not null
+	 * Post: Returns the payload of a BASE record holding layers
+	 */
+	private static byte[] encodeLayers(LayerStack layers) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(payload);
+		try {
+			data.writeInt(layers.size());
+			for (int l = 0; l < layers.size(); l++) {
+				byte[] canvas = encodeCanvas(layers.getLayer(l).getCanvas());
+				data.writeInt(canvas.length);
+				data.write(canvas);
+				layers.getLayer(l).writeProperties(data);
+			}
+		} catch (IOException e) {
+			throw new AssertionError(e); // A ByteArrayOutputStream does not throw
+		}
+		return payload.toByteArray();
+	}
+
+	/* Pre:  payload is the payload of a BASE record
+	 * Post: Returns the layers it holds
+	 */
+	private static LayerStack decodeLayers(byte[] payload) throws IOException {
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(payload);
+			int count = buf.getInt();
+			LayerStack layers = null;
+			for (int l = 0; l < count; l++) {
+				int length = buf.getInt();
+				if (length < 0 || length > buf.remaining()) {
+					throw new IOException("Corrupt doodle journal");
+				}
+				TiledCanvas canvas = decodeCanvas(payload, buf.position(), length, l > 0);
+				buf.position(buf.position() + length);
+				if (l == 0) {
+					layers = new LayerStack(canvas);
+				} else if (canvas.getWidth() != layers.getWidth() || canvas.getHeight() != layers.getHeight()) {
+					throw new IOException("Corrupt doodle journal");
+				} else {
+					layers.addLayer("", canvas);
+				}
+				if (!layers.readProperties(l, buf)) {
+					throw new IOException("Corrupt doodle journal");
+				}
+			}
+			if (layers == null) {
+				throw new IOException("Corrupt doodle journal");
+			}
+			return layers;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Corrupt doodle journal", e);
+		}
+	}
+
+	/* Pre:  canvas is not null
+	 * Post: Returns a canvas payload holding canvas. Blank tiles are left out.
+	 */
+	private static byte[] encodeCanvas(TiledCanvas canvas) {
+		int w = canvas.getWidth();
+		int h = canvas.getHeight();
+		int cols = (w + TILE_SIZE - 1) / TILE_SIZE;
+		int rows = (h + TILE_SIZE - 1) / TILE_SIZE;
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		ByteBuffer raw = ByteBuffer.allocate(4 * pixels.length);
+		byte[] buf = new byte[raw.capacity() + 64];
+		ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(tiles);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		int count = 0;
+		try {
+			for (int row = 0; row < rows; row++) {
+				for (int col = 0; col < cols; col++) {
+					int tw = Math.min(TILE_SIZE, w - col * TILE_SIZE);
+					int th = Math.min(TILE_SIZE, h - row * TILE_SIZE);
+					if (canvas.isBlank(col * TILE_SIZE, row * TILE_SIZE, tw, th)) {
+						continue;
+					}
+					canvas.getPixels(col * TILE_SIZE, row * TILE_SIZE, tw, th, pixels);
+					raw.clear();
+					raw.asIntBuffer().put(pixels, 0, tw * th);
+					deflater.reset();
+					deflater.setInput(raw.array(), 0, 4 * tw * th);
+					deflater.finish();
+					int n = 0;
+					while (!deflater.finished()) {
+						if (n == buf.length) {
+							buf = Arrays.copyOf(buf, 2 * buf.length);
+						}
+						n += deflater.deflate(buf, n, buf.length - n);
+					}
+					data.writeInt(row * cols + col);
+					data.writeInt(n);
+					data.write(buf, 0, n);
+					count++;
+				}
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream(12 + tiles.size());
+			DataOutputStream header = new DataOutputStream(out);
+			header.writeInt(w);
+			header.writeInt(h);
+			header.writeInt(count);
+			tiles.writeTo(out);
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new AssertionError(e); // A ByteArrayOutputStream does not throw
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/* Pre:  payload[offset .. offset + length - 1] was returned by encodeCanvas()
+	 * Post: Returns the canvas it holds, transparent or not
+	 */
+	private static TiledCanvas decodeCanvas(byte[] payload, int offset, int length, boolean transparent) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(payload, offset, length);
+		int w = buf.getInt();
+		int h = buf.getInt();
+		int count = buf.getInt();
+		if (w <= 0 || h <= 0) {
+			throw new IOException("Corrupt doodle journal");
+		}
+		TiledCanvas canvas = new TiledCanvas(w, h, transparent);
+		int cols = (w + TILE_SIZE - 1) / TILE_SIZE;
+		int rows = (h + TILE_SIZE - 1) / TILE_SIZE;
+		byte[] raw = new byte[4 * TILE_SIZE * TILE_SIZE];
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		Inflater inflater = new Inflater();
+		try {
+			for (int k = 0; k < count; k++) {
+				int i = buf.getInt();
+				int size = buf.getInt();
+				if (i < 0 || i >= cols * rows || size < 0 || size > buf.remaining()) {
+					throw new IOException("Corrupt doodle journal");
+				}
+				int col = i % cols;
+				int row = i / cols;
+				int tw = Math.min(TILE_SIZE, w - col * TILE_SIZE);
+				int th = Math.min(TILE_SIZE, h - row * TILE_SIZE);
+				inflater.reset();
+				inflater.setInput(payload, buf.position(), size);
+				buf.position(buf.position() + size);
+				int n = 0;
+				while (n < 4 * tw * th) {
+					int read = inflater.inflate(raw, n, 4 * tw * th - n);
+					if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+						throw new IOException("Corrupt doodle journal");
+					}
+					n += read;
+				}
+				ByteBuffer.wrap(raw).asIntBuffer().get(pixels, 0, tw * th);
+				canvas.setPixels(col * TILE_SIZE, row * TILE_SIZE, tw, th, pixels);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt doodle journal", e);
+		} finally {
+			inflater.end();
+		}
+		return canvas;
+	}
+
+	/* INNER CLASS: One record of the journal, or an instruction for the writer thread
+	 */
+	private static class Record {
+
+		final byte type;
+		final byte[] payload;
+		final List<StrokeCommand> strokes; // BASE only: strokes drawn on it, written right after it
+
+		Record(byte type, byte[] payload) {
+			this(type, payload, null);
+		}
+
+		Record(byte type, byte[] payload, List<StrokeCommand> strokes) {
+			this.type = type;
+			this.payload = payload;
+			this.strokes = strokes;
+		}
+	}
+}
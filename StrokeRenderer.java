@@ -0,0 +1,342 @@
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* This class draws the stroke being drawn on its own thread, so the Event Dispatch Thread only buffers mouse points
+ * and copies finished frames to the screen: handling input does not wait for a thick stroke or a large canvas.
+ * Between begin() and end() the render thread owns the layers. It draws the buffered points on the target canvas,
+ * brings the composite up to date and renders the view into a back buffer. A finished frame is handed to the EDT
+ * through an atomic reference, and the frame the EDT stops showing is handed back the same way, so an image is
+ * never drawn by one thread while the other reads it. A new frame is rendered only once the last one was taken:
+ * frames are made at the rate they are shown, while points are drawn as they come. A frame handed back keeps its
+ * pixels, so only the area drawn since it was last rendered is rendered again. Outside begin() and end() the EDT
+ * owns the layers and paints them itself.
+ */
+public class StrokeRenderer {
+
+	private static final int HISTORY = 4; // Frames rendered this many frames ago, or less, are updated, not redone
+	private static final int MARGIN = 2; // Screen pixels around a changed area that a zoomed out view may change
+
+	/********* Instance Variables *********/
+
+	private final Component screen; // Repainted where a new frame changed
+	private final AtomicReference<Frame> ready = new AtomicReference<Frame>(); // Frame rendered, not taken yet
+	private final AtomicReference<Frame> spare = new AtomicReference<Frame>(); // Frame the EDT no longer shows
+	private Thread thread; // Started by the first begin()
+
+	// Guarded by this
+	private final StrokeInput input = new StrokeInput(); // Points buffered by the EDT
+	private LayerStack layers; // Owned by the render thread. null between strokes
+	private TiledCanvas target; // Canvas of layers the stroke is drawn on
+	private StrokeCommand stroke;
+	private double zoom = 1; // View the frames are rendered for (see View.DrawCanvas)
+	private double viewX = 0;
+	private double viewY = 0;
+	private int width = 1;
+	private int height = 1;
+	private Color background = Color.WHITE;
+	private boolean viewChanged = false; // The next frame must be rendered, and repainted whole
+	private boolean frameWanted = false; // The last frame was taken: a new one may be rendered
+	private Rectangle dirty = new Rectangle(0, 0, -1, -1); // Canvas area drawn since the last frame. Negative size when none
+	private long inputStart = 0; // Metrics.start() at the first point not in a frame yet
+	private boolean busy = false; // The render thread works outside the lock
+
+	// Owned by the render thread
+	private long numRendered = 0; // Frames rendered so far
+	private long lastWhole = 0; // Number of the last frame rendered whole. Frames before it show another view.
+	private final Rectangle[] recent = new Rectangle[HISTORY]; // recent[n % HISTORY]: canvas area changed by frame n
+
+	/************* Constructor ************/
+
+	/* Pre:  screen is not null
+	 * Post: Creates a renderer whose frames are shown on screen. Its thread starts at the first stroke.
+	 */
+	public StrokeRenderer(Component screen) {
+		this.screen = screen;
+	}
+
+	/*********** Getters/Setters **********/
+
+	/* Pre:  Called on the EDT. zoom is positive. width and height are the size of screen.
+	 * Post: Frames are rendered for this view from now on. If it changed, the next frame is rendered at once.
+	 */
+	public synchronized void setView(double zoom, double viewX, double viewY, int width, int height, Color background) {
+		if (zoom == this.zoom && viewX == this.viewX && viewY == this.viewY && width == this.width && height == this.height
+				&& background.equals(this.background)) {
+			return;
+		}
+		this.zoom = zoom;
+		this.viewX = viewX;
+		this.viewY = viewY;
+		this.width = Math.max(1, width);
+		this.height = Math.max(1, height);
+		this.background = background;
+		viewChanged = true;
+		this.notifyAll();
+	}
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  Called on the EDT, between strokes. target is a canvas of layers. stroke has one point and is drawn
+	 * 		 on target.
+	 * Post: Hands layers to the render thread, which draws the points offered from now on as part of stroke. The
+	 * 		 EDT must not use layers until end().
+	 */
+	public synchronized void begin(LayerStack layers, TiledCanvas target, StrokeCommand stroke) {
+		if (thread == null) {
+			thread = new Thread(new Runnable() {
+				public void run() {
+					renderFrames();
+				}
+			}, "Doodle render");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		this.layers = layers;
+		this.target = target;
+		this.stroke = stroke;
+		input.begin(stroke);
+		dirty.setSize(-1, -1);
+		inputStart = 0;
+		frameWanted = true;
+		viewChanged = true; // The first frame shows the whole view
+		this.notifyAll();
+	}
+
+	/* Pre:  Called on the EDT, between begin() and end()
+	 * Post: Buffers (x, y) for the render thread. Waits only if it is CAPACITY points behind.
+	 */
+	public synchronized void offer(int x, int y) {
+		while (!input.offer(x, y)) {
+			this.waitForChange();
+		}
+		if (inputStart == 0) {
+			inputStart = Metrics.start();
+		}
+		this.notifyAll();
+	}
+
+	/* Pre:  Called on the EDT
+	 * Post: Returns the frame rendered since the last call, or null if there is none. The caller shows it until it
+	 * 		 passes it to recycle().
+	 */
+	public Frame takeFrame() {
+		Frame f = ready.getAndSet(null);
+		if (f != null) {
+			synchronized (this) {
+				frameWanted = true;
+				this.notifyAll();
+			}
+		}
+		return f;
+	}
+
+	/* Pre:  Called on the EDT. f was returned by takeFrame() and is no longer shown.
+	 * Post: f may be rendered again
+	 */
+	public void recycle(Frame f) {
+		spare.set(f);
+	}
+
+	/* Pre:  Called on the EDT, after begin()
+	 * Post: Waits until every point offered is drawn and the composite is up to date, then hands the layers back
+	 * 		 to the EDT. A frame not taken yet is dropped.
+	 */
+	public synchronized void end() {
+		while (busy || !input.isEmpty()) {
+			this.waitForChange();
+		}
+		input.end(target); // Nothing is left to draw
+		layers = null;
+		target = null;
+		stroke = null;
+		Frame f = ready.getAndSet(null);
+		if (f != null) {
+			spare.set(f);
+		}
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  Runs on the render thread
+	 * Post: Draws the points offered, and renders a frame when the last one was taken and the view changed
+	 * 		 since. Runs until the app exits.
+	 */
+	private void renderFrames() {
+		while (true) {
+			LayerStack l;
+			StrokeCommand s;
+			TiledCanvas t;
+			int from;
+			Frame f = null;
+			boolean whole;
+			synchronized (this) {
+				busy = false;
+				this.notifyAll(); // end() may be waiting
+				while (layers == null || (input.isEmpty() && !(frameWanted && (viewChanged || dirty.width >= 0)))) {
+					this.waitForChange();
+				}
+				busy = true;
+				l = layers;
+				s = stroke;
+				t = target;
+				from = input.transfer();
+				if (from >= 0) {
+					this.notifyAll(); // offer() may be waiting for room
+				}
+				whole = viewChanged;
+				if (frameWanted) {
+					f = this.newFrame();
+					f.inputStart = inputStart; // The points it shows were all offered by now
+					inputStart = 0;
+					frameWanted = false;
+					viewChanged = false;
+				}
+			}
+			Rectangle drawn = null;
+			if (from >= 0) {
+				t.draw(s, from, s.size() - 1);
+				drawn = s.getBounds(from - 1, s.size() - 1);
+			}
+			Rectangle changed;
+			synchronized (this) {
+				if (drawn != null) {
+					this.addDirty(drawn);
+				}
+				if (f == null) {
+					continue;
+				}
+				changed = dirty;
+				dirty = new Rectangle(0, 0, -1, -1);
+			}
+			this.render(l, f, changed, whole);
+			Frame old = ready.getAndSet(f);
+			if (old != null) {
+				spare.set(old);
+			}
+			if (whole) {
+				screen.repaint();
+			} else if (changed.width >= 0) {
+				Rectangle r = f.toScreen(changed);
+				screen.repaint(r.x, r.y, r.width, r.height);
+			}
+		}
+	}
+
+	/* Pre:  Holds the lock. Runs on the render thread.
+	 * Post: Returns a frame, the spare one if it has the size of the view, for the current view. Its image is not
+	 * 		 rendered yet.
+	 */
+	private Frame newFrame() {
+		Frame f = spare.getAndSet(null);
+		if (f == null || f.image.getWidth() != width || f.image.getHeight() != height) {
+			f = new Frame(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+		}
+		f.zoom = zoom;
+		f.viewX = viewX;
+		f.viewY = viewY;
+		f.background = background;
+		return f;
+	}
+
+	/* Pre:  Runs on the render thread, which owns l. changed is the canvas area drawn since the last frame, with a
+	 * 		 negative size if none. whole is true if the view changed since.
+	 * Post: Renders l into f, as View.DrawCanvas paints it. If f was rendered at most HISTORY frames ago for the
+	 * 		 same view, only the area changed since is rendered: the rest of f already shows it.
+	 */
+	private void render(LayerStack l, Frame f, Rectangle changed, boolean whole) {
+		long n = ++numRendered;
+		recent[(int)(n % HISTORY)] = changed;
+		if (whole) {
+			lastWhole = n;
+		}
+		Rectangle clip;
+		if (f.rendered < lastWhole || n - f.rendered > HISTORY) {
+			clip = new Rectangle(0, 0, f.image.getWidth(), f.image.getHeight());
+		} else {
+			Rectangle area = new Rectangle(0, 0, -1, -1);
+			for (long i = f.rendered + 1; i <= n; i++) {
+				Rectangle r = recent[(int)(i % HISTORY)];
+				if (r.width >= 0) {
+					if (area.width < 0) {
+						area.setBounds(r);
+					} else {
+						area.add(r);
+					}
+				}
+			}
+			clip = (area.width < 0) ? null : f.toScreen(area);
+		}
+		f.rendered = n;
+		if (clip == null || clip.isEmpty()) {
+			return; // Nothing changed where it shows
+		}
+		Graphics2D g = f.image.createGraphics();
+		g.clipRect(clip.x, clip.y, clip.width, clip.height);
+		g.setColor(f.background);
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		g.scale(f.zoom, f.zoom);
+		g.translate(-f.viewX, -f.viewY);
+		int x = (int)Math.floor(f.viewX + clip.x / f.zoom);
+		int y = (int)Math.floor(f.viewY + clip.y / f.zoom);
+		Rectangle area = new Rectangle(x, y, (int)Math.floor(f.viewX + (clip.x + clip.width) / f.zoom) - x + 1,
+				(int)Math.floor(f.viewY + (clip.y + clip.height) / f.zoom) - y + 1);
+		l.paint(g, area, f.zoom);
+		g.dispose();
+	}
+
+	/* Pre:  Holds the lock
+	 * Post: Adds r to the area drawn since the last frame
+	 */
+	private void addDirty(Rectangle r) {
+		if (dirty.width < 0) {
+			dirty.setBounds(r);
+		} else {
+			dirty.add(r);
+		}
+	}
+
+	/* Pre:  Holds the lock
+	 * Post: Waits until another thread calls notifyAll()
+	 */
+	private void waitForChange() {
+		try {
+			this.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while drawing a stroke", e);
+		}
+	}
+
+	/* INNER CLASS: An image of the view of the layers, with the view it was rendered for
+	 */
+	public static class Frame {
+
+		final BufferedImage image;
+		double zoom;
+		double viewX;
+		double viewY;
+		Color background;
+		long inputStart; // Metrics.start() at the first point it shows, or 0
+		long rendered = -1; // Number of the frame it was last rendered as (see StrokeRenderer.render())
+
+		Frame(BufferedImage image) {
+			this.image = image;
+		}
+
+		/* Pre:  None
+		 * Post: Returns the area of this frame that shows the canvas area r. It has a margin of MARGIN pixels,
+		 * 		 since a zoomed out view shows whole pyramid pixels (see MipmapPyramid) of which r may hold a part.
+		 */
+		Rectangle toScreen(Rectangle r) {
+			int sx = (int)Math.floor((r.x - viewX) * zoom) - MARGIN;
+			int sy = (int)Math.floor((r.y - viewY) * zoom) - MARGIN;
+			int sx2 = (int)Math.ceil((r.x + r.width - viewX) * zoom) + MARGIN;
+			int sy2 = (int)Math.ceil((r.y + r.height - viewY) * zoom) + MARGIN;
+			return new Rectangle(sx, sy, sx2 - sx, sy2 - sy).intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+		}
+	}
+}
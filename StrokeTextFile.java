@@ -0,0 +1,392 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/* This class reads and writes the text format of the app: the drawing as a list of strokes, one per line, so
+ * it can be read in a diff or made by a script. A file holds:
+ * 		doodle-text VERSION
+ * 		size <width> <height>
+ * 		layer <index> <opacity> <normal|multiply|screen|darken|lighten> <shown|hidden> <name>
+ * 		...
+ * 		tile <layer> <x> <y> <PNG, in base64>
+ * 		...
+ * 		stroke <color as AARRGGBB hex> <width> <x>,<y> <x>,<y> ...
+ * 		fill <color as AARRGGBB hex> <tolerance> <x>,<y>
+ * 		filter <blur|sharpen|brightness|contrast|invert|posterize> <amount>
+ * 		layer <index>
+ * 		...
+ * The layers (see LayerStack) are declared after the size, bottom first, from index 0. A file that declares none
+ * has only a background. A tile line holds the pixels of a layer, under the strokes, in the TiledCanvas tile at
+ * (x, y): a doodle drawn over an opened image, or whose oldest strokes were dropped from the history, keeps what
+ * its strokes were drawn on. The layers are blank (white for the background, clear above it) outside the tiles
+ * given. The strokes, fills and filters are drawn, in order, on these layers: on the background until a
+ * "layer <index>" line moves on to another layer. Empty lines and lines
+ * starting with '#' are ignored. Strokes are written and read one line at a time, so a file is never held in
+ * memory whole.
+ */
+public class StrokeTextFile {
+
+	public static final String MAGIC = "doodle-text";
+	public static final int VERSION = 3;
+
+	/********* Instance Variables *********/
+
+	private File file;
+	private BufferedReader in;
+	private int lineNumber = 0;
+	private int width;
+	private int height;
+	private LayerStack layers; // The layers declared, with blank canvases
+	private int layer = 0; // Layer the next strokes are drawn on
+	private String[] pending; // Line read past the declarations, returned first by nextLine()
+
+	/************* Constructor ************/
+
+	/* Pre:  aFile and task are not null
+	 * Post: Opens aFile and reads its header. Strokes are read later, one at a time, by readStroke().
+	 */
+	public StrokeTextFile(File aFile, IOProgress task) throws IOException {
+		file = aFile;
+		InputStream raw = task.track(new FileInputStream(aFile), aFile.length());
+		in = new BufferedReader(new InputStreamReader(raw, "UTF-8"), 1 << 16);
+		try {
+			String[] magic = this.nextLine();
+			if (magic == null || !magic[0].equals(MAGIC) || magic.length != 2) {
+				throw new IOException("Not a doodle text file: " + aFile.getName());
+			}
+			if (this.parseInt(magic[1]) > VERSION) {
+				throw new IOException("Unsupported doodle text version " + magic[1] + ": " + aFile.getName());
+			}
+			String[] size = this.nextLine();
+			if (size == null || !size[0].equals("size") || size.length != 3) {
+				throw this.error("expected size");
+			}
+			width = this.parseInt(size[1]);
+			height = this.parseInt(size[2]);
+			if (width <= 0 || height <= 0) {
+				throw this.error("size must be positive");
+			}
+			layers = new LayerStack(width, height);
+			String[] words;
+			int declared = 0;
+			while ((words = this.nextLine()) != null && words[0].equals("layer") && words.length >= 5) {
+				this.declareLayer(words, declared++);
+			}
+			while (words != null && words[0].equals("tile") && words.length == 5) {
+				this.readTile(words);
+				words = this.nextLine();
+			}
+			pending = words;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/*********** Getters/Setters **********/
+
+	public File getFile()	{ return file;   }
+	public int getWidth()	{ return width;  }
+	public int getHeight()	{ return height; }
+
+	/* Pre:  None
+	 * Post: Returns the layers declared by the file, with their properties and the pixels of its tiles
+	 */
+	public LayerStack getLayers() { return layers; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  None
+	 * Post: Returns the next stroke, fill or filter of the file, on the layer it is drawn on, or null when there
+	 * 		 are no more
+	 */
+	public StrokeCommand readStroke() throws IOException {
+		String[] words = this.nextLine();
+		while (words != null && words[0].equals("layer") && words.length == 2) {
+			layer = this.parseInt(words[1]);
+			if (layer < 0 || layer >= layers.size()) {
+				throw this.error("no layer " + words[1]);
+			}
+			words = this.nextLine();
+		}
+		if (words == null) {
+			return null;
+		}
+		StrokeCommand stroke = this.parseStroke(words);
+		stroke.setLayer(layer);
+		return stroke;
+	}
+
+	/* Pre:  None
+	 * Post: Closes the file
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/* Pre:  aFile, layers, strokes and task are not null
+	 * Post: Writes strokes to aFile, as drawn on layers. The properties of layers and their tiles that are not
+	 * 		 blank are written with them.
+	 */
+	public static void write(File aFile, LayerStack layers, List<StrokeCommand> strokes, IOProgress task) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(aFile), "UTF-8"), 1 << 16);
+		try {
+			out.write(MAGIC + " " + VERSION + "\n");
+			out.write("size " + layers.getWidth() + " " + layers.getHeight() + "\n");
+			for (int l = 0; l < layers.size(); l++) {
+				Layer layer = layers.getLayer(l);
+				out.write("layer " + l + " " + layer.getOpacity() + " " + layer.getBlend().name().toLowerCase()
+						+ (layer.isVisible() ? " shown " : " hidden ") + layer.getName() + "\n");
+			}
+			for (int l = 0; l < layers.size(); l++) {
+				writeTiles(out, l, layers.getLayer(l).getCanvas(), task);
+			}
+			int current = 0;
+			for (int i = 0; i < strokes.size(); i++) {
+				task.checkCancelled();
+				StrokeCommand stroke = strokes.get(i);
+				if (stroke.getLayer() != current) {
+					current = stroke.getLayer();
+					out.write("layer " + current + "\n");
+				}
+				writeStroke(out, stroke);
+				task.reportProgress(i + 1, strokes.size());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  words is a line that is not a layer line
+	 * Post: Returns the stroke, fill or filter it holds
+	 */
+	private StrokeCommand parseStroke(String[] words) throws IOException {
+		if (words[0].equals("filter") && words.length == 3) {
+			Filter filter;
+			try {
+				filter = Filter.valueOf(words[1].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw this.error("unknown filter " + words[1]);
+			}
+			int amount = this.parseInt(words[2]);
+			if (amount < filter.getMin() || amount > filter.getMax()) {
+				throw this.error(words[1] + " amount must be between " + filter.getMin() + " and " + filter.getMax());
+			}
+			return new FilterCommand(filter, amount);
+		}
+		if (words[0].equals("fill") && words.length == 4) {
+			int tolerance = this.parseInt(words[2]);
+			if (tolerance < 0 || tolerance > FillCommand.MAX_TOLERANCE) {
+				throw this.error("fill tolerance must be between 0 and " + FillCommand.MAX_TOLERANCE);
+			}
+			int comma = words[3].indexOf(',');
+			if (comma < 0) {
+				throw this.error("bad point " + words[3]);
+			}
+			return new FillCommand(this.parseColor(words[1]), tolerance, this.parseInt(words[3].substring(0, comma)), this.parseInt(words[3].substring(comma + 1)));
+		}
+		if (!words[0].equals("stroke") || words.length < 4) {
+			throw this.error("expected stroke, fill or filter");
+		}
+		Color color = this.parseColor(words[1]);
+		int penWidth = this.parseInt(words[2]);
+		if (penWidth <= 0) {
+			throw this.error("stroke width must be positive");
+		}
+		StrokeCommand stroke = null;
+		for (int i = 3; i < words.length; i++) {
+			int comma = words[i].indexOf(',');
+			if (comma < 0) {
+				throw this.error("bad point " + words[i]);
+			}
+			int x = this.parseInt(words[i].substring(0, comma));
+			int y = this.parseInt(words[i].substring(comma + 1));
+			if (stroke == null) {
+				stroke = new StrokeCommand(color, penWidth, x, y);
+			} else {
+				stroke.addPoint(x, y);
+			}
+		}
+		stroke.trimToSize();
+		return stroke;
+	}
+
+	/* Pre:  words is a layer line of at least 5 words. index layers were declared before it.
+	 * Post: Gives layer index the properties it declares, adding the layer unless it is the background. Throws
+	 * 		 IOException if it does not declare layer index or is invalid.
+	 */
+	private void declareLayer(String[] words, int index) throws IOException {
+		if (this.parseInt(words[1]) != index) {
+			throw this.error("expected layer " + index);
+		}
+		int opacity = this.parseInt(words[2]);
+		if (opacity < 0 || opacity > Layer.MAX_OPACITY) {
+			throw this.error("layer opacity must be between 0 and " + Layer.MAX_OPACITY);
+		}
+		BlendMode blend;
+		try {
+			blend = BlendMode.valueOf(words[3].toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw this.error("unknown blend mode " + words[3]);
+		}
+		if (!words[4].equals("shown") && !words[4].equals("hidden")) {
+			throw this.error("expected shown or hidden");
+		}
+		StringBuilder name = new StringBuilder();
+		for (int i = 5; i < words.length; i++) {
+			name.append((i > 5) ? " " : "").append(words[i]);
+		}
+		if (index > 0) {
+			layers.addLayer(name.toString());
+		}
+		layers.setName(index, name.toString());
+		layers.setOpacity(index, opacity);
+		layers.setBlend(index, blend);
+		layers.setVisible(index, words[4].equals("shown"));
+	}
+
+	/* Pre:  words is a tile line
+	 * Post: Copies the pixels it holds into its layer. Throws IOException if it is invalid.
+	 */
+	private void readTile(String[] words) throws IOException {
+		int l = this.parseInt(words[1]);
+		int x = this.parseInt(words[2]);
+		int y = this.parseInt(words[3]);
+		if (l < 0 || l >= layers.size()) {
+			throw this.error("no layer " + words[1]);
+		}
+		if (x < 0 || y < 0 || x >= width || y >= height || x % TiledCanvas.TILE_SIZE != 0 || y % TiledCanvas.TILE_SIZE != 0) {
+			throw this.error("no tile at " + x + "," + y);
+		}
+		BufferedImage img;
+		try {
+			img = ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode(words[4])));
+		} catch (IllegalArgumentException e) {
+			throw this.error("bad base64 in tile");
+		}
+		int w = Math.min(TiledCanvas.TILE_SIZE, width - x);
+		int h = Math.min(TiledCanvas.TILE_SIZE, height - y);
+		if (img == null || img.getWidth() != w || img.getHeight() != h) {
+			throw this.error("tile must be a " + w + "x" + h + " image");
+		}
+		TiledCanvas canvas = layers.getLayer(l).getCanvas();
+		int[] pixels = img.getRGB(0, 0, w, h, null, 0, w);
+		if (!canvas.isTransparent()) {
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] &= 0xFFFFFF; // As stored by TYPE_INT_RGB, without alpha
+			}
+		}
+		canvas.setPixels(x, y, w, h, pixels);
+	}
+
+	/* Pre:  out, canvas and task are not null. canvas is layer l.
+	 * Post: Writes a tile line for each tile of canvas that is not blank, as a PNG of the part inside the canvas
+	 */
+	private static void writeTiles(Writer out, int l, TiledCanvas canvas, IOProgress task) throws IOException {
+		int mask = canvas.isTransparent() ? 0xFFFFFFFF : 0xFFFFFF;
+		int type = canvas.isTransparent() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BitSet allocated = canvas.allocatedTiles();
+		for (int i = allocated.nextSetBit(0); i >= 0; i = allocated.nextSetBit(i + 1)) {
+			task.checkCancelled();
+			int x = (i % canvas.numCols()) * TiledCanvas.TILE_SIZE;
+			int y = (i / canvas.numCols()) * TiledCanvas.TILE_SIZE;
+			int w = Math.min(TiledCanvas.TILE_SIZE, canvas.getWidth() - x);
+			int h = Math.min(TiledCanvas.TILE_SIZE, canvas.getHeight() - y);
+			int[] pixels = canvas.getPixels(x, y, w, h, null);
+			boolean isBlank = true;
+			for (int p = 0; p < pixels.length && isBlank; p++) {
+				isBlank = (pixels[p] & mask) == canvas.blankPixel();
+			}
+			if (isBlank) { // Allocated, then drawn back to blank
+				continue;
+			}
+			BufferedImage img = new BufferedImage(w, h, type);
+			img.getRaster().setDataElements(0, 0, w, h, pixels);
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			ImageIO.write(img, "png", png);
+			out.write("tile " + l + " " + x + " " + y + " " + Base64.getEncoder().encodeToString(png.toByteArray()) + "\n");
+		}
+	}
+
+	/* Pre:  out and stroke are not null
+	 * Post: Writes stroke as one line
+	 */
+	private static void writeStroke(Writer out, StrokeCommand stroke) throws IOException {
+		if (stroke instanceof FilterCommand) {
+			FilterCommand filter = (FilterCommand)stroke;
+			out.write("filter " + filter.getFilter().name().toLowerCase() + " " + filter.getAmount() + "\n");
+			return;
+		}
+		out.write((stroke instanceof FillCommand) ? "fill " : "stroke ");
+		out.write(String.format("%08x", stroke.getColor().getRGB()));
+		out.write(' ');
+		if (stroke instanceof FillCommand) {
+			out.write(Integer.toString(((FillCommand)stroke).getTolerance()));
+		} else {
+			out.write(Integer.toString(stroke.getWidth()));
+		}
+		for (int p = 0; p < stroke.size(); p++) {
+			out.write(' ');
+			out.write(Integer.toString(stroke.getX(p)));
+			out.write(',');
+			out.write(Integer.toString(stroke.getY(p)));
+		}
+		out.write('\n');
+	}
+
+	/* Pre:  None
+	 * Post: Returns the words of the next line that is not empty or a comment, or null at the end of the file
+	 */
+	private String[] nextLine() throws IOException {
+		if (pending != null) {
+			String[] words = pending;
+			pending = null;
+			return words;
+		}
+		String line;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.length() > 0 && line.charAt(0) != '#') {
+				return line.split("\\s+");
+			}
+		}
+		return null;
+	}
+
+	/* Pre:  s is not null
+	 * Post: Returns s, an AARRGGBB hex number, as a color. Throws IOException if it is not one.
+	 */
+	private Color parseColor(String s) throws IOException {
+		try {
+			return new Color((int)Long.parseLong(s, 16), true);
+		} catch (NumberFormatException e) {
+			throw this.error("bad color " + s);
+		}
+	}
+
+	/* Pre:  s is not null
+	 * Post: Returns s as an int. Throws IOException if it is not one.
+	 */
+	private int parseInt(String s) throws IOException {
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			throw this.error("bad number " + s);
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Returns an exception that reports message at the current line
+	 */
+	private IOException error(String message) {
+		return new IOException(file.getName() + ", line " + lineNumber + ": " + message);
+	}
+}
@@ -0,0 +1,756 @@
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* This class stores the history of the canvas as an append-only log of strokes plus a raster keyframe every
+ * KEYFRAME_INTERVAL strokes. Any position is rebuilt by restoring the nearest keyframe at or before it and
+ * drawing the strokes that follow it.
+ * Keyframes split the canvas into TILE_SIZE x TILE_SIZE tiles and are arrays of references to tiles. A keyframe
+ * only copies the tiles drawn on since the previous keyframe, all other tiles are shared with it (copy-on-write).
+ * The history is kept within a byte budget. Tiles of the HOT_KEYFRAMES most recent keyframes stay decoded, older
+ * tiles are deflated and decoded on demand. Once the budget is exceeded, the oldest strokes and tiles are moved to
+ * a memory-mapped spill file and paged back in when needed, or, if spilling is disabled, dropped.
+ * When the canvas grows, entries keep their size: tiles past the edge of an older, smaller keyframe are white.
+ * Tiles are always TILE_SIZE x TILE_SIZE, the pixels of edge tiles outside the canvas being white, so growing
+ * never reshapes a tile.
+ * The drawing is a stack of layers (see LayerStack) and a keyframe holds one snapshot per layer. Each stroke is
+ * drawn on one layer, so only the layers drawn on since the previous keyframe get a new snapshot: the others
+ * share the previous one. Layers added after a keyframe are clear in it. On the transparent layers above the
+ * background, blank tiles are clear instead of white.
+ */
+public class TileHistory {
+
+	public static final int TILE_SIZE = 64; // Width and height of a tile in pixels
+	public static final int KEYFRAME_INTERVAL = 16; // A keyframe is stored every KEYFRAME_INTERVAL strokes
+	public static final int HOT_KEYFRAMES = 2; // Number of recent keyframes whose tiles are never compressed
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024; // Default byte budget
+
+	/********* Instance Variables *********/
+
+	private ArrayList<Entry> entries; // Entry 0 is the oldest canvas kept, entry i is the canvas after stroke i
+	private int cursor = -1; // Index of the entry currently shown on the canvas
+	private Tile blankTile; // White tile, shared by every blank region of the background. Created by start().
+	private Tile clearTile; // Clear tile, shared by every blank region of the other layers. Created by start().
+
+	/* The canvas of layer l equals base[l], except for the tiles in touched[l], which were drawn on since base was
+	 * restored. base always has the size of the canvas: it holds grown copies of the keyframe restored if that one
+	 * is smaller, and a blank snapshot for each layer it does not have. */
+	private Snapshot[] base;
+	private Snapshot[] baseKeyframe; // Keyframe base was made from
+	private BitSet[] touched;
+
+	/* Relating to the Budget */
+	private long budget;
+	private long hotBytes = 0; // Decoded tile pixels
+	private long coldBytes = 0; // Compressed tile pixels
+	private long strokeBytes = 0; // Stroke points
+	private int numEvicted = 0; // Number of entries dropped from the front since the last start()
+	private Deflater deflater;
+	
+	/* Relating to the Spill File */
+	private boolean spillEnabled = false;
+	private SpillFile spill; // Created on first use
+	private int spilledUpTo = 0; // Entries before this index have been moved to spill
+
+	/************* Constructor ************/
+
+	public TileHistory() {
+		this(DEFAULT_BUDGET);
+	}
+
+	/* Pre:  budget is positive
+	 * Post: Creates an empty history that keeps its keyframes and strokes within budget bytes
+	 */
+	public TileHistory(long budget) {
+		this.budget = budget;
+		entries = new ArrayList<Entry>();
+		deflater = new Deflater(Deflater.BEST_SPEED);
+	}
+
+	/*********** Getters/Setters **********/
+
+	public int size() 	  { return entries.size(); 			    }
+	public int cursor()	  { return cursor; 						}
+	public int undoSize() { return cursor + 1; 					}
+	public int redoSize() { return entries.size() - cursor - 1; }
+
+	public long getBudget()  	   { return budget; 						   }
+	public long bytes()		 	   { return hotBytes + coldBytes + strokeBytes; }
+	public long compressedBytes()  { return coldBytes; 						   }
+	public int numEvicted()		   { return numEvicted; 					   }
+	public long spilledBytes()	   { return (spill == null) ? 0 : spill.bytes(); }
+	
+	/* Pre:  None
+	 * Post: Chooses whether entries over budget are moved to a spill file (true) or dropped (false)
+	 */
+	public void setSpillEnabled(boolean b) { spillEnabled = b; }
+
+	/* Pre:  budget is positive
+	 * Post: Sets the byte budget. Older entries are compressed, spilled or dropped at the next keyframe.
+	 */
+	public void setBudget(long budget) { this.budget = budget; }
+
+	/* Pre:  0 < i < size()
+	 * Post: Returns the stroke that leads from entry i-1 to entry i
+	 */
+	public StrokeCommand getStroke(int i) {
+		Entry e = entries.get(i);
+		if (e.stroke == null && e.strokeAddress >= 0) { // Page it back in, without keeping it
+			return StrokeCommand.fromBytes(spill.read(e.strokeAddress, e.strokeLength));
+		}
+		return e.stroke;
+	}
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  size() > 0. stack shows the current entry.
+	 * Post: Returns a new stack, with the layers and properties of stack, holding the first entry. Its blank tiles
+	 * 		 are not allocated.
+	 */
+	public LayerStack firstLayers(LayerStack stack) {
+		return this.saved(stack).firstLayers();
+	}
+
+	/* Pre:  size() > 0. stack shows the current entry.
+	 * Post: Returns the first entry and the strokes up to the current one, to be read on another thread while this
+	 * 		 history goes on (see Saved). Only references are taken: no tile is decoded and no stroke is read back
+	 * 		 from the spill file.
+	 */
+	public Saved saved(LayerStack stack) {
+		Snapshot[] first = entries.get(0).keyframe;
+		Snapshot[] frozen = new Snapshot[first.length];
+		for (int l = 0; l < first.length; l++) {
+			frozen[l] = new Snapshot(first[l]);
+			for (int k = 0; k < frozen[l].tiles.length; k++) {
+				if (!frozen[l].tiles[k].isBlank()) {
+					frozen[l].tiles[k] = new Tile(frozen[l].tiles[k]); // Packed or spilled here, not in the copy
+				}
+			}
+		}
+		Saved saved = new Saved(stack.blankCopy(), frozen, cursor, spill);
+		for (int i = 1; i <= cursor; i++) {
+			Entry e = entries.get(i);
+			saved.strokes[i - 1] = e.stroke;
+			saved.strokeAddresses[i - 1] = e.strokeAddress;
+			saved.strokeLengths[i - 1] = e.strokeLength;
+		}
+		return saved;
+	}
+
+	/* Pre:  None
+	 * Post: Removes all entries from this history
+	 */
+	public void clear() {
+		entries.clear();
+		cursor = -1;
+		base = null;
+		baseKeyframe = null;
+		touched = null;
+		blankTile = null;
+		clearTile = null;
+		hotBytes = 0;
+		coldBytes = 0;
+		strokeBytes = 0;
+		numEvicted = 0;
+		spilledUpTo = 0;
+		if (spill != null) {
+			spill.close();
+			spill = null;
+		}
+	}
+
+	/* Pre:  stack is not null
+	 * Post: Clears this history and makes the content of the layers of stack its first entry (a keyframe). Blank
+	 * 		 tiles are not copied, and blank tiles of the canvases are not read.
+	 */
+	public void start(LayerStack stack) {
+		this.clear();
+		blankTile = newBlankTile(0xFFFFFF);
+		clearTile = newBlankTile(0);
+		Snapshot[] first = new Snapshot[stack.size()];
+		touched = new BitSet[stack.size()];
+		for (int l = 0; l < first.length; l++) {
+			TiledCanvas canvas = stack.getLayer(l).getCanvas();
+			Tile blank = this.blankTile(l);
+			first[l] = new Snapshot(canvas.getWidth(), canvas.getHeight());
+			for (int row = 0; row < first[l].rows; row++) {
+				for (int col = 0; col < first[l].cols; col++) {
+					if (canvas.isBlank(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE)) {
+						first[l].tiles[first[l].index(col, row)] = blank;
+						continue;
+					}
+					int[] pixels = first[l].readTile(canvas, col, row);
+					first[l].tiles[first[l].index(col, row)] = Arrays.equals(pixels, blank.pixels()) ? blank : new Tile(pixels);
+				}
+			}
+			touched[l] = new BitSet();
+		}
+		this.addEntry(new Entry(null, first, stack.getWidth(), stack.getHeight()));
+		cursor = 0;
+		base = first.clone();
+		baseKeyframe = first;
+	}
+
+	/* Pre:  stroke has already been drawn on layer stroke.getLayer() of stack, on top of the current entry
+	 * Post: Drops all redo entries and adds stroke after the current entry. Every KEYFRAME_INTERVAL strokes,
+	 * 		 the tiles drawn on since the last keyframe are copied into a new keyframe and the budget is enforced.
+	 * 		 Layers that were not drawn on keep their snapshot.
+	 */
+	public void commit(LayerStack stack, StrokeCommand stroke) {
+		assert(cursor >= 0);
+		this.truncate();
+		stroke.trimToSize();
+		this.markTouched(stroke.getLayer(), stroke.getBounds());
+		Snapshot[] keyframe = null;
+		if ((cursor + 1) % KEYFRAME_INTERVAL == 0) {
+			keyframe = new Snapshot[base.length];
+			for (int l = 0; l < base.length; l++) {
+				if (touched[l].isEmpty()) {
+					keyframe[l] = base[l];
+					continue;
+				}
+				keyframe[l] = new Snapshot(base[l]);
+				TiledCanvas canvas = stack.getLayer(l).getCanvas();
+				for (int i = touched[l].nextSetBit(0); i >= 0; i = touched[l].nextSetBit(i + 1)) {
+					int[] pixels = keyframe[l].readTile(canvas, i % keyframe[l].cols, i / keyframe[l].cols);
+					if (!Arrays.equals(pixels, base[l].tiles[i].pixels())) {
+						keyframe[l].tiles[i] = new Tile(pixels);
+					}
+				}
+				base[l] = keyframe[l];
+				touched[l].clear();
+			}
+			baseKeyframe = keyframe;
+		}
+		this.addEntry(new Entry(stroke, keyframe, stack.getWidth(), stack.getHeight()));
+		cursor++;
+		if (keyframe != null) {
+			this.demote(cursor - HOT_KEYFRAMES * KEYFRAME_INTERVAL);
+			this.enforceBudget();
+		}
+	}
+
+	/* Pre:  size() > 0. A clear layer was just added on top of stack.
+	 * Post: Follows the new layer. No entry is copied: the layer is clear in every entry until it is drawn on.
+	 */
+	public void addLayer(LayerStack stack) {
+		int l = base.length;
+		base = Arrays.copyOf(base, l + 1);
+		base[l] = this.grown(null, l, stack.getWidth(), stack.getHeight());
+		touched = Arrays.copyOf(touched, l + 1);
+		touched[l] = new BitSet();
+	}
+
+	/* Pre:  size() > 0. stack shows the current entry and was just grown (see LayerStack.grow).
+	 * Post: Follows the new size of stack. No entry is copied: the area they don't cover is blank.
+	 */
+	public void grow(LayerStack stack) {
+		for (int l = 0; l < base.length; l++) {
+			Snapshot grown = this.grown(base[l], l, stack.getWidth(), stack.getHeight());
+			BitSet moved = new BitSet();
+			for (int i = touched[l].nextSetBit(0); i >= 0; i = touched[l].nextSetBit(i + 1)) {
+				moved.set(grown.index(i % base[l].cols, i / base[l].cols));
+			}
+			base[l] = grown;
+			touched[l] = moved;
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Removes every entry after the current one
+	 */
+	public void truncate() {
+		while (entries.size() > cursor + 1) {
+			this.removeEntry(entries.remove(entries.size() - 1));
+		}
+		spilledUpTo = Math.min(spilledUpTo, this.keyframeIndex(cursor));
+	}
+
+	/* Pre:  undoSize() > 1. stack shows the current entry.
+	 * Post: Moves back one entry and updates stack
+	 */
+	public void undo(LayerStack stack) {
+		assert(cursor > 0);
+		this.seek(stack, cursor - 1);
+	}
+
+	/* Pre:  redoSize() > 0. stack shows the current entry.
+	 * Post: Moves forward one entry and updates stack
+	 */
+	public void redo(LayerStack stack) {
+		assert(this.redoSize() > 0);
+		this.seek(stack, cursor + 1);
+	}
+
+	/* Pre:  0 <= target < size(). stack shows the current entry.
+	 * Post: Makes target the current entry. If target is ahead of the current entry and shares its keyframe,
+	 * 		 only the strokes in between are drawn. Otherwise the keyframe of target is restored first, on the
+	 * 		 layers whose snapshot differs or that were drawn on since.
+	 */
+	public void seek(LayerStack stack, int target) {
+		assert(target >= 0 && target < entries.size());
+		int keyIndex = this.keyframeIndex(target);
+		Snapshot[] keyframe = entries.get(keyIndex).keyframe;
+		int from = cursor + 1;
+		if (keyframe != baseKeyframe || target < cursor) {
+			this.restore(stack, keyframe);
+			from = keyIndex + 1;
+		}
+		for (int i = from; i <= target; i++) {
+			StrokeCommand stroke = this.getStroke(i);
+			TiledCanvas canvas = stack.getLayer(stroke.getLayer()).getCanvas();
+			canvas.drawClipped(stroke, entries.get(i).width, entries.get(i).height); // Clipped as it was when drawn
+			this.markTouched(stroke.getLayer(), stroke.getBounds());
+		}
+		cursor = target;
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  0 <= i < size()
+	 * Post: Returns the index of the closest entry at or before i that holds a keyframe
+	 */
+	private int keyframeIndex(int i) {
+		return (i / KEYFRAME_INTERVAL) * KEYFRAME_INTERVAL;
+	}
+
+	/* Pre:  e is not null
+	 * Post: Appends e and accounts for the bytes it adds
+	 */
+	private void addEntry(Entry e) {
+		entries.add(e);
+		assert(e.strokeAddress < 0);
+		if (e.stroke != null) {
+			strokeBytes += e.stroke.bytes();
+		}
+		if (e.keyframe != null) {
+			for (Snapshot s : e.keyframe) {
+				for (Tile t : s.tiles) {
+					if (t.refs++ == 0) {
+						this.account(t, 1);
+					}
+				}
+			}
+		}
+	}
+
+	/* Pre:  e was removed from entries
+	 * Post: Releases the bytes held only by e
+	 */
+	private void removeEntry(Entry e) {
+		if (e.stroke != null) {
+			strokeBytes -= e.stroke.bytes();
+		}
+		if (e.keyframe != null) {
+			for (Snapshot s : e.keyframe) {
+				for (Tile t : s.tiles) {
+					if (--t.refs == 0) {
+						this.account(t, -1);
+					}
+				}
+			}
+		}
+	}
+
+	/* Pre:  sign is 1 or -1
+	 * Post: Adds (or removes) the bytes of t to the hot or cold total. Spilled tiles use no heap.
+	 */
+	private void account(Tile t, int sign) {
+		if (t.isSpilled()) {
+			return;
+		} else if (t.isPacked()) {
+			coldBytes += sign * t.bytes();
+		} else {
+			hotBytes += sign * t.bytes();
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Compresses the tiles of the keyframe at index i, unless they are blank or shared with a newer keyframe
+	 */
+	private void demote(int i) {
+		if (i < 0 || i + KEYFRAME_INTERVAL >= entries.size()) {
+			return;
+		}
+		Snapshot[] cold = entries.get(i).keyframe;
+		Snapshot[] newer = entries.get(i + KEYFRAME_INTERVAL).keyframe;
+		for (int l = 0; l < cold.length; l++) {
+			if (cold[l] == newer[l]) {
+				continue; // Not drawn on in between
+			}
+			for (int k = 0; k < cold[l].tiles.length; k++) {
+				Tile t = cold[l].tiles[k];
+				if (t != this.tileAt(newer[l], l, k % cold[l].cols, k / cold[l].cols) && !t.isPacked() && !t.isSpilled() && !t.isBlank()) {
+					hotBytes -= t.bytes();
+					t.pack(deflater);
+					coldBytes += t.bytes();
+				}
+			}
+		}
+	}
+
+	/* Pre:  None
+	 * Post: While the history is over budget, moves the oldest KEYFRAME_INTERVAL entries still on the heap to the
+	 * 		 spill file. The HOT_KEYFRAMES most recent keyframes are never spilled. If spilling is disabled or fails,
+	 * 		 the oldest entries are dropped instead, but the entry shown on the canvas and its keyframe are kept.
+	 */
+	private void enforceBudget() {
+		while (spillEnabled && this.bytes() > budget && spilledUpTo <= this.keyframeIndex(cursor) - HOT_KEYFRAMES * KEYFRAME_INTERVAL) {
+			try {
+				this.spillInterval(spilledUpTo);
+				spilledUpTo += KEYFRAME_INTERVAL;
+			} catch (IOException e) {
+				e.printStackTrace();
+				spillEnabled = false; // Fall back to dropping entries
+			}
+		}
+		while (!spillEnabled && this.bytes() > budget && cursor >= KEYFRAME_INTERVAL) {
+			for (int i = 0; i < KEYFRAME_INTERVAL; i++) {
+				this.removeEntry(entries.get(i));
+			}
+			entries.subList(0, KEYFRAME_INTERVAL).clear();
+			Entry first = entries.get(0);
+			if (first.stroke != null) {
+				strokeBytes -= first.stroke.bytes();
+			}
+			entries.set(0, new Entry(null, first.keyframe, first.width, first.height)); // Its stroke is no longer needed
+			cursor -= KEYFRAME_INTERVAL;
+			numEvicted += KEYFRAME_INTERVAL;
+			spilledUpTo = Math.max(0, spilledUpTo - KEYFRAME_INTERVAL);
+		}
+	}
+	
+	/* Pre:  start is a multiple of KEYFRAME_INTERVAL. The keyframe at start + KEYFRAME_INTERVAL exists.
+	 * Post: Writes the strokes of entries start .. start + KEYFRAME_INTERVAL - 1 and the tiles of the keyframe at
+	 * 		 start that are not shared with the next keyframe to the spill file, and releases them from the heap
+	 */
+	private void spillInterval(int start) throws IOException {
+		if (spill == null) {
+			spill = new SpillFile();
+		}
+		for (int i = start; i < start + KEYFRAME_INTERVAL; i++) {
+			Entry e = entries.get(i);
+			if (e.stroke != null) {
+				byte[] data = e.stroke.toBytes();
+				e.strokeAddress = spill.write(data);
+				e.strokeLength = data.length;
+				strokeBytes -= e.stroke.bytes();
+				e.stroke = null;
+			}
+		}
+		Snapshot[] old = entries.get(start).keyframe;
+		Snapshot[] newer = entries.get(start + KEYFRAME_INTERVAL).keyframe;
+		for (int l = 0; l < old.length; l++) {
+			if (old[l] == newer[l]) {
+				continue;
+			}
+			for (int k = 0; k < old[l].tiles.length; k++) {
+				Tile t = old[l].tiles[k];
+				if (t != this.tileAt(newer[l], l, k % old[l].cols, k / old[l].cols) && !t.isSpilled() && !t.isBlank()) {
+					this.account(t, -1);
+					if (!t.isPacked()) {
+						t.pack(deflater);
+					}
+					t.spill(spill);
+				}
+			}
+		}
+	}
+
+	/* Pre:  0 <= layer < number of layers. area is in canvas coordinates.
+	 * Post: Marks every tile of layer that intersects area as touched
+	 */
+	private void markTouched(int layer, Rectangle area) {
+		Snapshot base = this.base[layer];
+		area = area.intersection(new Rectangle(0, 0, base.width, base.height));
+		if (area.isEmpty()) {
+			return;
+		}
+		int firstCol = area.x / TILE_SIZE;
+		int firstRow = area.y / TILE_SIZE;
+		int lastCol = (area.x + area.width - 1) / TILE_SIZE;
+		int lastRow = (area.y + area.height - 1) / TILE_SIZE;
+		for (int row = firstRow; row <= lastRow; row++) {
+			touched[layer].set(base.index(firstCol, row), base.index(lastCol, row) + 1);
+		}
+	}
+
+	/* Pre:  keyframe is not larger than the canvases of stack, and has at most as many layers
+	 * Post: Writes every tile of keyframe that differs from base, or was drawn on since base was restored,
+	 * 		 onto the canvas of its layer. Past the edge of a smaller keyframe, and on layers it does not have,
+	 * 		 tiles are blank. Compressed tiles are decoded on demand, blank tiles are not decoded. keyframe,
+	 * 		 grown to the size and layers of stack, becomes the new base.
+	 */
+	private void restore(LayerStack stack, Snapshot[] keyframe) {
+		for (int l = 0; l < base.length; l++) {
+			Snapshot s = (l < keyframe.length) ? keyframe[l] : null;
+			if (s == base[l] && touched[l].isEmpty()) {
+				continue; // Same snapshot, not drawn on since
+			}
+			TiledCanvas canvas = stack.getLayer(l).getCanvas();
+			for (int row = 0; row < base[l].rows; row++) {
+				for (int col = 0; col < base[l].cols; col++) {
+					int i = base[l].index(col, row);
+					Tile t = this.tileAt(s, l, col, row);
+					if (base[l].tiles[i] != t || touched[l].get(i)) {
+						if (t.isBlank()) {
+							canvas.fillBlank(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+						} else {
+							canvas.setPixels(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE, t.pixels());
+						}
+					}
+				}
+			}
+			base[l] = this.grown(s, l, base[l].width, base[l].height);
+			touched[l].clear();
+		}
+		baseKeyframe = keyframe;
+	}
+
+	/* Pre:  None
+	 * Post: Returns the tile of the background, or of the other layers, that is blank
+	 */
+	private Tile blankTile(int layer) {
+		return (layer == 0) ? blankTile : clearTile;
+	}
+
+	/* Pre:  None
+	 * Post: Returns tile (col, row) of s, a snapshot of layer, or the blank tile if it is past the edge of s or s
+	 * 		 is null
+	 */
+	private Tile tileAt(Snapshot s, int layer, int col, int row) {
+		return (s != null && col < s.cols && row < s.rows) ? s.tiles[s.index(col, row)] : this.blankTile(layer);
+	}
+
+	/* Pre:  s is null or not larger than width x height
+	 * Post: Returns s if it has that size. Otherwise returns a copy of s of that size, sharing every tile of s and
+	 * 		 blank in the added area, or all blank if s is null.
+	 */
+	private Snapshot grown(Snapshot s, int layer, int width, int height) {
+		if (s != null && s.width == width && s.height == height) {
+			return s;
+		}
+		Snapshot g = new Snapshot(width, height);
+		for (int row = 0; row < g.rows; row++) {
+			for (int col = 0; col < g.cols; col++) {
+				g.tiles[g.index(col, row)] = this.tileAt(s, layer, col, row);
+			}
+		}
+		return g;
+	}
+
+	/* Pre:  None
+	 * Post: Returns a blank tile all of whose pixels are pixel
+	 */
+	private static Tile newBlankTile(int pixel) {
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		Arrays.fill(pixels, pixel);
+		Tile t = new Tile(pixels);
+		t.blank = true;
+		return t;
+	}
+
+	/* INNER CLASS: One entry of the history. stroke is null for the first entry, keyframe is null unless the
+	 * 				entry index is a multiple of KEYFRAME_INTERVAL. keyframe[l] is the snapshot of layer l, and is
+	 * 				shared with the previous keyframe if the layer was not drawn on in between. width and height
+	 * 				are the size of the canvas the stroke was drawn on.
+	 */
+	private static class Entry {
+
+		StrokeCommand stroke; // null once moved to the spill file
+		long strokeAddress = -1; // Address of the stroke in the spill file
+		int strokeLength;
+		final Snapshot[] keyframe;
+		final int width;
+		final int height;
+
+		Entry(StrokeCommand stroke, Snapshot[] keyframe, int width, int height) {
+			this.stroke = stroke;
+			this.keyframe = keyframe;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	/* INNER CLASS: The pixels of one tile, row by row. A tile is either decoded (pixels), deflated (packed) or
+	 * 				deflated in a spill file. Its content never changes once it is part of a keyframe, so it can
+	 * 				be shared.
+	 */
+	private static class Tile {
+
+		final int length; // Number of pixels
+		private int[] pixels;
+		private byte[] packed;
+		private SpillFile spill;
+		private long address;
+		private int packedLength;
+		boolean blank = false;
+		int refs = 0; // Number of keyframes that use this tile
+
+		Tile(int[] pixels) {
+			this.length = pixels.length;
+			this.pixels = pixels;
+		}
+
+		/* Copy constructor: the tile as t is now. It is never packed or spilled, so it can be read on another thread. */
+		Tile(Tile t) {
+			this.length = t.length;
+			this.pixels = t.pixels;
+			this.packed = t.packed;
+			this.spill = t.spill;
+			this.address = t.address;
+			this.packedLength = t.packedLength;
+			this.blank = t.blank;
+		}
+
+		boolean isPacked()  { return packed != null; }
+		boolean isSpilled() { return spill != null;  }
+		boolean isBlank()   { return blank; 			 }
+
+		long bytes() { return isPacked() ? packed.length : 4L * length; }
+
+		/* Returns the pixels of this tile. A packed or spilled tile is decoded into a new array, which is not kept. */
+		int[] pixels() {
+			if (pixels != null) {
+				return pixels;
+			}
+			byte[] raw = new byte[4 * length];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(isSpilled() ? spill.read(address, packedLength) : packed);
+				int n = 0;
+				while (n < raw.length && !inflater.finished()) {
+					n += inflater.inflate(raw, n, raw.length - n);
+				}
+			} catch (DataFormatException e) {
+				throw new IllegalStateException("Corrupt history tile", e);
+			} finally {
+				inflater.end();
+			}
+			int[] decoded = new int[length];
+			ByteBuffer.wrap(raw).asIntBuffer().get(decoded);
+			return decoded;
+		}
+
+		/* Deflates the pixels of this tile and releases the decoded array */
+		void pack(Deflater deflater) {
+			ByteBuffer raw = ByteBuffer.allocate(4 * length);
+			raw.asIntBuffer().put(pixels);
+			deflater.reset();
+			deflater.setInput(raw.array());
+			deflater.finish();
+			byte[] out = new byte[raw.capacity() / 4 + 64];
+			int n = 0;
+			while (!deflater.finished()) {
+				if (n == out.length) {
+					out = Arrays.copyOf(out, 2 * out.length);
+				}
+				n += deflater.deflate(out, n, out.length - n);
+			}
+			packed = Arrays.copyOf(out, n);
+			pixels = null;
+		}
+
+		/* Moves the deflated pixels of this tile to file */
+		void spill(SpillFile file) throws IOException {
+			address = file.write(packed);
+			packedLength = packed.length;
+			spill = file;
+			packed = null;
+		}
+	}
+
+	/* INNER CLASS: A raster keyframe. tiles[row * cols + col] holds tile (col, row).
+	 */
+	private static class Snapshot {
+
+		final int width;
+		final int height;
+		final int cols;
+		final int rows;
+		final Tile[] tiles;
+
+		Snapshot(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+			this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+			this.tiles = new Tile[cols * rows];
+		}
+
+		/* Copy constructor: shares every tile of s */
+		Snapshot(Snapshot s) {
+			this.width = s.width;
+			this.height = s.height;
+			this.cols = s.cols;
+			this.rows = s.rows;
+			this.tiles = s.tiles.clone();
+		}
+
+		int index(int col, int row) { return row * cols + col; }
+
+		/* Returns a copy of the pixels of tile (col, row), blank outside the canvas */
+		int[] readTile(TiledCanvas canvas, int col, int row) {
+			return canvas.getPixels(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE, new int[TILE_SIZE * TILE_SIZE]);
+		}
+	}
+
+	/* INNER CLASS: The first entry of a history and the strokes that follow it, up to the entry shown when it was
+	 * 				made (see TileHistory.saved()). Its tiles are copies that the history never packs or spills, and
+	 * 				the records of the spill file never change, so it is read on another thread while the history
+	 * 				goes on. Tiles are decoded, and spilled strokes read back, only when it is read.
+	 */
+	public static class Saved {
+
+		private final LayerStack properties; // Blank: the layers and their properties
+		private final Snapshot[] first;
+		private final SpillFile spill; // Holds the strokes that are not on the heap
+		private final StrokeCommand[] strokes; // strokes[i]: stroke i + 1, or null if spilled
+		private final long[] strokeAddresses;
+		private final int[] strokeLengths;
+
+		private Saved(LayerStack properties, Snapshot[] first, int numStrokes, SpillFile spill) {
+			this.properties = properties;
+			this.first = first;
+			this.spill = spill;
+			this.strokes = new StrokeCommand[numStrokes];
+			this.strokeAddresses = new long[numStrokes];
+			this.strokeLengths = new int[numStrokes];
+		}
+
+		/* Pre:  None
+		 * Post: Returns a new stack, with the layers and properties of the history's stack, holding the first
+		 * 		 entry. Its blank tiles are not allocated.
+		 */
+		public LayerStack firstLayers() {
+			LayerStack layers = properties.blankCopy();
+			for (int l = 0; l < first.length; l++) {
+				TiledCanvas canvas = layers.getLayer(l).getCanvas();
+				for (int row = 0; row < first[l].rows; row++) {
+					for (int col = 0; col < first[l].cols; col++) {
+						Tile t = first[l].tiles[first[l].index(col, row)];
+						if (!t.isBlank()) {
+							canvas.setPixels(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE, t.pixels());
+						}
+					}
+				}
+			}
+			return layers;
+		}
+
+		/* Pre:  None
+		 * Post: Returns the strokes that lead from the first entry to the one shown when this was made, in order
+		 */
+		public ArrayList<StrokeCommand> strokes() {
+			ArrayList<StrokeCommand> list = new ArrayList<StrokeCommand>(strokes.length);
+			for (int i = 0; i < strokes.length; i++) {
+				list.add((strokes[i] != null) ? strokes[i] : StrokeCommand.fromBytes(spill.read(strokeAddresses[i], strokeLengths[i])));
+			}
+			return list;
+		}
+	}
+}
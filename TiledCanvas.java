@@ -0,0 +1,455 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/* This class is the surface the user draws on. It is cut into TILE_SIZE x TILE_SIZE tiles, each its own
+ * TYPE_INT_RGB image. A tile is only allocated when it is first drawn on: until then it is the shared WHITE tile,
+ * which is never written. The memory used is proportional to the inked area, not to the size of the document.
+ * The parts of the edge tiles outside the canvas are always white, so the canvas grows in place: existing tiles are
+ * kept and the new area is only made of references to the white tile.
+ * A transparent canvas, used for the layers above the background (see LayerStack), has TYPE_INT_ARGB tiles and is
+ * blank where it is clear instead of white: everything said about white holds for clear.
+ * The tiles written since changedTiles() was last called are recorded, so a composite of the canvas is only
+ * redone where it changed. Zoomed out, the canvas is drawn from a pyramid of downscaled tiles (see MipmapPyramid)
+ * built on first use. A copy shares the tiles of the canvas until one of them writes them (see copy()).
+ */
+public class TiledCanvas {
+
+	public static final int TILE_SIZE = 4 * TileHistory.TILE_SIZE; // A history tile is always inside one canvas tile
+
+	private static final int WHITE = 0xFFFFFF;
+	private static final BufferedImage WHITE_TILE = newBlankTile(false); // Shared by every blank tile. Never written.
+	private static final BufferedImage CLEAR_TILE = newBlankTile(true); // Same, for transparent canvases
+
+	/********* Instance Variables *********/
+
+	private final boolean transparent;
+	private final BufferedImage blankTile; // WHITE_TILE, or CLEAR_TILE if transparent
+	private final int blank; // Value of a blank pixel: white, or clear if transparent
+	private final int mask; // Bits of a pixel that are stored: RGB, or ARGB if transparent
+	private int width;
+	private int height;
+	private int cols;
+	private int rows;
+	private BufferedImage[] tiles; // tiles[row * cols + col] holds tile (col, row)
+	private int numAllocated = 0; // Tiles that are not blankTile
+	private BitSet changed = new BitSet(); // Tiles written since changedTiles() was last called
+	private BitSet shared = new BitSet(); // Tiles also held by a copy (see copy()). Copied before being written.
+	private MipmapPyramid pyramid; // Created the first time the canvas is drawn zoomed out
+	private Graphics2D[] drawing = new Graphics2D[0]; // drawing[i]: graphics of tile i during draw(), or null
+	private int[] drawn = new int[0]; // drawn[0 .. numDrawn - 1]: the tiles that have one
+	private int numDrawn = 0;
+
+	/************* Constructor ************/
+
+	/* Pre:  width and height are positive
+	 * Post: Creates a white canvas of the given size. No tile is allocated.
+	 */
+	public TiledCanvas(int width, int height) {
+		this(width, height, false);
+	}
+
+	/* Pre:  width and height are positive
+	 * Post: Creates a canvas of the given size, clear if transparent is true and white otherwise. No tile is
+	 * 		 allocated.
+	 */
+	public TiledCanvas(int width, int height, boolean transparent) {
+		this.transparent = transparent;
+		this.blankTile = transparent ? CLEAR_TILE : WHITE_TILE;
+		this.blank = transparent ? 0 : WHITE;
+		this.mask = transparent ? 0xFFFFFFFF : WHITE;
+		this.width = width;
+		this.height = height;
+		this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+		this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		this.tiles = new BufferedImage[cols * rows];
+		Arrays.fill(tiles, blankTile);
+	}
+
+	/*********** Getters/Setters **********/
+
+	public int getWidth()		 { return width; 		}
+	public int getHeight()		 { return height; 		}
+	public int numTiles()		 { return tiles.length; }
+	public int numCols()		 { return cols; 		}
+	public int numRows()		 { return rows; 		}
+	public int numAllocated()	 { return numAllocated; }
+	public long bytes()			 { return 4L * TILE_SIZE * TILE_SIZE * numAllocated; }
+	public boolean isTransparent() { return transparent; }
+
+	/* Pre:  None
+	 * Post: Returns the value of a blank pixel: white, or clear (0) if the canvas is transparent
+	 */
+	public int blankPixel() { return blank; }
+
+	/*********** Public Methods ***********/
+
+	/* Pre:  img is not null
+	 * Post: Returns a canvas holding the pixels of img. Tiles of img that are all white are not allocated.
+	 */
+	public static TiledCanvas fromImage(BufferedImage img) {
+		TiledCanvas canvas = new TiledCanvas(img.getWidth(), img.getHeight());
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		for (int row = 0; row < canvas.rows; row++) {
+			for (int col = 0; col < canvas.cols; col++) {
+				int x = col * TILE_SIZE;
+				int y = row * TILE_SIZE;
+				int w = Math.min(TILE_SIZE, canvas.width - x);
+				int h = Math.min(TILE_SIZE, canvas.height - y);
+				img.getRGB(x, y, w, h, pixels, 0, w);
+				for (int i = 0; i < w * h; i++) {
+					pixels[i] &= WHITE; // As stored by TYPE_INT_RGB, without alpha
+				}
+				canvas.setPixels(x, y, w, h, pixels);
+			}
+		}
+		return canvas;
+	}
+
+	/* Pre:  None
+	 * Post: Returns a copy of this canvas. No pixel is copied: the two canvases share their tiles, and a shared tile
+	 * 		 is copied by the first of them that writes it. A tile that is shared is never written, so the copy can
+	 * 		 be read on another thread while this canvas is drawn on.
+	 */
+	public TiledCanvas copy() {
+		TiledCanvas c = new TiledCanvas(width, height, transparent);
+		System.arraycopy(tiles, 0, c.tiles, 0, tiles.length);
+		c.numAllocated = numAllocated;
+		shared.or(this.allocatedTiles());
+		c.shared.or(shared);
+		return c;
+	}
+
+	/* Pre:  None
+	 * Post: Returns the whole canvas as one TYPE_INT_RGB image, or TYPE_INT_ARGB if the canvas is transparent
+	 */
+	public BufferedImage toImage() {
+		BufferedImage img = new BufferedImage(width, height, transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		this.paint(g, new Rectangle(0, 0, width, height));
+		g.dispose();
+		return img;
+	}
+
+	/* Pre:  g is not null. clip is in canvas coordinates.
+	 * Post: Draws the tiles that intersect clip with g, at their place on the canvas
+	 */
+	public void paint(Graphics g, Rectangle clip) {
+		clip = clip.intersection(new Rectangle(0, 0, width, height));
+		if (clip.isEmpty()) {
+			return;
+		}
+		for (int row = clip.y / TILE_SIZE; row <= (clip.y + clip.height - 1) / TILE_SIZE; row++) {
+			for (int col = clip.x / TILE_SIZE; col <= (clip.x + clip.width - 1) / TILE_SIZE; col++) {
+				int x = col * TILE_SIZE;
+				int y = row * TILE_SIZE;
+				int w = Math.min(TILE_SIZE, width - x);
+				int h = Math.min(TILE_SIZE, height - y);
+				g.drawImage(tiles[row * cols + col], x, y, x + w, y + h, 0, 0, w, h, null);
+			}
+		}
+	}
+
+	/* Pre:  g is not null. clip is in canvas coordinates. scale is positive.
+	 * Post: Draws the tiles that intersect clip with g, for a g that scales the canvas by scale. Below half size,
+	 * 		 the smallest level of the pyramid that is still large enough is drawn instead of the full canvas.
+	 */
+	public void paint(Graphics g, Rectangle clip, double scale) {
+		if (scale > 0.5) {
+			this.paint(g, clip);
+			return;
+		}
+		if (pyramid == null) {
+			pyramid = new MipmapPyramid(this);
+		}
+		int level = pyramid.levelFor(scale);
+		if (level == 0) {
+			this.paint(g, clip);
+		} else {
+			pyramid.paint(g, clip, level);
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Makes the canvas at least newWidth x newHeight. Its tiles stay where they are, and the new area is
+	 * 		 blank: no pixel is copied or allocated. The pyramid, if any, is dropped and rebuilt when next needed.
+	 */
+	public void grow(int newWidth, int newHeight) {
+		newWidth = Math.max(width, newWidth);
+		newHeight = Math.max(height, newHeight);
+		if (newWidth == width && newHeight == height) {
+			return;
+		}
+		int newCols = (newWidth + TILE_SIZE - 1) / TILE_SIZE;
+		int newRows = (newHeight + TILE_SIZE - 1) / TILE_SIZE;
+		BufferedImage[] grown = new BufferedImage[newCols * newRows];
+		Arrays.fill(grown, blankTile);
+		for (int row = 0; row < rows; row++) {
+			System.arraycopy(tiles, row * cols, grown, row * newCols, cols);
+		}
+		changed = moveTiles(changed, cols, newCols);
+		shared = moveTiles(shared, cols, newCols);
+		width = newWidth;
+		height = newHeight;
+		cols = newCols;
+		rows = newRows;
+		tiles = grown;
+		pyramid = null; // Its levels depend on the size
+	}
+
+	/* Pre:  stroke is not null
+	 * Post: Draws the whole stroke on this canvas. A fill is applied (see FloodFill).
+	 */
+	public void draw(StrokeCommand stroke) {
+		this.drawClipped(stroke, width, height);
+	}
+
+	/* Pre:  stroke is not null
+	 * Post: Draws the whole stroke as it was drawn when this canvas was only w x h: nothing outside the top left
+	 * 		 w x h of the canvas is drawn. A fill or a filter is applied, and records the area it changed.
+	 */
+	public void drawClipped(StrokeCommand stroke, int w, int h) {
+		if (stroke instanceof FilterCommand) {
+			FilterCommand filter = (FilterCommand)stroke;
+			filter.setBounds(RasterFilter.apply(this, filter.getFilter(), filter.getAmount(), w, h));
+			return;
+		}
+		if (stroke instanceof FillCommand) {
+			FillCommand fill = (FillCommand)stroke;
+			fill.setBounds(FloodFill.fill(this, fill.getX(0), fill.getY(0), fill.getColor().getRGB(), fill.getTolerance(), w, h));
+			return;
+		}
+		this.draw(stroke, 1, stroke.size() - 1, Math.min(width, w), Math.min(height, h));
+	}
+
+	/* Pre:  stroke is not null. 1 <= from.
+	 * Post: Draws the segments of stroke ending at points from .. to on the tiles they cross. The pixels match
+	 * 		 those drawn by stroke.drawSegments() on a single image.
+	 */
+	public void draw(StrokeCommand stroke, int from, int to) {
+		this.draw(stroke, from, to, width, height);
+	}
+
+	/* Pre:  The rectangle (x, y, w, h) is inside the tiles of the canvas
+	 * Post: Returns true if no tile it intersects is allocated, i.e. it is blank
+	 */
+	public boolean isBlank(int x, int y, int w, int h) {
+		for (int row = y / TILE_SIZE; row <= (y + h - 1) / TILE_SIZE; row++) {
+			for (int col = x / TILE_SIZE; col <= (x + w - 1) / TILE_SIZE; col++) {
+				if (tiles[row * cols + col] != blankTile) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/* Pre:  The rectangle (x, y, w, h) is inside one tile. dest holds at least w * h ints.
+	 * Post: Copies the pixels of the rectangle into dest, row by row, and returns dest
+	 */
+	public int[] getPixels(int x, int y, int w, int h, int[] dest) {
+		BufferedImage tile = tiles[(y / TILE_SIZE) * cols + x / TILE_SIZE];
+		return (int[])tile.getRaster().getDataElements(x % TILE_SIZE, y % TILE_SIZE, w, h, dest);
+	}
+
+	/* Pre:  The rectangle (x, y, w, h) is inside one tile. src holds at least w * h ints, blank outside the canvas.
+	 * Post: Copies src, row by row, into the rectangle. A blank tile is only allocated if src is not all blank.
+	 */
+	public void setPixels(int x, int y, int w, int h, int[] src) {
+		int col = x / TILE_SIZE;
+		int row = y / TILE_SIZE;
+		if (tiles[row * cols + col] == blankTile) {
+			boolean isBlank = true;
+			for (int i = 0; i < w * h && isBlank; i++) {
+				isBlank = (src[i] & mask) == blank;
+			}
+			if (isBlank) {
+				return;
+			}
+		}
+		this.writableTile(col, row).getRaster().setDataElements(x % TILE_SIZE, y % TILE_SIZE, w, h, src);
+	}
+
+	/* Pre:  The rectangle (x, y, w, h) is inside one tile
+	 * Post: Makes the rectangle blank. A tile that becomes all blank because the rectangle covers its part inside
+	 * 		 the canvas is released.
+	 */
+	public void fillBlank(int x, int y, int w, int h) {
+		int col = x / TILE_SIZE;
+		int row = y / TILE_SIZE;
+		int i = row * cols + col;
+		if (tiles[i] == blankTile) {
+			return;
+		}
+		if (x % TILE_SIZE == 0 && y % TILE_SIZE == 0
+				&& w >= Math.min(TILE_SIZE, width - col * TILE_SIZE) && h >= Math.min(TILE_SIZE, height - row * TILE_SIZE)) {
+			tiles[i] = blankTile;
+			shared.clear(i);
+			numAllocated--;
+			this.invalidate(col, row);
+			return;
+		}
+		int[] pixels = this.tileData(col, row, true);
+		for (int r = y % TILE_SIZE; r < Math.min(TILE_SIZE, y % TILE_SIZE + h); r++) {
+			Arrays.fill(pixels, r * TILE_SIZE + x % TILE_SIZE, r * TILE_SIZE + Math.min(TILE_SIZE, x % TILE_SIZE + w), blank);
+		}
+	}
+
+	/* Pre:  None
+	 * Post: Returns the tiles written since the last call, as indexes row * numCols() + col, and forgets them
+	 */
+	public BitSet changedTiles() {
+		BitSet c = changed;
+		changed = new BitSet();
+		return c;
+	}
+
+	/* Pre:  None
+	 * Post: Returns the tiles that are allocated, as indexes row * numCols() + col
+	 */
+	public BitSet allocatedTiles() {
+		BitSet a = new BitSet(tiles.length);
+		for (int i = 0; i < tiles.length; i++) {
+			if (tiles[i] != blankTile) {
+				a.set(i);
+			}
+		}
+		return a;
+	}
+
+	/* Pre:  (col, row) is a tile of this canvas
+	 * Post: Returns tile (col, row), or the shared blank tile if it is blank. It must not be written.
+	 */
+	BufferedImage tile(int col, int row) {
+		return tiles[row * cols + col];
+	}
+
+	/* Pre:  (col, row) is a tile of this canvas
+	 * Post: Returns the int array backing tile (col, row), one RGB (or ARGB) int per pixel, row by row. If write is
+	 * 		 false it may be the array of the shared blank tile and must not be written. If write is true the tile is
+	 * 		 allocated if needed and its zoomed out copies are marked stale.
+	 */
+	int[] tileData(int col, int row, boolean write) {
+		BufferedImage tile = write ? this.writableTile(col, row) : tiles[row * cols + col];
+		return ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+	}
+
+	/* Pre:  None
+	 * Post: Returns true if tile is the shared white tile
+	 */
+	static boolean isWhiteTile(BufferedImage tile) {
+		return tile == WHITE_TILE;
+	}
+
+	/* Pre:  None
+	 * Post: Returns the shared white tile. It must not be written.
+	 */
+	static BufferedImage whiteTile() {
+		return WHITE_TILE;
+	}
+
+	/********** Private Methods ***********/
+
+	/* Pre:  stroke is not null. w <= width and h <= height.
+	 * Post: Draws the segments of stroke ending at points from .. to on the tiles they cross, clipped to the top
+	 * 		 left w x h of the canvas. Each segment is drawn only on the tiles its own bounds touch, so a long
+	 * 		 stroke replayed whole allocates the tiles under its ink, not every tile of its bounding box.
+	 */
+	private void draw(StrokeCommand stroke, int from, int to, int w, int h) {
+		if (from < 1 || to < from) {
+			return;
+		}
+		if (drawing.length < tiles.length) { // Kept between calls: drawing while dragging makes no garbage
+			drawing = new Graphics2D[tiles.length];
+			drawn = new int[tiles.length];
+		}
+		int pad = stroke.pad();
+		for (int i = from; i <= to; i++) { // Bounds of segment i, as stroke.getBounds(i - 1, i), within w x h
+			int minX = Math.max(0, Math.min(stroke.getX(i - 1), stroke.getX(i)) - pad);
+			int minY = Math.max(0, Math.min(stroke.getY(i - 1), stroke.getY(i)) - pad);
+			int maxX = Math.min(w - 1, Math.max(stroke.getX(i - 1), stroke.getX(i)) + pad);
+			int maxY = Math.min(h - 1, Math.max(stroke.getY(i - 1), stroke.getY(i)) + pad);
+			if (minX > maxX || minY > maxY) {
+				continue;
+			}
+			for (int row = minY / TILE_SIZE; row <= maxY / TILE_SIZE; row++) {
+				for (int col = minX / TILE_SIZE; col <= maxX / TILE_SIZE; col++) {
+					Graphics2D g = drawing[row * cols + col];
+					if (g == null) {
+						int x = col * TILE_SIZE;
+						int y = row * TILE_SIZE;
+						g = this.writableTile(col, row).createGraphics();
+						g.translate(-x, -y);
+						g.clipRect(x, y, Math.min(TILE_SIZE, w - x), Math.min(TILE_SIZE, h - y)); // Keep the outside white
+						drawing[row * cols + col] = g;
+						drawn[numDrawn++] = row * cols + col;
+					}
+					stroke.drawSegments(g, i, i); // Segments are drawn one by one anyway: the pixels are the same
+				}
+			}
+		}
+		for (int k = 0; k < numDrawn; k++) {
+			drawing[drawn[k]].dispose();
+			drawing[drawn[k]] = null;
+		}
+		numDrawn = 0;
+	}
+
+	/* Pre:  (col, row) is a tile of this canvas
+	 * Post: Records that tile (col, row) changed. Its zoomed out copies will be rebuilt before they are next drawn.
+	 */
+	private void invalidate(int col, int row) {
+		changed.set(row * cols + col);
+		if (pyramid != null) {
+			pyramid.invalidate(col, row);
+		}
+	}
+
+	/* Pre:  (col, row) is a tile of this canvas, about to be written
+	 * Post: Returns tile (col, row), allocating it as a blank tile if it is blankTile, and copying it first if it
+	 * 		 is shared with a copy of the canvas
+	 */
+	private BufferedImage writableTile(int col, int row) {
+		this.invalidate(col, row);
+		int i = row * cols + col;
+		if (tiles[i] == blankTile) {
+			WritableRaster raster = blankTile.copyData(null);
+			tiles[i] = new BufferedImage(blankTile.getColorModel(), raster, false, null);
+			numAllocated++;
+		} else if (shared.get(i)) {
+			tiles[i] = new BufferedImage(tiles[i].getColorModel(), tiles[i].copyData(null), false, null);
+			shared.clear(i);
+		}
+		return tiles[i];
+	}
+
+	/* Pre:  set holds indexes row * cols + col
+	 * Post: Returns the same tiles as indexes row * newCols + col
+	 */
+	private static BitSet moveTiles(BitSet set, int cols, int newCols) {
+		BitSet moved = new BitSet();
+		for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+			moved.set((i / cols) * newCols + i % cols);
+		}
+		return moved;
+	}
+
+	/* Pre:  None
+	 * Post: Returns a clear TYPE_INT_ARGB image of TILE_SIZE x TILE_SIZE if transparent is true, and a white
+	 * 		 TYPE_INT_RGB one otherwise
+	 */
+	private static BufferedImage newBlankTile(boolean transparent) {
+		if (transparent) {
+			return new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB); // Starts clear
+		}
+		BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = tile.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+		g.dispose();
+		return tile;
+	}
+}
@@ -0,0 +1,6 @@
+/* The tools the user draws with. The current tool is kept by the Model.
+ */
+public enum Tool {
+	PEN,  // Freehand strokes
+	FILL  // Fills the region clicked with the current color (see FloodFill)
+}
@@ -3,8 +3,7 @@
  * 				Canvas
  * 				Drawing color and drawing size
  * 				Customizable Color Buttons on double click
- * 				File Menu: New, Open, Save, Exit. Can open/save binary, image formats. Text not supported
- * 			    Playback control: View set. Slider ticks updating correctly.
+ * 			    Playback control: View set. Slider ticks updating correctly. Play/Pause at a chosen speed.
  *  */
 
 import javax.swing.*;
@@ -14,26 +13,32 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.awt.event.*;
 import java.awt.image.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.*;
 
 
-/* Interface IView */
-interface IView {
-	public void updateView();	
+/* Interface IModelListener: implemented by the parts of the view that follow changes to the model */
+interface IModelListener {
+	public void modelChanged(EnumSet<ModelEvent> events);	
 }
 
 /* This is the View part of the MVC structure. The view handles drawing to the screen. This class
  * also contains the controller, implemented as anonymous inner classes.
  */
-public class View extends JFrame implements IView{
+public class View extends JFrame {
 		
 	/************** Constants **************/
 	
 	public static final int INIT_WH = 700; // Initial frame width and height
 	public static final int MIN_WH = 350; // Minimum frame width and height
 	public static final int LEFT_TOOLBAR_WIDTH = 100;
+	public static final double MIN_ZOOM = 1.0 / 64; // Smallest scale the canvas is shown at
+	public static final double MAX_ZOOM = 16; // Largest scale the canvas is shown at
+	public static final double ZOOM_STEP = 1.25; // Scale change of one zoom in or out
 	
 	/********* Instance Variables *********/
 
@@ -46,11 +51,13 @@ public class View extends JFrame implements IView{
 	
 	// Relating to Drawing Canvas
 	private DrawCanvas myCanvas;
+	private JMenu layersMenu; // Rebuilt whenever the layers change
 	
 	// Relating to Toolbars
 	private JToolBar leftToolBar; // To contain color palette and stroke sizing options
 	ArrayList<JButton> myColorButtons; // Colors are chosen and created in the model. This specific view chooses to implement them as buttons
 	ArrayList<JButton> myStrokeButtons; 
+	ArrayList<JButton> myToolButtons; // One per Tool, in the order of Tool.values()
 
 	// Relating to Playback Control
 	PlayBackControl playCont;
@@ -72,18 +79,30 @@ public class View extends JFrame implements IView{
 		this.add(BorderLayout.CENTER, myCanvas);
 		
 		this.createLeftToolBar(); // adds it to BorderLayout.WEST
+		this.listenToModel(); // Before the frame is shown and the canvas first painted
 		this.setDefaults();
+		this.offerRecovery();
 		
 	}
 	
 	/************* MVC Methods ************/
 	
-	/* Pre: 
-	 * Post: Updates the screen according to the current state of the model
+	/* Pre:  myCanvas, playCont and leftToolBar are initialized
+	 * Post: Subscribes each part of this view to the changes of the model it displays
 	 */
-	public void updateView() {
-		myCanvas.repaint();
-		playCont.update();
+	private void listenToModel() {
+		myModel.addListener(myCanvas, EnumSet.of(ModelEvent.CANVAS_CHANGED, ModelEvent.DOCUMENT_LOADED));
+		myModel.addListener(playCont, EnumSet.of(ModelEvent.HISTORY_CHANGED, ModelEvent.DOCUMENT_LOADED));
+		myModel.addListener(new IModelListener() {
+			public void modelChanged(EnumSet<ModelEvent> events) {
+				updateToolBarSelection();
+			}
+		}, EnumSet.of(ModelEvent.TOOL_CHANGED));
+		myModel.addListener(new IModelListener() {
+			public void modelChanged(EnumSet<ModelEvent> events) {
+				updateLayersMenu();
+			}
+		}, EnumSet.of(ModelEvent.LAYERS_CHANGED, ModelEvent.DOCUMENT_LOADED));
 	}
 	
 	/*********** Getters/Setters **********/
@@ -94,7 +113,7 @@ public class View extends JFrame implements IView{
 	/********** Private Methods ***********/
 	
 	/* Pre:   None
-	 * Post:  Creates a Menu Bar with two items: File and View
+	 * Post:  Creates a Menu Bar with four items: File, View, Layers and Filters
 	 */
 	private void createMenu() {	
 		// Create the Bar
@@ -103,7 +122,141 @@ public class View extends JFrame implements IView{
 		// Create and Add File Menu
 		JMenu fileMenu = this.createFileMenu();
 		myMenu.add(fileMenu);
-
+		// Create and Add View Menu
+		myMenu.add(this.createViewMenu());
+		// Create and Add Layers Menu. Its items are added once there are layers.
+		layersMenu = new JMenu("Layers");
+		myMenu.add(layersMenu);
+		// Create and Add Filters Menu
+		myMenu.add(this.createFiltersMenu());
+	}
+	
+	/* Pre:  None
+	 * Post: Creates a dropdown menu with one option per filter. A filter that takes an amount asks for it first.
+	 * 		 The filter is applied to the whole canvas and can be undone like a stroke.
+	 */
+	private JMenu createFiltersMenu() {
+		JMenu filtersMenu = new JMenu("Filters");
+		for (final Filter filter : Filter.values()) {
+			JMenuItem item = new JMenuItem(filter.hasAmount() ? filter.getLabel() + "..." : filter.getLabel());
+			item.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					int amount = filter.getDefaultAmount();
+					if (filter.hasAmount()) {
+						JSpinner spinner = new JSpinner(new SpinnerNumberModel(amount, filter.getMin(), filter.getMax(), 1));
+						Object[] message = { filter.getAmountLabel() + ":", spinner };
+						if (JOptionPane.showConfirmDialog(View.this, message, filter.getLabel(), JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+							return;
+						}
+						amount = (Integer)spinner.getValue();
+					}
+					myModel.applyFilter(filter, amount);
+				}
+			});
+			filtersMenu.add(item);
+		}
+		return filtersMenu;
+	}
+	
+	/* Pre:  layersMenu is initialized
+	 * Post: Fills the layers menu with: New Layer, one option per layer, top first, to draw on it, and the options
+	 * 		 of the layer drawn on: Show, Opacity and Blend Mode. Changing them blends the layer again only where it
+	 * 		 has pixels, and cannot be undone.
+	 */
+	private void updateLayersMenu() {
+		layersMenu.removeAll();
+		final LayerStack layers = myModel.getLayers();
+		if (layers == null) {
+			return;
+		}
+		JMenuItem newLayer = new JMenuItem("New Layer");
+		newLayer.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				myModel.addLayer();
+			}
+		});
+		layersMenu.add(newLayer);
+		layersMenu.addSeparator();
+		ButtonGroup group = new ButtonGroup();
+		for (int i = layers.size() - 1; i >= 0; i--) {
+			final int index = i;
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem(layers.getLayer(i).getName(), i == myModel.getActiveLayer());
+			item.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					myModel.selectLayer(index);
+				}
+			});
+			group.add(item);
+			layersMenu.add(item);
+		}
+		layersMenu.addSeparator();
+		final int active = myModel.getActiveLayer();
+		final Layer layer = layers.getLayer(active);
+		final JCheckBoxMenuItem show = new JCheckBoxMenuItem("Show", layer.isVisible());
+		show.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				myModel.setLayerVisible(active, show.isSelected());
+			}
+		});
+		layersMenu.add(show);
+		JMenuItem opacity = new JMenuItem("Opacity...");
+		opacity.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				JSpinner spinner = new JSpinner(new SpinnerNumberModel(layer.getOpacity(), 0, Layer.MAX_OPACITY, 5));
+				Object[] message = { "Opacity (%):", spinner };
+				if (JOptionPane.showConfirmDialog(View.this, message, layer.getName(), JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
+					myModel.setLayerOpacity(active, (Integer)spinner.getValue());
+				}
+			}
+		});
+		layersMenu.add(opacity);
+		JMenu blendMenu = new JMenu("Blend Mode");
+		ButtonGroup blends = new ButtonGroup();
+		for (final BlendMode blend : BlendMode.values()) {
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem(blend.getLabel(), blend == layer.getBlend());
+			item.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					myModel.setLayerBlend(active, blend);
+				}
+			});
+			blends.add(item);
+			blendMenu.add(item);
+		}
+		layersMenu.add(blendMenu);
+	}
+	
+	/* Pre:  None
+	 * Post: Creates a dropdown view menu with three options: Zoom In, Zoom Out, Actual Size. The mouse wheel
+	 * 		 also zooms, and dragging with the right or middle button pans.
+	 */
+	private JMenu createViewMenu() {
+		JMenu viewMenu = new JMenu("View");
+		int mask = InputEvent.CTRL_DOWN_MASK;
+		JMenuItem zoomIn = new JMenuItem("Zoom In");
+		zoomIn.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, mask));
+		zoomIn.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				myCanvas.zoomAt(myCanvas.getWidth() / 2, myCanvas.getHeight() / 2, ZOOM_STEP);
+			}
+		});
+		JMenuItem zoomOut = new JMenuItem("Zoom Out");
+		zoomOut.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, mask));
+		zoomOut.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				myCanvas.zoomAt(myCanvas.getWidth() / 2, myCanvas.getHeight() / 2, 1 / ZOOM_STEP);
+			}
+		});
+		JMenuItem actualSize = new JMenuItem("Actual Size");
+		actualSize.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, mask));
+		actualSize.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				myCanvas.resetView();
+			}
+		});
+		viewMenu.add(zoomIn);
+		viewMenu.add(zoomOut);
+		viewMenu.add(actualSize);
+		return viewMenu;
 	}
 	
 	/* Pre:  None
@@ -136,10 +289,12 @@ public class View extends JFrame implements IView{
 					myModel.reset();
 					break;
 				case JOptionPane.YES_OPTION:
-					createSaveDialog();
-					//myCanvas.counter = 1;
-					myModel.reset();
-					
+					createSaveDialog(new Runnable() {
+						public void run() {
+							//myCanvas.counter = 1;
+							myModel.reset();
+						}
+					});
 				}	
 			}
 		});
@@ -162,8 +317,11 @@ public class View extends JFrame implements IView{
 					openFile();
 					break;
 				case JOptionPane.YES_OPTION:
-					createSaveDialog();
-					openFile();
+					createSaveDialog(new Runnable() {
+						public void run() {
+							openFile();
+						}
+					});
 				}	
 			}
 		});
@@ -173,7 +331,7 @@ public class View extends JFrame implements IView{
 	
 	
 	/* Pre:  myModel.fileExtensions() is not null
-	 * Post: Asks model to open file selected by user
+	 * Post: Asks model to open file selected by user. The file is read in the background.
 	 */
 	private void openFile() {
 		JFileChooser openDialog = new JFileChooser();
@@ -182,7 +340,9 @@ public class View extends JFrame implements IView{
 		}
 		int returnVal = openDialog.showOpenDialog(myCanvas);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
-        	myModel.openFile(openDialog);
+        	FileTask<Model.Document> task = myModel.openFile(openDialog);
+        	this.monitorTask(task, "Opening " + task.getFile().getName(), null);
+        	this.showPreview(task);
         } 
 	}
 	
@@ -193,35 +353,64 @@ public class View extends JFrame implements IView{
 		JMenuItem saveDoodle = new JMenuItem("Save");
 		saveDoodle.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				createSaveDialog();
+				createSaveDialog(null);
 			}
 		});
 		return saveDoodle;
 	}
 	
 	/* Pre:  myModel is not null. 
-	 * Post: Asks the user if he/she would like to save current canvas. Acts accordingly. Then exits the application.
+	 * Post: Creates the Exit menu item (see exit())
 	 */
 	private JMenuItem createExitButton() {
 		JMenuItem exitDoodle = new JMenuItem("Exit");
 		exitDoodle.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				int returnVal = promptUserToSave();
-				switch(returnVal) {
-				case JOptionPane.CANCEL_OPTION:
-					break; // Do nothing. Don't really need this
-				case JOptionPane.NO_OPTION:
-					System.exit(0);
-				case JOptionPane.YES_OPTION:
-					createSaveDialog();
-					System.exit(0);
-				}	
+				exit();
 			}
 		});
 		return exitDoodle;
 	}
 	
+	/* Pre:  myModel is not null. 
+	 * Post: Asks the user if he/she would like to save current canvas. Acts accordingly. Then closes the model, which
+	 * 		 deletes its journal, and exits the application.
+	 */
+	private void exit() {
+		int returnVal = promptUserToSave();
+		switch(returnVal) {
+		case JOptionPane.CANCEL_OPTION:
+			break; // Do nothing. Don't really need this
+		case JOptionPane.NO_OPTION:
+			myModel.close();
+			System.exit(0);
+		case JOptionPane.YES_OPTION:
+			createSaveDialog(new Runnable() {
+				public void run() {
+					myModel.close();
+					System.exit(0); // Only once the file is written
+				}
+			});
+		}	
+	}
+	
 		
+	/* Pre:   None
+	 * Post:  If the last session did not exit normally, asks the user whether to recover its doodle from the journal
+	 */
+	private void offerRecovery() {
+		if (!myModel.canRecover()) {
+			return;
+		}
+		int returnVal = JOptionPane.showConfirmDialog(this, "The last doodle was not saved. Do you want to recover it?", "Recover Doodle", JOptionPane.YES_NO_OPTION);
+		if (returnVal == JOptionPane.YES_OPTION) {
+			FileTask<Model.Document> task = myModel.recover();
+			this.monitorTask(task, "Recovering doodle", null);
+		} else if (returnVal == JOptionPane.NO_OPTION) {
+			myModel.discardRecovery();
+		}
+	}
+	
 	/* Pre:   None
 	 * Post:  Prompts the user to save the image
 	 */
@@ -232,18 +421,80 @@ public class View extends JFrame implements IView{
 	
 	/* Pre:	 myModel is not null. myModel.fileExtensions() is not null and contains a list of acceptable file extensions. 
 	 * Post: Creates a save dialog allowing the user to save the image in one of the formats allowed by the model.
+	 * 		 The file is written in the background. afterSave, if not null, runs once the file is saved, or right away if
+	 * 		 the user closes the dialog without saving. It does not run if saving fails or is cancelled.
 	 */
-	private void createSaveDialog() {
+	private void createSaveDialog(final Runnable afterSave) {
 		JFileChooser saveDialog = new JFileChooser();
 		for(FileNameExtensionFilter f : myModel.fileExtensions()) {
 			saveDialog.setFileFilter(f);
 		}
 		int returnVal = saveDialog.showSaveDialog(myCanvas);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
-        	myModel.save(saveDialog);
-        	Object[] options = { "OK"};
-        	JOptionPane.showOptionDialog(null, "Your file was saved!", "Message", JOptionPane.OK_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
-        } 
+        	FileTask<Boolean> task = myModel.save(saveDialog);
+        	this.monitorTask(task, "Saving " + task.getFile().getName(), new Runnable() {
+        		public void run() {
+        			Object[] options = { "OK"};
+        			JOptionPane.showOptionDialog(null, "Your file was saved!", "Message", JOptionPane.OK_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        			if (afterSave != null) {
+        				afterSave.run();
+        			}
+        		}
+        	});
+        } else if (afterSave != null) {
+        	afterSave.run();
+        }
+	}
+	
+	/* Pre:  task is an open that has been started
+	 * Post: Shows the picture task reports through its "preview" property (see FileTask.showPreview()) until task
+	 * 		 ends. By then the model shows the doodle, or still shows the old one if the open failed.
+	 */
+	private void showPreview(final FileTask<?> task) {
+		task.addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent evt) {
+				if ("preview".equals(evt.getPropertyName())) {
+					myCanvas.setPreview((TiledCanvas)evt.getNewValue());
+				} else if ("state".equals(evt.getPropertyName()) && task.isDone()) {
+					myCanvas.setPreview(null);
+				}
+			}
+		});
+	}
+	
+	/* Pre:  task is not null and has been started
+	 * Post: Shows the progress of task in a progress monitor that lets the user cancel it. onSuccess, if not null,
+	 * 		 runs on the Event Dispatch Thread when task completes normally. Failures are reported to the user.
+	 */
+	private void monitorTask(final FileTask<?> task, String message, final Runnable onSuccess) {
+		final ProgressMonitor monitor = new ProgressMonitor(this, message, null, 0, 100);
+		monitor.setMillisToDecideToPopup(250);
+		task.addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent evt) {
+				if ("progress".equals(evt.getPropertyName())) {
+					monitor.setProgress(task.getProgress());
+					if (monitor.isCanceled()) {
+						task.cancel(true);
+					}
+				} else if ("state".equals(evt.getPropertyName()) && task.isDone()) {
+					monitor.close();
+					if (task.isCancelled()) {
+						return;
+					}
+					try {
+						task.get();
+						if (onSuccess != null) {
+							onSuccess.run();
+						}
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					} catch (ExecutionException e) {
+						e.getCause().printStackTrace();
+						JOptionPane.showMessageDialog(View.this, e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+					}
+				}
+			}
+		});
 	}
 
 	
@@ -256,7 +507,12 @@ public class View extends JFrame implements IView{
 		this.setPreferredSize(new Dimension(myWidth,myHeight));
 		this.setMinimumSize(new Dimension(MIN_WH,MIN_WH));
 		this.pack();
-		this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		this.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+		this.addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				exit(); // As the Exit menu: otherwise the journal is left and taken for a crash
+			}
+		});
 		this.setVisible(true);
 		this.setName("Aseel's Paint Program - Version 11");	
 		System.out.println("Version 11");
@@ -279,6 +535,8 @@ public class View extends JFrame implements IView{
 		this.createStrokeListener();
 		this.createStrokeSizeSelectors();
 		
+		this.createToolSelectors();
+		
 		this.add(BorderLayout.WEST, leftToolBar);
 		
 	}
@@ -300,15 +558,9 @@ public class View extends JFrame implements IView{
 			public void mouseClicked(MouseEvent e) {
 				if(e.getSource() instanceof JButton) { // Only do this if button was clicked. Otherwise class cast exception
 					JButton b = (JButton)e.getSource();	
-					if(e.getClickCount() == 1) { // One click: user simply choosing color			
+					if(e.getClickCount() == 1) { // One click: user simply choosing color. Border is set in updateToolBarSelection			
 						Color chosenColor = b.getBackground();
 						myModel.setCurrentColor(chosenColor);
-						b.setBorder(BorderFactory.createLineBorder(Color.GRAY, 3));
-						for( JButton aButton : myColorButtons) {
-							if (!aButton.equals(b)) {
-								aButton.setBorder(BorderFactory.createLineBorder(Color.WHITE, 1)); // make sure other buttons don't have a border
-							}
-						}
 					}
 					if(e.getClickCount() == 2) { // user wants to customize color button
 						Color cusColor = JColorChooser.showDialog(null, "Choose Your Color", myModel.getCurrentColor()); // If user just clicks ok without picking color, we don't want color to change
@@ -364,6 +616,37 @@ public class View extends JFrame implements IView{
 	}
 	
 	
+	/* Pre:  leftToolBar is initialized. myModel is initialized.
+	 * Post: Creates a button per tool (pen and fill) and a spinner for the tolerance of the fill tool. Controller:
+	 * 		 clicking a button makes its tool the model's current tool.
+	 */
+	private void createToolSelectors() {
+		leftToolBar.add(new JLabel("Tool", SwingConstants.CENTER));
+		myToolButtons = new ArrayList<JButton>();
+		for (final Tool t : Tool.values()) {
+			JButton b = new JButton((t == Tool.PEN) ? "Pen" : "Fill");
+			b.setBackground(Color.WHITE);
+			b.setMaximumSize(new Dimension((int) leftToolBar.getPreferredSize().getWidth(),30)); // What box layout respects
+			b.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					myModel.setCurrentTool(t); // Border is set in updateToolBarSelection
+				}
+			});
+			myToolButtons.add(b);
+			leftToolBar.add(b);
+		}
+		leftToolBar.add(new JLabel("Tolerance", SwingConstants.CENTER));
+		final JSpinner tolerance = new JSpinner(new SpinnerNumberModel(myModel.getFillTolerance(), 0, FillCommand.MAX_TOLERANCE, 8));
+		tolerance.setMaximumSize(new Dimension((int) leftToolBar.getPreferredSize().getWidth(),30));
+		tolerance.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				myModel.setFillTolerance((Integer)tolerance.getValue());
+			}
+		});
+		leftToolBar.add(tolerance);
+		this.updateToolBarSelection();
+	}
+	
 	/* Pre:  leftToolBar is initialized. myModel is initialized.
 	 * Post: Creates a button that when clicked, allows the user to select a custom color
 	 */
@@ -389,30 +672,62 @@ public class View extends JFrame implements IView{
 		ActionListener strokeListener = new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				JButton b = (JButton)e.getSource();
-				myModel.setCurrentStrokeSize(Integer.parseInt(b.getText()));
-				b.setBorder(BorderFactory.createLineBorder(Color.GRAY, 3));
-				for(JButton aButton : myStrokeButtons) {
-					if (!aButton.equals(b)) {
-						aButton.setBorder(BorderFactory.createEmptyBorder()); // make sure other buttons don't have a border
-					}
-				}
+				myModel.setCurrentStrokeSize(Integer.parseInt(b.getText())); // Border is set in updateToolBarSelection
 			}
 		};
 		return strokeListener;
 	}
 	
+	/* Pre:  myColorButtons, myStrokeButtons and myToolButtons are initialized
+	 * Post: Puts a border around the color, stroke size and tool buttons matching the model's current color,
+	 * 		 stroke size and tool. Other buttons don't have a border.
+	 */
+	private void updateToolBarSelection() {
+		for (JButton b : myColorButtons) {
+			if (b.getBackground().equals(myModel.getCurrentColor())) {
+				b.setBorder(BorderFactory.createLineBorder(Color.GRAY, 3));
+			} else {
+				b.setBorder(BorderFactory.createLineBorder(Color.WHITE, 1));
+			}
+		}
+		for (JButton b : myStrokeButtons) {
+			if (Integer.parseInt(b.getText()) == myModel.getCurrentStrokeSize()) {
+				b.setBorder(BorderFactory.createLineBorder(Color.GRAY, 3));
+			} else {
+				b.setBorder(BorderFactory.createEmptyBorder());
+			}
+		}
+		for (int i = 0; i < myToolButtons.size(); i++) {
+			if (Tool.values()[i] == myModel.getCurrentTool()) {
+				myToolButtons.get(i).setBorder(BorderFactory.createLineBorder(Color.GRAY, 3));
+			} else {
+				myToolButtons.get(i).setBorder(BorderFactory.createEmptyBorder());
+			}
+		}
+	}
+	
 	
 	
 	
 	/* INNER CLASS: This class represents the Canvas on which the user draws. The user is essentially drawing on an image, and the image
 	 * 				is drawn on the screen.
 	 */
-	class DrawCanvas extends JPanel implements Serializable {
+	class DrawCanvas extends JPanel implements Serializable, IModelListener {
 		
 		/********** Instance Variables *********/
 		
-		private Graphics2D g2; // For Drawing on Image
 		private boolean dragged = false;
+		private boolean drawing = false; // A stroke is drawn: the renderer owns the layers until the mouse is released
+		private StrokeRenderer renderer = new StrokeRenderer(this); // Draws strokes and renders frames on its own thread
+		private StrokeRenderer.Frame shown; // Frame on screen while drawing. null when none
+		private TiledCanvas preview; // Picture of the doodle being opened, shown until the model has it. null when none
+		private long inputStart = 0; // Metrics.start() at the first mouse event not painted yet. 0 when none or off
+		
+		// Zoom and Pan: the canvas point (x, y) is shown at ((x - viewX) * zoom, (y - viewY) * zoom)
+		private double zoom = 1;
+		private double viewX = 0;
+		private double viewY = 0;
+		private Point panFrom; // Mouse position at the last pan event. null when not panning
 			
 		/************* Constructor ************/
 		
@@ -422,75 +737,239 @@ public class View extends JFrame implements IView{
 		public DrawCanvas() {
 			
 			this.addMouseListener( new MouseAdapter() { // Controller
-				// Mouse Pressed: Get old image from undo stack. Copy it into a new image. Get the new image's
-				// graphic g2 and save it. Use it to draw on the image. 
+				// Mouse Pressed: Start a stroke on the model's active layer and hand the layers to the renderer,
+				// which draws the dragged points on its thread. The model adds the stroke to its history once the
+				// mouse is released.
 				public void mousePressed(MouseEvent e) { 
-					System.out.println("Mouse Pressed");
+					noteInput();
+					if(SwingUtilities.isRightMouseButton(e) || SwingUtilities.isMiddleMouseButton(e)) { // Pan, don't draw
+						panFrom = e.getPoint();
+						return;
+					}
+					if(preview != null) { // The doodle on screen is being opened: the one it replaces is not drawn on
+						return;
+					}
 					if(myModel.inUndoOperation) {
 						myModel.inUndoOperation = false;
-						myModel.redo().removeAllElements();
+						myModel.clearRedo();
 					}
 					if(!myModel.startedToDraw()) {
 						myModel.setStartedToDraw(true);
 					}
-					Image oldImage = myModel.undo().peek(); 
-					Image newImage = createImage(getWidth(), getHeight()); 
-					g2 = (Graphics2D)newImage.getGraphics(); // g2 now draws on new image
-					g2.drawImage(oldImage, 0, 0, null); // Copy old image onto new image
-					myModel.addToStack(newImage);
-					System.out.println("New Stack Size: " + myModel.undo().size());
-					myModel.setStrokeStartCoor(e.getX(), e.getY());
+					playCont.pause(); // Playback must not change the layers while the renderer owns them
+					if(myModel.getCurrentTool() == Tool.FILL) { // One click fills. The model repaints the canvas
+						myModel.fill(toCanvasX(e.getX()), toCanvasY(e.getY()));
+						return;
+					}
+					myModel.beginStroke(toCanvasX(e.getX()), toCanvasY(e.getY()));
+					renderer.setView(zoom, viewX, viewY, getWidth(), getHeight(), getBackground());
+					renderer.begin(myModel.getLayers(), myModel.getCanvas(), myModel.getCurrentStroke());
+					drawing = true;
+					inputStart = 0; // The renderer measures the latency of the points it draws
 				}
 				public void mouseReleased(MouseEvent e) {
-					if(dragged != true) {
-						myModel.undo().pop(); // Ignore clicks on canvas
-						System.out.println("Stack Size: " + myModel.undo().size());
+					if(panFrom != null) {
+						panFrom = null;
+						return;
+					}
+					if(drawing) {
+						renderer.end(); // Draw points not drawn yet and take the layers back
+						drawing = false;
+						if(shown != null) {
+							renderer.recycle(shown);
+							shown = null;
+						}
+						repaint(); // Painted on the EDT again, from the layers
+						if(dragged == true) {
+							myModel.addToStack();
+						} else { // Ignore clicks on canvas
+							myModel.cancelStroke();
+						}
 					}
 					dragged = false;
+					if(myModel.getCanvas() != null) { // Apply a resize made while drawing
+						myModel.growCanvas(getWidth(), getHeight());
+					}
 					//updateView();
 				}
 			});
 			
-			// Mouse Dragged: Draw stroke on screen based on model properties
+			// Mouse Dragged: Hand the point to the renderer. It draws it on its thread and repaints the screen
+			// once a frame showing it is ready, so the EDT never waits for a thick stroke or a large canvas.
 			this.addMouseMotionListener(new MouseMotionAdapter() { // Controller
 				public void mouseDragged(MouseEvent e) {
-					dragged = true;
-					myModel.setStrokeCurrX(e.getX());
-					myModel.setStrokeCurrY(e.getY());
-					if(g2 != null) { 
-						g2.setColor(myModel.getCurrentColor());
-						g2.setStroke(new BasicStroke(myModel.getCurrentStrokeSize()));
-						g2.drawLine(myModel.getStrokeStartX(), myModel.getStrokeStartY(), myModel.getStrokeCurrX(), myModel.getStrokeCurrY()); 
+					if(panFrom != null) {
+						noteInput();
+						viewX -= (e.getX() - panFrom.x) / zoom;
+						viewY -= (e.getY() - panFrom.y) / zoom;
+						panFrom = e.getPoint();
 						repaint();
-						myModel.setStrokeStartCoor(myModel.getStrokeCurrX(), myModel.getStrokeCurrY());
+						return;
+					}
+					if(drawing) { // Not when the click was a fill
+						dragged = true;
+						renderer.offer(toCanvasX(e.getX()), toCanvasY(e.getY()));
+					}
+				}
+			});
+			
+			// Mouse Wheel: Zoom in or out around the mouse
+			this.addMouseWheelListener(new MouseWheelListener() { // Controller
+				public void mouseWheelMoved(MouseWheelEvent e) {
+					zoomAt(e.getX(), e.getY(), Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()));
+				}
+			});
+
+			// Resized: Grow the canvas so it fills the window at actual size. Only the added area is created. While
+			// drawing, the renderer owns the layers: the canvas grows when the mouse is released.
+			this.addComponentListener(new ComponentAdapter() { // Controller
+				public void componentResized(ComponentEvent e) {
+					if (myModel.getCanvas() != null && !drawing) { // Created at the first paint
+						myModel.growCanvas(getWidth(), getHeight());
 					}
 				}
 			});
 		}
 		
+		/* Pre:  factor is positive
+		 * Post: Multiplies the zoom by factor, within MIN_ZOOM and MAX_ZOOM. The canvas point under (x, y) stays there.
+		 */
+		public void zoomAt(int x, int y, double factor) {
+			double newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+			viewX += x / zoom - x / newZoom;
+			viewY += y / zoom - y / newZoom;
+			zoom = newZoom;
+			this.repaint();
+		}
+		
+		/* Pre:  preview is not changed while shown
+		 * Post: Shows preview, the picture of a doodle being opened, at its actual size instead of the model's layers.
+		 * 		 null shows the layers again.
+		 */
+		public void setPreview(TiledCanvas preview) {
+			this.preview = preview;
+			if (preview != null) {
+				this.resetView();
+			} else {
+				this.repaint();
+			}
+		}
+		
 		/* Pre:  None
-		 * Post: Draw image on screen
+		 * Post: Shows the canvas at its actual size, its top left corner at the top left of the screen
+		 */
+		public void resetView() {
+			zoom = 1;
+			viewX = 0;
+			viewY = 0;
+			this.repaint();
+		}
+		
+		/* Pre:  None
+		 * Post: Returns the canvas x coordinate shown at screen x coordinate x */
+		private int toCanvasX(int x) { return (int)Math.floor(viewX + x / zoom); }
+		
+		/* Pre:  None
+		 * Post: Returns the canvas y coordinate shown at screen y coordinate y */
+		private int toCanvasY(int y) { return (int)Math.floor(viewY + y / zoom); }
+		
+		/* Pre:  None
+		 * Post: Draw the layers on screen, zoomed and panned. The tiles of their composite that changed are blended
+		 * 		 again, then only its tiles inside the clip (the dirty area) are copied. Zoomed out, they come from the
+		 * 		 composite's pyramid of downscaled tiles. While drawing, the renderer owns the layers: the latest
+		 * 		 frame it rendered is copied instead.
 		 */
 		public void paintComponent(Graphics g) {
+			long start = Metrics.start();
+			if (drawing) {
+				this.paintFrame(g, start);
+				return;
+			}
 			if (!myModel.startedToDraw() && myModel.counter() == 1) { // Screen is blank
 				myModel.incrementCounter(); // WE DON'T WANT IT TO KEEP ON ADDING BLANK IMAGES TO STACK
-				Image newImage = this.createImage(this.getWidth(), this.getHeight());
-				g2 = (Graphics2D)newImage.getGraphics();
-				myModel.undo().push(newImage);				
-				this.clear();
+				this.clear(); // The model reports DOCUMENT_LOADED, which repaints all of the new image
+			}
+			super.paintComponent(g);
+			LayerStack layers = myModel.getLayers();
+			if (layers != null) {
+				Rectangle clip = g.getClipBounds();
+				if (clip == null) {
+					clip = new Rectangle(0, 0, this.getWidth(), this.getHeight());
+				}
+				int x = toCanvasX(clip.x);
+				int y = toCanvasY(clip.y);
+				Rectangle area = new Rectangle(x, y, toCanvasX(clip.x + clip.width) - x + 1, toCanvasY(clip.y + clip.height) - y + 1);
+				Graphics2D g2 = (Graphics2D)g.create();
+				g2.scale(zoom, zoom);
+				g2.translate(-viewX, -viewY);
+				if (preview != null) {
+					preview.paint(g2, area, zoom);
+				} else {
+					layers.paint(g2, area, zoom); // Draw the model's tiles that are on screen
+				}
+				g2.dispose();
+				Metrics.paint(start, clip.width, clip.height);
+				if (inputStart != 0) {
+					Metrics.inputToPaint(inputStart);
+					inputStart = 0;
+				}
 			}
-			g.drawImage(myModel.undo().peek(), 0, 0, null); // Draw image on top of stack on screen	
 		}
 		
+		/* Pre:  Called by a mouse handler
+		 * Post: If metrics are on and every mouse event so far was painted, the next paint will record the latency
+		 * 		 of this one (see Metrics)
+		 */
+		private void noteInput() {
+			if (inputStart == 0) {
+				inputStart = Metrics.start();
+			}
+		}
+		
+		/* Pre:  Called by paintComponent while drawing. start was returned by Metrics.start() when the paint began.
+		 * Post: Shows the latest frame of the renderer, and hands the one shown before back to it. Tells the
+		 * 		 renderer the current view, so a zoom or pan while drawing is rendered by the next frame. Nothing is
+		 * 		 painted before the first frame is ready: it repaints the screen when it is.
+		 */
+		private void paintFrame(Graphics g, long start) {
+			renderer.setView(zoom, viewX, viewY, getWidth(), getHeight(), getBackground());
+			StrokeRenderer.Frame f = renderer.takeFrame();
+			if (f != null) {
+				if (shown != null) {
+					renderer.recycle(shown);
+				}
+				shown = f;
+				if (f.inputStart != 0) {
+					Metrics.inputToPaint(f.inputStart);
+				}
+			}
+			if (shown == null) {
+				return;
+			}
+			g.drawImage(shown.image, 0, 0, null);
+			Rectangle clip = g.getClipBounds();
+			if (clip == null) {
+				clip = new Rectangle(0, 0, this.getWidth(), this.getHeight());
+			}
+			Metrics.paint(start, clip.width, clip.height);
+		}
 		
-		/* Pre:  g2 is not null.
-		 * Post: Fill image with white background (i.e, clear canvas)
+		
+		/* Pre:  None
+		 * Post: The model's image was changed or replaced: repaint all of it. A new document is shown at actual size.
+		 */
+		public void modelChanged(EnumSet<ModelEvent> events) {
+			if (events.contains(ModelEvent.DOCUMENT_LOADED)) {
+				this.resetView();
+			}
+			this.repaint();
+		}
+		
+		/* Pre:  None
+		 * Post: Asks the model for a white image the size of this canvas (i.e, clear canvas)
 		 */
 		public void clear() {
-			assert (g2 != null);
-			g2.setPaint(Color.WHITE);
-			g2.fillRect(0, 0, this.getWidth(), this.getHeight());
-			g2.setPaint(Color.BLACK);
+			myModel.newCanvas(Math.max(1, this.getWidth()), Math.max(1, this.getHeight()));
 			//repaint();
 		}
 		
@@ -499,15 +978,28 @@ public class View extends JFrame implements IView{
 
 	/* INNER CLASS: This class consists of the playback control
 	 */
-	class PlayBackControl extends JPanel{
+	class PlayBackControl extends JPanel implements IModelListener {
+		
+		/************** Constants **************/
+		
+		public static final int FRAME_MS = 16; // Time between two playback frames (about 60 fps)
+		public static final double STROKES_PER_SECOND = 10; // Playback rate at speed 1x
 		
 		/********** Instance Variables *********/
 		JButton play;
 		JButton start;
 		JButton end;
 		JSlider slider;
+		JComboBox<String> speed;
 		boolean progSetValue = false;
 		
+		/* Relating to Playback */
+		private final String[] speedNames = {"0.5x", "1x", "2x", "4x", "8x"};
+		private final double[] speedFactors = {0.5, 1, 2, 4, 8};
+		private javax.swing.Timer playTimer; // Fires on the EDT every FRAME_MS while playing
+		private double playPosition; // History entry reached by playback. Fractional between two strokes
+		private long lastFrameTime; // System.nanoTime() of the previous frame
+		
 		/************* Constructor ************/
 		
 		public PlayBackControl() {
@@ -516,6 +1008,7 @@ public class View extends JFrame implements IView{
 			this.addPlayBackControls();
 			this.attachActionListenersToButtons();
 			this.attachChangeListenerToSlider();
+			this.createPlayTimer();
 			this.update();
 			
 		}
@@ -525,14 +1018,21 @@ public class View extends JFrame implements IView{
 		
 		/************* Public Methods ************/
 		
+		/* Pre:  None
+		 * Post: The history changed: update the slider and buttons
+		 */
+		public void modelChanged(EnumSet<ModelEvent> events) {
+			this.update();
+		}
+		
 		public void update() {
 			if(!myModel.inUndoOperation) {
 				this.resetSlider();
-				if( myModel.undo().size() <= 1) {
+				if( myModel.historySize() <= 1) {
 					this.disableButtons();
 				} else {
 					this.enableButtons();
-					int numStrokes = myModel.undo().size()-1; 
+					int numStrokes = myModel.historySize()-1; 
 					slider.setMinimum(0);
 					slider.setMaximum(numStrokes);
 					slider.setPaintTicks(true);
@@ -553,7 +1053,7 @@ public class View extends JFrame implements IView{
 			progSetValue = true;
 			slider.setMinimum(0);
 			progSetValue = true;
-			slider.setMaximum(myModel.undo().size() - 1);
+			slider.setMaximum(myModel.historySize() - 1);
 			progSetValue = true;
 			slider.setValue(myModel.getKnobLocation());
 			
@@ -561,6 +1061,7 @@ public class View extends JFrame implements IView{
 		
 		/* Disables Buttons */
 		private void disableButtons() {
+			this.pause();
 			play.setEnabled(false);
 			start.setEnabled(false);
 			end.setEnabled(false);
@@ -582,10 +1083,15 @@ public class View extends JFrame implements IView{
 			play = new JButton("Play");
 			start = new JButton("Start");
 			end = new JButton("End");
+			speed = new JComboBox<String>(speedNames);
+			speed.setSelectedItem("1x");
+			speed.setMaximumSize(speed.getPreferredSize());
 			progSetValue = true;
-			slider = new JSlider(0, myModel.undo().size(), 0);
+			slider = new JSlider(0, myModel.historySize(), 0);
 			this.add(Box.createHorizontalStrut(20));
 			this.add(play);
+			this.add(Box.createHorizontalStrut(5));
+			this.add(speed);
 			this.add(Box.createHorizontalStrut(10));
 			this.add(slider);
 			this.add(Box.createHorizontalStrut(10));
@@ -603,15 +1109,21 @@ public class View extends JFrame implements IView{
 			ActionListener myActionListener = new ActionListener() {
 				public void actionPerformed(ActionEvent e) {
 					if(e.getSource().equals(start)) {
+						pause();
 						slider.setValue(0);
 						myModel.setKnobLocation(0);
 					} 
 					if(e.getSource().equals(end)) {
+						pause();
 						slider.setValue(slider.getMaximum());
 						myModel.setKnobLocation(slider.getMaximum());
 					}
 					if(e.getSource().equals(play)) {
-						//play();
+						if(playTimer.isRunning()) {
+							pause();
+						} else {
+							play();
+						}
 					}
 				}
 			};
@@ -628,12 +1140,11 @@ public class View extends JFrame implements IView{
 					if (ce.getSource() instanceof JSlider) {
 						JSlider sliderP = (JSlider)ce.getSource(); // We know the source will be slider
 						if(!sliderP.getValueIsAdjusting() && !progSetValue) { // The user changed knob location
+							pause();
 							myModel.inUndoOperation = true;
-							myModel.resetRedo();
+							myModel.setHasUndoed(true);
 							myModel.setKnobLocation(sliderP.getValue());
-							int knobLoc = sliderP.getValue();
-							int size = myModel.undo().size();
-							myModel.doUndo(size - knobLoc -1);
+							myModel.seek(sliderP.getValue()); // Slider value i is history entry i
 						} 
 					} 
 					progSetValue = false;
@@ -643,8 +1154,78 @@ public class View extends JFrame implements IView{
 			
 		}
 		
+		/* Pre:  None
+		 * Post: Creates the timer that drives playback. Late ticks are coalesced by the timer.
+		 */
+		private void createPlayTimer() {
+			playTimer = new javax.swing.Timer(FRAME_MS, new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					playFrame();
+				}
+			});
+			playTimer.setCoalesce(true);
+		}
+		
+		/* Pre:  None
+		 * Post: Plays the history from the knob position to the end. If the knob is at the end, starts over.
+		 */
 		private void play() {
-			// NEED TO IMPLEMENT
+			int last = myModel.historySize() - 1;
+			if (last <= 0) {
+				return;
+			}
+			int from = slider.getValue();
+			if (from >= last) {
+				from = 0;
+			}
+			myModel.inUndoOperation = true; // Moving through history, like dragging the knob
+			myModel.setHasUndoed(true);
+			this.showEntry(from);
+			playPosition = from;
+			lastFrameTime = System.nanoTime();
+			play.setText("Pause");
+			playTimer.start();
+		}
+		
+		/* Pre:  None
+		 * Post: Stops playback where it is. play() resumes from there.
+		 */
+		private void pause() {
+			if (playTimer != null && playTimer.isRunning()) {
+				playTimer.stop();
+			}
+			play.setText("Play");
+		}
+		
+		/* Pre:  Called by playTimer
+		 * Post: Advances playback by the time elapsed since the previous frame. If rendering fell behind, the
+		 * 		 entries in between are skipped and only the one due now is shown.
+		 */
+		private void playFrame() {
+			long now = System.nanoTime();
+			double rate = STROKES_PER_SECOND * speedFactors[speed.getSelectedIndex()];
+			playPosition += rate * (now - lastFrameTime) / 1e9;
+			lastFrameTime = now;
+			int last = myModel.historySize() - 1;
+			int target = (int)Math.min(playPosition, last);
+			if (target != slider.getValue()) {
+				this.showEntry(target);
+			}
+			if (target >= last) {
+				this.pause();
+			}
+		}
+		
+		/* Pre:  0 <= index < myModel.historySize()
+		 * Post: Shows history entry index and moves the knob to it
+		 */
+		private void showEntry(int index) {
+			myModel.seek(index);
+			myModel.setKnobLocation(index);
+			if (slider.getValue() != index) {
+				progSetValue = true;
+				slider.setValue(index);
+			}
 		}
 		
 	}
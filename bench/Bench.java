@@ -0,0 +1,389 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+/* This is the command line entry point of the benchmarks. It times the hot paths of the app without opening a
+ * window, from the directory the app was built in:
+ * 		javac -cp . -d bench bench/*.java
+ * 		java -cp .:bench Bench [-filter <text>] [-save <file>] [-baseline <file>]
+ * The cases cover: drawing stroke segments the way DrawCanvas.mouseDragged does, pushing, undoing and seeking
+ * the history through the Model, painting canvases of several sizes, and every save and open path of the Model.
+ * Each case runs for WARMUP_MS, so the JIT has compiled it, then for ROUNDS rounds of ROUND_MS. Its time per
+ * operation is the median of the rounds.
+ * -filter runs only the cases whose name contains text. -save writes the results, one "<case>	<ns/op>" per line.
+ * -baseline compares them to a file written by -save: a case slower by more than TOLERANCE is reported, and the
+ * exit status is 1, so a script can stop a regression before it is shipped.
+ */
+public class Bench {
+
+	public static final long WARMUP_MS = 1000; // Time each case runs before it is measured
+	public static final int ROUNDS = 5; // Measured rounds per case
+	public static final long ROUND_MS = 500; // Time of a measured round
+	public static final double TOLERANCE = 0.20; // Slowdown over the baseline reported as a regression
+	public static final int DRAG_POINTS = 64; // Points of a benchmarked drag
+	public static final int POINTS_PER_FRAME = 4; // Points dragged between two paints
+	public static final String[] FORMATS = { "binary", "txt", "png", "jpg", "bmp", "gif" }; // Formats of Model.save()
+
+	public static volatile Object sink; // Holds results, so the JIT cannot drop the work that made them
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // Before any AWT class is loaded
+		String filter = "";
+		File save = null;
+		File baseline = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-filter") && i + 1 < args.length) {
+				filter = args[++i];
+			} else if (args[i].equals("-save") && i + 1 < args.length) {
+				save = new File(args[++i]);
+			} else if (args[i].equals("-baseline") && i + 1 < args.length) {
+				baseline = new File(args[++i]);
+			} else {
+				System.err.println("Usage: java -cp .:bench Bench [-filter <text>] [-save <file>] [-baseline <file>]");
+				System.exit(2);
+			}
+		}
+		Map<String, Double> previous = (baseline == null) ? null : readResults(baseline);
+		Map<String, Double> results = new LinkedHashMap<String, Double>();
+		File dir = Files.createTempDirectory("doodlebench").toFile();
+		boolean regressed = false;
+		try {
+			System.out.println(String.format("%-36s %14s %8s %10s", "case", "ns/op", "spread", "baseline"));
+			for (Case c : cases(dir)) {
+				if (!c.name.contains(filter)) {
+					continue;
+				}
+				c.setUp();
+				double[] rounds;
+				try {
+					rounds = measure(c);
+				} finally {
+					c.tearDown();
+				}
+				double median = rounds[ROUNDS / 2];
+				results.put(c.name, median);
+				String versus = "";
+				if (previous != null && previous.containsKey(c.name)) {
+					double change = median / previous.get(c.name) - 1;
+					versus = String.format("%+.0f%%", 100 * change);
+					if (change > TOLERANCE) {
+						versus += " SLOWER";
+						regressed = true;
+					}
+				}
+				System.out.println(String.format("%-36s %14.0f %7.0f%% %10s", c.name, median,
+						100 * (rounds[ROUNDS - 1] - rounds[0]) / median, versus));
+			}
+		} finally {
+			deleteAll(dir);
+		}
+		if (save != null) {
+			writeResults(save, results);
+		}
+		System.exit(regressed ? 1 : 0); // The Event Dispatch Thread started by the models would keep the JVM alive
+	}
+
+	/* Pre:  c was set up
+	 * Post: Runs c for WARMUP_MS, then for ROUNDS rounds of ROUND_MS. Returns the time per operation of each
+	 * 		 round in ns, sorted.
+	 */
+	private static double[] measure(Case c) throws Exception {
+		long end = System.nanoTime() + WARMUP_MS * 1000000;
+		while (System.nanoTime() < end) {
+			c.run();
+		}
+		double[] rounds = new double[ROUNDS];
+		for (int r = 0; r < ROUNDS; r++) {
+			long start = System.nanoTime();
+			long deadline = start + ROUND_MS * 1000000;
+			long now;
+			long ops = 0;
+			do {
+				c.run();
+				ops++;
+				now = System.nanoTime();
+			} while (now < deadline);
+			rounds[r] = (double)(now - start) / ops;
+		}
+		Arrays.sort(rounds);
+		return rounds;
+	}
+
+	/* Pre:  dir is an empty directory whose path has no '.' (Model finds the format of a file after the first '.')
+	 * Post: Returns every case, in the order they are run. Their files are written in dir.
+	 */
+	private static List<Case> cases(final File dir) {
+		List<Case> cases = new ArrayList<Case>();
+
+		// Drawing: a drag drawn a few points per frame, as DrawCanvas buffers them in StrokeInput
+		for (final int width : new int[] { Model.MED_STROKE, 40 }) {
+			cases.add(new Case("draw drag, width " + width) {
+				private TiledCanvas canvas;
+				private StrokeInput input;
+				private Random random;
+				void setUp() {
+					canvas = new TiledCanvas(2048, 2048);
+					input = new StrokeInput();
+					random = new Random(1);
+				}
+				void run() {
+					StrokeCommand stroke = new StrokeCommand(Color.BLUE, width, random.nextInt(2048), random.nextInt(2048));
+					input.begin(stroke);
+					drag(input, canvas, random);
+					sink = stroke;
+				}
+			});
+		}
+
+		// History: strokes pushed, undone and redone through the Model
+		cases.add(new ModelCase("history push", dir, 0) {
+			void run() {
+				this.stroke();
+			}
+		});
+		for (final int n : new int[] { 1, 20 }) {
+			cases.add(new ModelCase("history undo " + n + " + redo", dir, 256) {
+				void run() {
+					model.doUndo(n);
+					model.resetRedo();
+				}
+			});
+		}
+		cases.add(new ModelCase("history seek", dir, 256) {
+			void run() {
+				model.seek(random.nextInt(model.historySize()));
+			}
+		});
+
+		// Painting: the tiles of the canvas copied to the screen, as DrawCanvas.paintComponent does
+		for (final int size : new int[] { 700, 2048, 4096 }) {
+			cases.add(new PaintCase("paint " + size + "x" + size, size, 1));
+		}
+		cases.add(new PaintCase("paint 4096x4096 at 1/4", 4096, 0.25));
+		cases.add(new PaintCase("paint 2048x2048 layer after drag", 2048, 1) {
+			private StrokeInput input = new StrokeInput();
+			void setUp() {
+				super.setUp();
+				layers.addLayer("Layer 1");
+			}
+			void run() {
+				StrokeCommand stroke = new StrokeCommand(Color.RED, Model.THICK_STROKE, random.nextInt(2048), random.nextInt(2048));
+				input.begin(stroke);
+				drag(input, layers.getLayer(1).getCanvas(), random);
+				super.run();
+			}
+		});
+
+		// Saving and opening in every format, through the Model
+		for (final String format : FORMATS) {
+			final File file = new File(dir, format.equals("binary") ? "doodle" : "doodle." + format);
+			cases.add(new ModelCase("save " + format, dir, 300) {
+				void run() throws Exception {
+					sink = model.save(file, format).get();
+				}
+			});
+			cases.add(new ModelCase("open " + format, dir, 300) {
+				private Model opener;
+				void setUp() throws Exception {
+					super.setUp();
+					model.save(file, format).get();
+					opener = new Model(new File(dir, "open.journal"));
+				}
+				void run() throws Exception {
+					FileTask<Model.Document> task = opener.openFile(file);
+					sink = task.get();
+					waitUntilShown(task);
+				}
+				void tearDown() throws Exception {
+					SwingUtilities.invokeAndWait(new Runnable() {
+						public void run() {
+							opener.close(); // Its journal was begun on the Event Dispatch Thread, by Model.show()
+						}
+					});
+					super.tearDown();
+				}
+			});
+		}
+		return cases;
+	}
+
+	/* Pre:  input was begun on a stroke whose last point is on canvas
+	 * Post: Drags DRAG_POINTS points of a random walk, drawing them every POINTS_PER_FRAME points, then ends
+	 * 		 input
+	 */
+	private static void drag(StrokeInput input, TiledCanvas canvas, Random random) {
+		int x = input.getLastX();
+		int y = input.getLastY();
+		for (int i = 1; i <= DRAG_POINTS; i++) {
+			x = Math.max(0, Math.min(canvas.getWidth() - 1, x + random.nextInt(41) - 20));
+			y = Math.max(0, Math.min(canvas.getHeight() - 1, y + random.nextInt(41) - 20));
+			input.offer(x, y);
+			if (i % POINTS_PER_FRAME == 0) {
+				input.drain(canvas);
+			}
+		}
+		input.end(canvas);
+	}
+
+	/* Pre:  task was started by Model.openFile() and its result was read
+	 * Post: Returns once the model shows the document, on the Event Dispatch Thread
+	 */
+	private static void waitUntilShown(SwingWorker<?, ?> task) throws Exception {
+		while (task.getState() != SwingWorker.StateValue.DONE) { // Set once done() is queued
+			Thread.yield();
+		}
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {} // Runs after done()
+		});
+	}
+
+	/* Pre:  aFile was written by writeResults()
+	 * Post: Returns the time per operation of each case it holds
+	 */
+	private static Map<String, Double> readResults(File aFile) throws IOException {
+		Map<String, Double> results = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(aFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				if (tab > 0) {
+					results.put(line.substring(0, tab), Double.parseDouble(line.substring(tab + 1)));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	/* Pre:  aFile and results are not null
+	 * Post: Writes results to aFile, one "<case>	<ns/op>" per line
+	 */
+	private static void writeResults(File aFile, Map<String, Double> results) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(aFile), "UTF-8");
+		try {
+			for (Map.Entry<String, Double> e : results.entrySet()) {
+				out.write(e.getKey() + "\t" + Math.round(e.getValue()) + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Pre:  dir is not null
+	 * Post: Deletes dir and the files in it
+	 */
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/* INNER CLASS: One benchmarked operation. setUp() and tearDown() run once, around all its runs.
+	 */
+	static abstract class Case {
+
+		final String name;
+
+		Case(String name) {
+			this.name = name;
+		}
+
+		void setUp() throws Exception {}
+		abstract void run() throws Exception;
+		void tearDown() throws Exception {}
+	}
+
+	/* INNER CLASS: A case run on a Model holding a 1024x768 doodle of a given number of random strokes. Its
+	 * 				journal is written in the benchmark's directory, not in the user's.
+	 */
+	static abstract class ModelCase extends Case {
+
+		private final File dir;
+		private final int numStrokes;
+		private final StrokeInput input = new StrokeInput();
+		Model model;
+		Random random;
+
+		ModelCase(String name, File dir, int numStrokes) {
+			super(name);
+			this.dir = dir;
+			this.numStrokes = numStrokes;
+		}
+
+		void setUp() throws Exception {
+			model = new Model(new File(dir, "bench.journal"));
+			model.newCanvas(1024, 768);
+			random = new Random(1);
+			for (int i = 0; i < numStrokes; i++) {
+				this.stroke();
+			}
+		}
+
+		void tearDown() throws Exception {
+			model.close();
+		}
+
+		/* Pre:  model has a canvas
+		 * Post: Drags a random stroke on the model's canvas and adds it to the history, as DrawCanvas does
+		 */
+		void stroke() {
+			model.setCurrentStrokeSize(model.StrokeSizes().get(random.nextInt(model.StrokeSizes().size())));
+			model.beginStroke(random.nextInt(1024), random.nextInt(768));
+			input.begin(model.getCurrentStroke());
+			drag(input, model.getCanvas(), random);
+			model.addToStack();
+		}
+	}
+
+	/* INNER CLASS: A case that paints a size x size doodle of random strokes, at the given zoom, to an image the
+	 * 				size of the zoomed doodle: every tile is copied.
+	 */
+	static class PaintCase extends Case {
+
+		private final int size;
+		private final double zoom;
+		private Graphics2D g;
+		LayerStack layers;
+		Random random;
+
+		PaintCase(String name, int size, double zoom) {
+			super(name);
+			this.size = size;
+			this.zoom = zoom;
+		}
+
+		void setUp() {
+			layers = new LayerStack(size, size);
+			random = new Random(1);
+			StrokeInput input = new StrokeInput();
+			for (int i = 0; i < 200; i++) {
+				input.begin(new StrokeCommand(Color.BLACK, Model.MED_STROKE, random.nextInt(size), random.nextInt(size)));
+				drag(input, layers.getLayer(0).getCanvas(), random);
+			}
+			int screen = (int)Math.ceil(size * zoom);
+			g = new BufferedImage(screen, screen, BufferedImage.TYPE_INT_RGB).createGraphics();
+			g.scale(zoom, zoom);
+		}
+
+		void run() {
+			layers.paint(g, new Rectangle(0, 0, size, size), zoom);
+		}
+
+		void tearDown() throws Exception {
+			g.dispose();
+		}
+	}
+}